@@ -0,0 +1,82 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.observation.remote.RemoteObservationManagerContext;
+
+import com.xwiki.pdfviewer.internal.configuration.PDFViewerConfiguration;
+import com.xwiki.pdfviewer.internal.token.ClusterDelegatedTokenStore;
+import com.xwiki.pdfviewer.internal.token.DelegatedTokenChangeEvent;
+import com.xwiki.pdfviewer.internal.token.DelegatedTokenStore;
+
+/**
+ * Applies the delegated token changes sent by the other cluster nodes, when the tokens are kept by the
+ * {@link ClusterDelegatedTokenStore}.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component
+@Named(PDFViewerClusterListener.HINT)
+@Singleton
+public class PDFViewerClusterListener extends AbstractEventListener
+{
+    /**
+     * The hint for the component.
+     */
+    public static final String HINT = "PDFViewerClusterListener";
+
+    @Inject
+    private RemoteObservationManagerContext remoteObservationManagerContext;
+
+    @Inject
+    private PDFViewerConfiguration configuration;
+
+    @Inject
+    @Named(ClusterDelegatedTokenStore.HINT)
+    private Provider<DelegatedTokenStore> storeProvider;
+
+    /**
+     * Creates an event-listener filtering for the delegated token changes.
+     */
+    public PDFViewerClusterListener()
+    {
+        super(HINT, new DelegatedTokenChangeEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        // The local changes are already applied, and the store is only created when it's used.
+        if (this.remoteObservationManagerContext.isRemoteState()
+            && ClusterDelegatedTokenStore.HINT.equals(this.configuration.getTokenStoreHint()))
+        {
+            ((ClusterDelegatedTokenStore) this.storeProvider.get()).apply((DelegatedTokenChangeEvent) event);
+        }
+    }
+}
@@ -19,22 +19,39 @@
  */
 package com.xwiki.pdfviewer.internal;
 
+import java.util.List;
+import java.util.Locale;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.bridge.event.WikiDeletedEvent;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.observation.AbstractEventListener;
 import org.xwiki.observation.event.Event;
 
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.internal.event.AbstractAttachmentEvent;
 import com.xpn.xwiki.internal.event.AttachmentDeletedEvent;
-import com.xwiki.pdfviewer.internal.token.DelegatedTokenManager;
+import com.xpn.xwiki.internal.event.AttachmentUpdatedEvent;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.BaseProperty;
+import com.xwiki.pdfviewer.internal.token.DelegatedTokenInvalidator;
 
 /**
- * Listens to attachment delete events and attempts to remove the existing token, if any.
+ * Listens to the events that make existing tokens useless and removes these tokens: attachment deletions and updates,
+ * document deletions (including the renames, which are a deletion followed by a creation, and the user deletions),
+ * wiki deletions and document updates removing all the PDF viewer macros.
+ * <p>
+ * The tokens are removed in the background by the {@link DelegatedTokenInvalidator}, so that the changes are not slowed
+ * down, and a failure to remove them never fails the change.
  *
  * @version $Id$
  * @since 2.7
@@ -49,34 +66,85 @@ public class PDFViewerListener extends AbstractEventListener
      */
     public static final String HINT = "PDFViewerListener";
 
+    private static final String MACRO_MARKUP = "{{pdfviewer";
+
     @Inject
     protected Logger logger;
 
     @Inject
-    private DelegatedTokenManager delegatedTokenManager;
+    private DelegatedTokenInvalidator invalidator;
 
     /**
-     * Creates an event-listener filtering for AttachmentDeletedEvent.
+     * Creates an event-listener filtering for the attachment, document and wiki events related to the tokens.
      */
     public PDFViewerListener()
     {
-        super(HINT, new AttachmentDeletedEvent());
+        super(HINT, new AttachmentDeletedEvent(), new AttachmentUpdatedEvent(), new DocumentDeletedEvent(),
+            new DocumentUpdatedEvent(), new WikiDeletedEvent());
     }
 
     @Override
     public void onEvent(Event event, Object source, Object data)
     {
         try {
-            if (event instanceof AttachmentDeletedEvent) {
-                String attachmentName = ((AttachmentDeletedEvent) event).getName();
-                delegatedTokenManager.clearAttachmentTokens(attachmentName,
-                    ((XWikiDocument) source).getDocumentReference());
-                logger.debug("Successfully removed all tokens granted for [{}]", attachmentName);
+            if (event instanceof AttachmentDeletedEvent || event instanceof AttachmentUpdatedEvent) {
+                String attachmentName = ((AbstractAttachmentEvent) event).getName();
+                invalidator.invalidateAttachment(
+                    new AttachmentReference(attachmentName, ((XWikiDocument) source).getDocumentReference()));
+                logger.debug("Scheduled the removal of all tokens granted for [{}]", attachmentName);
+            } else if (event instanceof WikiDeletedEvent) {
+                invalidator.invalidateWiki(((WikiDeletedEvent) event).getWikiId());
+            } else if (isDefaultLocale((XWikiDocument) source)) {
+                // The translations share the tokens of the default document, so they are ignored.
+                onDocumentEvent(event, (XWikiDocument) source);
             }
         } catch (Exception e) {
             logger.error("An error occurred while removing PDF Viewer access tokens. Root cause is: [{}]",
                 ExceptionUtils.getRootCauseMessage(e));
-            throw new RuntimeException(e);
         }
     }
+
+    private void onDocumentEvent(Event event, XWikiDocument document)
+    {
+        if (event instanceof DocumentDeletedEvent) {
+            invalidator.invalidateDocument(document.getDocumentReference());
+        } else if (!containsMacro(document)) {
+            invalidator.invalidateOrigin(document.getDocumentReference());
+        }
+    }
+
+    private boolean isDefaultLocale(XWikiDocument document)
+    {
+        return document.getLocale() == null || Locale.ROOT.equals(document.getLocale());
+    }
+
+    /**
+     * Look for the macro in the document content and in the object properties, which can hold content as well.
+     */
+    private boolean containsMacro(XWikiDocument document)
+    {
+        if (StringUtils.contains(document.getContent(), MACRO_MARKUP)) {
+            return true;
+        }
+        for (List<BaseObject> objects : document.getXObjects().values()) {
+            for (BaseObject object : objects) {
+                if (object != null && containsMacro(object)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean containsMacro(BaseObject object)
+    {
+        for (Object field : object.getFieldList()) {
+            if (field instanceof BaseProperty && ((BaseProperty<?>) field).getValue() instanceof String
+                && ((String) ((BaseProperty<?>) field).getValue()).contains(MACRO_MARKUP))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -0,0 +1,87 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal;
+
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.LocalDocumentReference;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.internal.event.EntityEvent;
+import com.xpn.xwiki.internal.event.XObjectAddedEvent;
+import com.xpn.xwiki.internal.event.XObjectDeletedEvent;
+import com.xpn.xwiki.internal.event.XObjectUpdatedEvent;
+import com.xpn.xwiki.objects.BaseObjectReference;
+import com.xwiki.pdfviewer.internal.token.DelegatedTokenRightsCache;
+
+/**
+ * Listens to the changes of rights, groups and users, which are all stored as objects, and forgets the rights checked
+ * for the delegated tokens.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component
+@Named(PDFViewerRightsListener.HINT)
+@Singleton
+public class PDFViewerRightsListener extends AbstractEventListener
+{
+    /**
+     * The hint for the component.
+     */
+    public static final String HINT = "PDFViewerRightsListener";
+
+    private static final String XWIKI_SPACE = "XWiki";
+
+    private static final Set<LocalDocumentReference> RIGHTS_CLASSES =
+        Set.of(new LocalDocumentReference(XWIKI_SPACE, "XWikiRights"),
+            new LocalDocumentReference(XWIKI_SPACE, "XWikiGlobalRights"),
+            new LocalDocumentReference(XWIKI_SPACE, "XWikiGroups"),
+            new LocalDocumentReference(XWIKI_SPACE, "XWikiUsers"));
+
+    @Inject
+    private DelegatedTokenRightsCache rightsCache;
+
+    /**
+     * Creates an event-listener filtering for the object events, which are also sent when a document is deleted.
+     */
+    public PDFViewerRightsListener()
+    {
+        super(HINT, new XObjectAddedEvent(), new XObjectUpdatedEvent(), new XObjectDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        EntityReference objectReference = ((EntityEvent) event).getReference();
+        if (RIGHTS_CLASSES.contains(
+            new BaseObjectReference(objectReference).getXClassReference().getLocalDocumentReference()))
+        {
+            this.rightsCache.invalidate();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.configuration;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Gives access to the PDF Viewer settings. The functional settings are defined in the administration section, while
+ * the infrastructure ones are defined in {@code xwiki.properties}.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component(roles = PDFViewerConfiguration.class)
+@Singleton
+public class PDFViewerConfiguration
+{
+    private static final long DEFAULT_TOKEN_TIME_TO_LIVE = 0L;
+
+    private static final long DEFAULT_TOKEN_IDLE_TIMEOUT = 86400L;
+
+    private static final int DEFAULT_MAX_TOKENS = 100000;
+
+    private static final int DEFAULT_INVALIDATION_QUEUE_SIZE = 10000;
+
+    private static final long DEFAULT_CONTENT_CACHE_SIZE = 64L * 1024 * 1024;
+
+    private static final int DEFAULT_RESOLUTION_THREADS = 4;
+
+    private static final String PREFIX = "pdfviewer.";
+
+    @Inject
+    @Named(PDFViewerConfigurationSource.HINT)
+    private ConfigurationSource configurationSource;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource xwikiPropertiesSource;
+
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    /**
+     * @return the number of seconds after which a delegated token expires, no matter how it is used, or {@code 0} if
+     *     the tokens don't have an absolute expiration time
+     */
+    public long getTokenTimeToLive()
+    {
+        return this.configurationSource.getProperty("tokenTimeToLive", DEFAULT_TOKEN_TIME_TO_LIVE);
+    }
+
+    /**
+     * @return the number of seconds after which a delegated token that was not used to access the file content
+     *     expires, or {@code 0} if the tokens don't expire when they are not used
+     */
+    public long getTokenIdleTimeout()
+    {
+        return this.configurationSource.getProperty("tokenIdleTimeout", DEFAULT_TOKEN_IDLE_TIMEOUT);
+    }
+
+    /**
+     * @return the hint of the {@code DelegatedTokenStore} component used to keep the delegated tokens: {@code default}
+     *     to keep them in memory, {@code file} to share them through a file, {@code signed} to not keep them at all or
+     *     {@code cluster} to share them with the other cluster nodes
+     */
+    public String getTokenStoreHint()
+    {
+        return this.xwikiPropertiesSource.getProperty(PREFIX + "tokenStore", "default");
+    }
+
+    /**
+     * @return the maximum number of delegated tokens to keep for all the wikis, the least recently used ones being
+     *     evicted first, or {@code 0} if the number of tokens is not limited
+     */
+    public int getMaxTokens()
+    {
+        return this.xwikiPropertiesSource.getProperty(PREFIX + "tokenStore.maxTokens", DEFAULT_MAX_TOKENS);
+    }
+
+    /**
+     * @param wikiId the wiki holding the delegated attachments
+     * @return the maximum number of delegated tokens to keep for the attachments of the given wiki, as configured by
+     *     that wiki, the least recently used ones being evicted first, or {@code 0} if the number of tokens of the
+     *     wiki is only limited by {@link #getMaxTokens()}
+     */
+    public int getMaxTokensPerWiki(String wikiId)
+    {
+        // The configuration source reads the configuration of the current wiki.
+        XWikiContext context = this.contextProvider.get();
+        String currentWikiId = context.getWikiId();
+        try {
+            context.setWikiId(wikiId);
+            return this.configurationSource.getProperty("maxTokens",
+                this.xwikiPropertiesSource.getProperty(PREFIX + "tokenStore.maxTokensPerWiki", 0));
+        } finally {
+            context.setWikiId(currentWikiId);
+        }
+    }
+
+    /**
+     * @return the directory where the file based token store keeps its data, or {@code null} to use the permanent
+     *     directory. Multiple XWiki instances can share the delegated tokens by using the same directory
+     */
+    public String getTokenStoreDirectory()
+    {
+        return this.xwikiPropertiesSource.getProperty(PREFIX + "tokenStore.file.directory", String.class);
+    }
+
+    /**
+     * @return the secret used to sign the delegated tokens when they are not stored, or {@code null} to use a key
+     *     generated in the token store directory. Multiple XWiki instances can validate each other's tokens by using
+     *     the same secret
+     */
+    public String getTokenSigningKey()
+    {
+        return this.xwikiPropertiesSource.getProperty(PREFIX + "tokenStore.signed.key", String.class);
+    }
+
+    /**
+     * @return {@code true} if the rendered viewers only carry a signed reference to their delegated tokens, the tokens
+     *     being issued when the viewers request the files, or {@code false} to issue the tokens while rendering
+     */
+    public boolean isLazyTokenIssuance()
+    {
+        return this.xwikiPropertiesSource.getProperty(PREFIX + "tokenIssuance.lazy", false);
+    }
+
+    /**
+     * @return the maximum number of token invalidations waiting to be applied in the background, the next ones being
+     *     applied on the thread requesting them
+     */
+    public int getInvalidationQueueSize()
+    {
+        int size = this.xwikiPropertiesSource.getProperty(PREFIX + "tokenInvalidation.queueSize",
+            DEFAULT_INVALIDATION_QUEUE_SIZE);
+        return size > 0 ? size : DEFAULT_INVALIDATION_QUEUE_SIZE;
+    }
+
+    /**
+     * @return the number of bytes of file content kept in memory, outside of the heap, to serve the most requested
+     *     files without reading them from the attachment store, or {@code 0} to disable the content cache
+     */
+    public long getContentCacheSize()
+    {
+        return Math.max(0L, this.xwikiPropertiesSource.getProperty(PREFIX + "contentCache.size",
+            DEFAULT_CONTENT_CACHE_SIZE));
+    }
+
+    /**
+     * @return the maximum number of files of a macro resolved concurrently, including the file resolved by the
+     *     rendering thread, or {@code 1} to resolve them one after the other on the rendering thread; the other threads
+     *     are shared by all the requests
+     */
+    public int getResolutionThreads()
+    {
+        return Math.max(1, this.xwikiPropertiesSource.getProperty(PREFIX + "resolution.threads",
+            DEFAULT_RESOLUTION_THREADS));
+    }
+}
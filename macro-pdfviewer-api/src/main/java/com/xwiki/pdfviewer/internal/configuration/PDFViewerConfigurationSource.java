@@ -0,0 +1,74 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.configuration;
+
+import java.util.List;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.internal.AbstractDocumentConfigurationSource;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.LocalDocumentReference;
+import org.xwiki.model.reference.WikiReference;
+
+/**
+ * Provides the values stored in the {@code PDFViewer.Code.PDFViewerConfiguration} object of the current wiki.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component
+@Named(PDFViewerConfigurationSource.HINT)
+@Singleton
+public class PDFViewerConfigurationSource extends AbstractDocumentConfigurationSource
+{
+    /**
+     * The hint for the component.
+     */
+    public static final String HINT = "pdfviewer";
+
+    private static final List<String> CODE_SPACE = List.of("PDFViewer", "Code");
+
+    private static final LocalDocumentReference CONFIGURATION_REFERENCE =
+        new LocalDocumentReference(CODE_SPACE, "PDFViewerConfiguration");
+
+    private static final LocalDocumentReference CONFIGURATION_CLASS_REFERENCE =
+        new LocalDocumentReference(CODE_SPACE, "PDFViewerConfigurationClass");
+
+    @Override
+    protected DocumentReference getDocumentReference()
+    {
+        return new DocumentReference(CONFIGURATION_REFERENCE, new WikiReference(this.wikiManager.getCurrentWikiId()));
+    }
+
+    @Override
+    protected LocalDocumentReference getClassReference()
+    {
+        return CONFIGURATION_CLASS_REFERENCE;
+    }
+
+    @Override
+    protected String getCacheId()
+    {
+        return "configuration.document.pdfviewer";
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.content;
+
+import java.io.File;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.store.filesystem.internal.FilesystemStoreTools;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.store.XWikiAttachmentStoreInterface;
+
+/**
+ * Finds the files holding the content of the attachments kept in the file system attachment store, so that their
+ * content can be transferred without being read by the JVM, see {@link ContentWriter}.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component(roles = AttachmentContentFiles.class)
+@Singleton
+public class AttachmentContentFiles
+{
+    private static final String FILE_STORE = "file";
+
+    /**
+     * Looked up only for the attachments of the file system store, which provides it.
+     */
+    @Inject
+    private Provider<FilesystemStoreTools> storeTools;
+
+    /**
+     * @param attachment an attachment
+     * @param context the current context
+     * @return the file holding the current content of the given attachment, or {@code null} if the attachment is not
+     *     kept in the file system store
+     */
+    public File getContentFile(XWikiAttachment attachment, XWikiContext context)
+    {
+        String contentStore = attachment.getContentStore();
+        if (contentStore == null) {
+            XWikiAttachmentStoreInterface defaultStore = context.getWiki().getDefaultAttachmentContentStore();
+            contentStore = defaultStore != null ? defaultStore.getHint() : null;
+        }
+        if (!FILE_STORE.equals(contentStore)) {
+            return null;
+        }
+        File file = this.storeTools.get().getAttachmentFileProvider(attachment.getReference())
+            .getAttachmentContentFile();
+        // The file of an attachment being updated doesn't match the attachment metadata.
+        return file.isFile() && file.length() == attachment.getLongSize() ? file : null;
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.content;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Remembers whether the documents exist and the metadata of their attachments, so that checking a file or reading its
+ * content doesn't load the whole document when it is not in the document cache. The metadata of a document is
+ * dropped as soon as the document changes, see {@code PDFViewerContentListener}.
+ * <p>
+ * The missing documents, typically referenced by macros whose file was deleted or mistyped, are remembered in a
+ * separate cache for a short time only, so that they can't evict the metadata of the existing documents and so that
+ * a missed event doesn't hide a document for long. The missing attachments of an existing document are answered by
+ * the metadata of the document.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component(roles = AttachmentMetadataCache.class)
+@Singleton
+public class AttachmentMetadataCache implements Initializable, Disposable
+{
+    private static final int CACHE_SIZE = 10000;
+
+    private static final int MISSING_CACHE_SIZE = 10000;
+
+    /**
+     * The number of seconds during which a missing document is remembered.
+     */
+    private static final int MISSING_CACHE_LIFESPAN = 60;
+
+    /**
+     * The metadata needed to check an attachment and to read its content from the attachment store.
+     */
+    private static final class AttachmentMetadata
+    {
+        private final long size;
+
+        private final String version;
+
+        private final Date date;
+
+        private final String mimeType;
+
+        private final String contentStore;
+
+        AttachmentMetadata(XWikiAttachment attachment)
+        {
+            this.size = attachment.getLongSize();
+            this.version = attachment.getVersion();
+            this.date = attachment.getDate();
+            this.mimeType = attachment.getMimeType();
+            this.contentStore = attachment.getContentStore();
+        }
+    }
+
+    /**
+     * The metadata of the attachments of a document, or of a missing document.
+     */
+    private static final class DocumentMetadata
+    {
+        private final boolean exists;
+
+        private final Map<String, AttachmentMetadata> attachments;
+
+        DocumentMetadata(boolean exists, Map<String, AttachmentMetadata> attachments)
+        {
+            this.exists = exists;
+            this.attachments = attachments;
+        }
+    }
+
+    private static final DocumentMetadata MISSING_DOCUMENT = new DocumentMetadata(false, Map.of());
+
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    private Cache<DocumentMetadata> cache;
+
+    private Cache<Boolean> missingCache;
+
+    /**
+     * Incremented on each invalidation, so that the metadata loaded before an invalidation is not cached after it.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        LRUCacheConfiguration configuration = new LRUCacheConfiguration("pdfviewer.attachment.metadata", CACHE_SIZE);
+        LRUCacheConfiguration missingConfiguration =
+            new LRUCacheConfiguration("pdfviewer.attachment.missing", MISSING_CACHE_SIZE);
+        missingConfiguration.getLRUEvictionConfiguration().setLifespan(MISSING_CACHE_LIFESPAN);
+        try {
+            this.cache = this.cacheManager.createNewCache(configuration);
+            this.missingCache = this.cacheManager.createNewCache(missingConfiguration);
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the attachment metadata cache.", e);
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.cache.dispose();
+        this.missingCache.dispose();
+    }
+
+    /**
+     * @param document a document reference
+     * @return {@code true} if the document exists, {@code false} otherwise
+     * @throws XWikiException if the document fails to be loaded
+     */
+    public boolean exists(DocumentReference document) throws XWikiException
+    {
+        return get(document).exists;
+    }
+
+    /**
+     * @param attachment an attachment reference
+     * @return {@code true} if the attachment exists, {@code false} otherwise
+     * @throws XWikiException if the document of the attachment fails to be loaded
+     */
+    public boolean exists(AttachmentReference attachment) throws XWikiException
+    {
+        return get(attachment.getDocumentReference()).attachments.containsKey(attachment.getName());
+    }
+
+    /**
+     * Gives access to the attachment metadata and content without loading its document. The returned attachment is
+     * attached to an empty document, so only its metadata and content can be used.
+     *
+     * @param reference an attachment reference
+     * @return the attachment, or {@code null} if it doesn't exist
+     * @throws XWikiException if the document of the attachment fails to be loaded
+     */
+    public XWikiAttachment getAttachment(AttachmentReference reference) throws XWikiException
+    {
+        AttachmentMetadata metadata = get(reference.getDocumentReference()).attachments.get(reference.getName());
+        if (metadata == null) {
+            return null;
+        }
+        XWikiAttachment attachment = new XWikiAttachment(new XWikiDocument(reference.getDocumentReference()),
+            reference.getName());
+        attachment.setLongSize(metadata.size);
+        attachment.setVersion(metadata.version);
+        attachment.setDate(metadata.date);
+        attachment.setMimeType(metadata.mimeType);
+        attachment.setContentStore(metadata.contentStore);
+        return attachment;
+    }
+
+    /**
+     * Forgets the metadata of the given document.
+     *
+     * @param document the updated, created or deleted document
+     */
+    public void invalidate(DocumentReference document)
+    {
+        this.generation.incrementAndGet();
+        String key = this.serializer.serialize(document);
+        this.cache.remove(key);
+        this.missingCache.remove(key);
+    }
+
+    /**
+     * Forgets the metadata of all the documents.
+     */
+    public void invalidateAll()
+    {
+        this.generation.incrementAndGet();
+        this.cache.removeAll();
+        this.missingCache.removeAll();
+    }
+
+    private DocumentMetadata get(DocumentReference reference) throws XWikiException
+    {
+        String key = this.serializer.serialize(reference);
+        if (this.missingCache.get(key) != null) {
+            return MISSING_DOCUMENT;
+        }
+        DocumentMetadata metadata = this.cache.get(key);
+        if (metadata == null) {
+            long currentGeneration = this.generation.get();
+            metadata = load(reference);
+            if (currentGeneration != this.generation.get()) {
+                return metadata;
+            }
+            if (metadata.exists) {
+                this.cache.set(key, metadata);
+            } else {
+                this.missingCache.set(key, Boolean.TRUE);
+            }
+        }
+        return metadata;
+    }
+
+    private DocumentMetadata load(DocumentReference reference) throws XWikiException
+    {
+        XWikiContext context = this.contextProvider.get();
+        XWikiDocument document = context.getWiki().getDocument(reference, context);
+        if (document.isNew()) {
+            return MISSING_DOCUMENT;
+        }
+        Map<String, AttachmentMetadata> attachments = new HashMap<>();
+        for (XWikiAttachment attachment : document.getAttachmentList()) {
+            attachments.put(attachment.getFilename(), new AttachmentMetadata(attachment));
+        }
+        return new DocumentMetadata(true, attachments);
+    }
+}
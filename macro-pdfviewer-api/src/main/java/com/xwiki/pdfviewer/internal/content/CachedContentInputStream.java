@@ -0,0 +1,159 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.content;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.io.IOUtils;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiAttachment;
+
+/**
+ * Reads an attachment content through the {@link ContentBlockCache}. The attachment store is only read for the blocks
+ * that are not cached, sequentially when possible.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+class CachedContentInputStream extends InputStream
+{
+    private final ContentBlockCache cache;
+
+    private final XWikiAttachment attachment;
+
+    private final XWikiContext context;
+
+    private final long contentLength;
+
+    private long position;
+
+    private long blockIndex = -1;
+
+    private ByteBuffer block;
+
+    private InputStream source;
+
+    private long sourcePosition;
+
+    private byte[] buffer;
+
+    CachedContentInputStream(ContentBlockCache cache, XWikiAttachment attachment, XWikiContext context)
+    {
+        this.cache = cache;
+        this.attachment = attachment;
+        this.context = context;
+        this.contentLength = attachment.getLongSize();
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        byte[] singleByte = new byte[1];
+        return read(singleByte, 0, 1) < 0 ? -1 : singleByte[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException
+    {
+        if (length == 0) {
+            return 0;
+        }
+        if (this.position >= this.contentLength) {
+            return -1;
+        }
+        ByteBuffer data = getBlock(this.position / ContentBlockCache.BLOCK_SIZE);
+        int blockOffset = (int) (this.position % ContentBlockCache.BLOCK_SIZE);
+        int count = Math.min(length, data.limit() - blockOffset);
+        if (count <= 0) {
+            // The content is shorter than the attachment size.
+            return -1;
+        }
+        data.position(blockOffset);
+        data.get(bytes, offset, count);
+        this.position += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long count)
+    {
+        long skipped = Math.max(0, Math.min(count, this.contentLength - this.position));
+        this.position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (this.source != null) {
+            this.source.close();
+            this.source = null;
+        }
+    }
+
+    private ByteBuffer getBlock(long index) throws IOException
+    {
+        if (index != this.blockIndex) {
+            ContentBlockCache.BlockKey key = new ContentBlockCache.BlockKey(this.attachment.getReference(),
+                this.attachment.getVersion(), this.attachment.getDate() != null ? this.attachment.getDate().getTime()
+                : 0, index);
+            ByteBuffer data = this.cache.get(key);
+            if (data == null) {
+                int length = load(index);
+                this.cache.put(key, this.buffer, length);
+                data = ByteBuffer.wrap(this.buffer, 0, length).slice();
+            }
+            this.block = data;
+            this.blockIndex = index;
+        }
+        return this.block;
+    }
+
+    /**
+     * Reads the given block from the attachment store into the buffer.
+     *
+     * @return the length of the block
+     */
+    private int load(long index) throws IOException
+    {
+        long blockStart = index * ContentBlockCache.BLOCK_SIZE;
+        if (this.source == null || this.sourcePosition != blockStart) {
+            close();
+            try {
+                this.source = this.attachment.getContentInputStream(this.context);
+            } catch (XWikiException e) {
+                throw new IOException("Failed to read the attachment content.", e);
+            }
+            // Rely on the skip implementation of the store first, since it can avoid reading the skipped bytes.
+            long skipped = Math.max(0, this.source.skip(blockStart));
+            this.sourcePosition = skipped + IOUtils.skip(this.source, blockStart - skipped);
+        }
+        if (this.buffer == null) {
+            this.buffer = new byte[ContentBlockCache.BLOCK_SIZE];
+        }
+        int length = IOUtils.read(this.source, this.buffer);
+        this.sourcePosition += length;
+        return length;
+    }
+}
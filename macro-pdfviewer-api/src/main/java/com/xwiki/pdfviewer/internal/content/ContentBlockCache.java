@@ -0,0 +1,328 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.content;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.model.reference.AttachmentReference;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xwiki.pdfviewer.internal.configuration.PDFViewerConfiguration;
+
+/**
+ * Keeps the most requested blocks of file content outside of the heap, so that the popular files are not read from the
+ * attachment store, often the database, on each request. The blocks are identified by the attachment version, so the
+ * blocks of an outdated version are never served, and they are evicted since they are not used anymore.
+ * <p>
+ * The eviction is frequency aware: the least frequently used block of a sample is evicted, and only by a block used
+ * more often, so that reading a file once doesn't evict the popular blocks. The samples are taken in turn from all the
+ * cached blocks, so that an eviction doesn't scan the whole cache. The frequencies are halved periodically, so that the
+ * blocks that were popular in the past are evicted eventually. The statistics are logged at debug level each time.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component(roles = ContentBlockCache.class)
+@Singleton
+public class ContentBlockCache implements Initializable
+{
+    /**
+     * The size of the content blocks, large enough to read the attachment store efficiently and small enough for the
+     * byte ranges requested by the viewer.
+     */
+    static final int BLOCK_SIZE = 256 * 1024;
+
+    /**
+     * The number of accesses between two frequency halvings, per cached block.
+     */
+    private static final int AGING_PERIOD = 10;
+
+    /**
+     * The number of cached blocks compared to choose the block to evict.
+     */
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+
+    /**
+     * Identifies a content block.
+     */
+    static final class BlockKey
+    {
+        private final AttachmentReference attachment;
+
+        private final String version;
+
+        private final long date;
+
+        private final long index;
+
+        BlockKey(AttachmentReference attachment, String version, long date, long index)
+        {
+            this.attachment = attachment;
+            this.version = version;
+            this.date = date;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object object)
+        {
+            if (this == object) {
+                return true;
+            }
+            if (!(object instanceof BlockKey)) {
+                return false;
+            }
+            BlockKey other = (BlockKey) object;
+            return this.index == other.index && this.date == other.date && this.attachment.equals(other.attachment)
+                && Objects.equals(this.version, other.version);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(this.attachment, this.version, this.date, this.index);
+        }
+    }
+
+    private static final class Block
+    {
+        private final ByteBuffer data;
+
+        private final AtomicInteger frequency = new AtomicInteger(1);
+
+        Block(ByteBuffer data)
+        {
+            this.data = data;
+        }
+    }
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private PDFViewerConfiguration configuration;
+
+    private long budget;
+
+    private int agingThreshold;
+
+    private final Map<BlockKey, Block> blocks = new ConcurrentHashMap<>();
+
+    /**
+     * The access frequencies of the blocks that are not cached, used to decide whether they should replace a cached
+     * block.
+     */
+    private final Map<BlockKey, AtomicInteger> missFrequencies = new ConcurrentHashMap<>();
+
+    private final AtomicLong accesses = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong residentBytes = new AtomicLong();
+
+    /**
+     * Guards {@link #evictionCursor}.
+     */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /**
+     * The position of the next eviction sample among the cached blocks.
+     */
+    private Iterator<Map.Entry<BlockKey, Block>> evictionCursor;
+
+    @Override
+    public void initialize()
+    {
+        this.budget = this.configuration.getContentCacheSize();
+        this.agingThreshold = (int) Math.max(1, this.budget / BLOCK_SIZE) * AGING_PERIOD;
+    }
+
+    /**
+     * @return {@code true} if the file content can be cached, {@code false} if the cache is disabled
+     */
+    public boolean isEnabled()
+    {
+        return this.budget >= BLOCK_SIZE;
+    }
+
+    /**
+     * Opens the content of the given attachment, serving the cached blocks from memory and caching the blocks read
+     * from the attachment store. Skipping the content doesn't read it.
+     *
+     * @param attachment the attachment to read
+     * @param context the context used to read the attachment content
+     * @return the attachment content
+     */
+    public InputStream getContentInputStream(XWikiAttachment attachment, XWikiContext context)
+    {
+        return new CachedContentInputStream(this, attachment, context);
+    }
+
+    /**
+     * @return the cache statistics, to tune the cache size, also logged at debug level each time the frequencies are
+     *     halved
+     */
+    public Map<String, Long> getStatistics()
+    {
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        long hitCount = this.hits.get();
+        long requests = hitCount + this.misses.get();
+        statistics.put("hits", hitCount);
+        statistics.put("misses", this.misses.get());
+        statistics.put("hitRatio", requests > 0 ? hitCount * 100 / requests : 0L);
+        statistics.put("evictions", this.evictions.get());
+        statistics.put("residentBytes", this.residentBytes.get());
+        statistics.put("blocks", (long) this.blocks.size());
+        return statistics;
+    }
+
+    /**
+     * @return the data of the given block, positioned at its start, or {@code null} if the block is not cached
+     */
+    ByteBuffer get(BlockKey key)
+    {
+        maybeAge();
+        Block block = this.blocks.get(key);
+        if (block == null) {
+            this.misses.incrementAndGet();
+            this.missFrequencies.computeIfAbsent(key, missedKey -> new AtomicInteger()).incrementAndGet();
+            return null;
+        }
+        this.hits.incrementAndGet();
+        block.frequency.incrementAndGet();
+        // Each reader has its own position.
+        return block.data.duplicate();
+    }
+
+    /**
+     * Caches the given block if its access frequency is higher than the one of the blocks it would evict.
+     *
+     * @param key the block identifier
+     * @param data the block content
+     * @param length the length of the block content
+     */
+    void put(BlockKey key, byte[] data, int length)
+    {
+        if (length > this.budget || this.blocks.containsKey(key)) {
+            return;
+        }
+        AtomicInteger missFrequency = this.missFrequencies.get(key);
+        int frequency = missFrequency != null ? missFrequency.get() : 1;
+        // Reserve the space of the block, so that the concurrent puts don't exceed the budget.
+        long resident = this.residentBytes.get();
+        while (resident + length > this.budget || !this.residentBytes.compareAndSet(resident, resident + length)) {
+            if (resident + length > this.budget && !evict(frequency)) {
+                return;
+            }
+            resident = this.residentBytes.get();
+        }
+        // The evicted buffers are released by the garbage collector once their readers are done, so they are never
+        // reused while being read.
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        buffer.put(data, 0, length).flip();
+        Block block = new Block(buffer.asReadOnlyBuffer());
+        block.frequency.set(frequency);
+        if (this.blocks.putIfAbsent(key, block) == null) {
+            this.missFrequencies.remove(key);
+        } else {
+            this.residentBytes.addAndGet(-length);
+        }
+    }
+
+    /**
+     * Evicts the least frequently used block of a sample, if it is used less often than the given frequency.
+     *
+     * @return {@code true} if a block was evicted, or evicted concurrently, {@code false} otherwise
+     */
+    private boolean evict(int frequency)
+    {
+        Map.Entry<BlockKey, Block> victim = sampleLeastFrequentlyUsed();
+        // A block must be used more often than the block it evicts, so that reading a large file once doesn't flush
+        // the cache.
+        if (victim == null || victim.getValue().frequency.get() >= frequency) {
+            return false;
+        }
+        if (this.blocks.remove(victim.getKey(), victim.getValue())) {
+            this.residentBytes.addAndGet(-victim.getValue().data.capacity());
+            this.evictions.incrementAndGet();
+        }
+        return true;
+    }
+
+    private Map.Entry<BlockKey, Block> sampleLeastFrequentlyUsed()
+    {
+        Map.Entry<BlockKey, Block> leastFrequentlyUsed = null;
+        this.evictionLock.lock();
+        try {
+            for (int i = 0; i < EVICTION_SAMPLE_SIZE; i++) {
+                if (this.evictionCursor == null || !this.evictionCursor.hasNext()) {
+                    // The iterators of the concurrent map reflect the blocks cached or evicted meanwhile.
+                    this.evictionCursor = this.blocks.entrySet().iterator();
+                    if (!this.evictionCursor.hasNext()) {
+                        break;
+                    }
+                }
+                Map.Entry<BlockKey, Block> entry = this.evictionCursor.next();
+                if (leastFrequentlyUsed == null
+                    || entry.getValue().frequency.get() < leastFrequentlyUsed.getValue().frequency.get())
+                {
+                    leastFrequentlyUsed = entry;
+                }
+            }
+        } finally {
+            this.evictionLock.unlock();
+        }
+        return leastFrequentlyUsed;
+    }
+
+    private void maybeAge()
+    {
+        if (this.accesses.incrementAndGet() % this.agingThreshold == 0) {
+            this.blocks.values().forEach(block -> block.frequency.updateAndGet(frequency -> frequency / 2));
+            Iterator<AtomicInteger> iterator = this.missFrequencies.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().updateAndGet(frequency -> frequency / 2) == 0) {
+                    iterator.remove();
+                }
+            }
+            this.logger.debug("PDF content cache statistics: [{}]", getStatistics());
+        }
+    }
+}
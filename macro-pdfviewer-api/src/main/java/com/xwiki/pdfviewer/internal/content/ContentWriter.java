@@ -0,0 +1,125 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.content;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+
+/**
+ * Writes the file content to the response without copying it through new heap buffers. The content of the attachments
+ * kept on the file system is transferred by their file channel, which lets the operating system send the file directly
+ * when the response channel allows it. The other content is copied through a pool of direct buffers shared by the
+ * requests.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component(roles = ContentWriter.class)
+@Singleton
+public class ContentWriter
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The number of pooled buffers, the requests copying content when all of them are used getting a temporary one.
+     */
+    private static final int POOL_SIZE = 64;
+
+    private static final String TRUNCATED_CONTENT = "The attachment content is shorter than its declared size.";
+
+    private final BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    /**
+     * Transfers the given range of the file, without moving the position of its channel.
+     *
+     * @param content the file to write, closed by the caller
+     * @param position the position of the first byte to write
+     * @param length the number of bytes to write
+     * @param output the response output
+     * @throws IOException if the file is shorter than expected, or if reading or writing it fails
+     */
+    public void transfer(FileChannel content, long position, long length, OutputStream output) throws IOException
+    {
+        WritableByteChannel target = getChannel(output);
+        long current = position;
+        long end = position + length;
+        while (current < end) {
+            long transferred = content.transferTo(current, end - current, target);
+            if (transferred <= 0) {
+                throw new EOFException(TRUNCATED_CONTENT);
+            }
+            current += transferred;
+        }
+    }
+
+    /**
+     * Writes the given number of bytes of the content, from its current position.
+     *
+     * @param content the content to write, closed by the caller
+     * @param length the number of bytes to write
+     * @param output the response output
+     * @throws IOException if the content is shorter than expected, or if reading or writing it fails
+     */
+    public void write(InputStream content, long length, OutputStream output) throws IOException
+    {
+        // The channels are not closed, since they would close the content and the response output.
+        ReadableByteChannel source = Channels.newChannel(content);
+        WritableByteChannel target = getChannel(output);
+        ByteBuffer buffer = this.buffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+                int count = source.read(buffer);
+                if (count < 0) {
+                    throw new EOFException(TRUNCATED_CONTENT);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                remaining -= count;
+            }
+        } finally {
+            this.buffers.offer(buffer);
+        }
+    }
+
+    private static WritableByteChannel getChannel(OutputStream output)
+    {
+        return output instanceof WritableByteChannel ? (WritableByteChannel) output : Channels.newChannel(output);
+    }
+}
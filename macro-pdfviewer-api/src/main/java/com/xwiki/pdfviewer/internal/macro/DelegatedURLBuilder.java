@@ -0,0 +1,107 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.macro;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.pdfviewer.internal.configuration.PDFViewerConfiguration;
+import com.xwiki.pdfviewer.internal.token.DelegatedTokenManager;
+import com.xwiki.pdfviewer.internal.token.DelegatedTokenReferences;
+import com.xwiki.pdfviewer.macro.PDFFile;
+
+/**
+ * Sets the URLs of the attachments whose view rights are delegated, pointing to their access token, or to a signed
+ * reference to it when the tokens are issued lazily, see {@link DelegatedTokenReferences}.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component(roles = DelegatedURLBuilder.class)
+@Singleton
+public class DelegatedURLBuilder
+{
+    private static final String PDF_CONTENT_FORMAT = "%s/rest/pdfmacro/contents?access_token=%s";
+
+    private static final String PDF_TOKEN_FORMAT = "%s/rest/pdfmacro/token?reference=%s";
+
+    @Inject
+    private Provider<XWikiContext> wikiContextProvider;
+
+    @Inject
+    private DelegatedTokenManager tokenManager;
+
+    @Inject
+    private DelegatedTokenReferences tokenReferences;
+
+    @Inject
+    private PDFViewerConfiguration configuration;
+
+    @Inject
+    private ResolutionContext resolutionContext;
+
+    /**
+     * Sets the URLs of the viewable attachments whose view rights are delegated, issuing all their tokens at once, or
+     * only referencing them when the tokens are issued lazily.
+     *
+     * @param pdfFiles the resolved files, possibly for several macros of the same document
+     */
+    public void setURLs(List<PDFFile> pdfFiles)
+    {
+        List<PDFFile> delegatedFiles = pdfFiles.stream()
+            .filter(pdfFile -> pdfFile.areViewRightsDelegated() && pdfFile.hasViewRights()
+                && StringUtils.isEmpty(pdfFile.getURL()) && pdfFile.getAttachmentReference().isPresent())
+            .collect(Collectors.toList());
+        if (delegatedFiles.isEmpty()) {
+            return;
+        }
+        XWikiContext wikiContext = wikiContextProvider.get();
+        XWikiDocument sdoc = (XWikiDocument) wikiContext.get(XWikiDocument.CKEY_SDOC);
+        DocumentReference currentAuthor = resolutionContext.getContentAuthor(sdoc);
+        List<AttachmentReference> attachmentReferences = delegatedFiles.stream()
+            .map(pdfFile -> pdfFile.getAttachmentReference().get()).collect(Collectors.toList());
+        String contextPath = wikiContext.getRequest().getContextPath();
+        // The tokens and the token references are URL safe, so they don't need to be encoded.
+        if (configuration.isLazyTokenIssuance()) {
+            for (int i = 0; i < delegatedFiles.size(); i++) {
+                String reference =
+                    tokenReferences.create(currentAuthor, attachmentReferences.get(i), sdoc.getDocumentReference());
+                delegatedFiles.get(i).setUrl(String.format(PDF_TOKEN_FORMAT, contextPath, reference));
+            }
+        } else {
+            List<String> tokenIds =
+                tokenManager.getTokens(currentAuthor, attachmentReferences, sdoc.getDocumentReference());
+            for (int i = 0; i < delegatedFiles.size(); i++) {
+                delegatedFiles.get(i).setUrl(String.format(PDF_CONTENT_FORMAT, contextPath, tokenIds.get(i)));
+            }
+        }
+    }
+}
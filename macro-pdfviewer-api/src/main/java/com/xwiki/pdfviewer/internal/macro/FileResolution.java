@@ -0,0 +1,118 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.macro;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.xpn.xwiki.XWikiException;
+import com.xwiki.pdfviewer.macro.PDFFile;
+
+/**
+ * The resolution of the files of a macro, shared by the rendering thread and the threads helping it. Each thread
+ * claims the next file that is not resolved yet, so the rendering thread never waits for a file that no thread started
+ * to resolve, and the helpers that start late find nothing left to do.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+final class FileResolution implements Runnable
+{
+    private final List<String> files;
+
+    private final FileResolutionExecutor.FileResolver resolver;
+
+    private final List<CompletableFuture<PDFFile>> results = new ArrayList<>();
+
+    private final AtomicInteger nextFile = new AtomicInteger();
+
+    private volatile boolean failed;
+
+    /**
+     * @param files the attachment references, attachment URLs or external PDF URLs
+     * @param resolver resolves a single file
+     */
+    FileResolution(List<String> files, FileResolutionExecutor.FileResolver resolver)
+    {
+        this.files = files;
+        this.resolver = resolver;
+        files.forEach(file -> this.results.add(new CompletableFuture<>()));
+    }
+
+    /**
+     * Resolves the files that are not claimed yet, until there are none left or one of them fails.
+     */
+    @Override
+    public void run()
+    {
+        int index;
+        while (!this.failed && (index = this.nextFile.getAndIncrement()) < this.files.size()) {
+            CompletableFuture<PDFFile> result = this.results.get(index);
+            try {
+                result.complete(this.resolver.resolve(this.files.get(index)));
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            } finally {
+                // An error leaves the result incomplete, and the rendering thread must not wait for it.
+                result.cancel(false);
+                if (result.isCompletedExceptionally()) {
+                    this.failed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the files claimed by the other threads. Must be called after {@link #run()}, so that all the files are
+     * claimed, or one of them failed before the first file that is not claimed.
+     *
+     * @return the resolved files, in the same order as the given files
+     * @throws XWikiException if an error occurs while resolving a file
+     */
+    List<PDFFile> getResults() throws XWikiException
+    {
+        List<PDFFile> pdfFiles = new ArrayList<>();
+        for (CompletableFuture<PDFFile> result : this.results) {
+            pdfFiles.add(get(result));
+        }
+        return pdfFiles;
+    }
+
+    private static PDFFile get(CompletableFuture<PDFFile> result) throws XWikiException
+    {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XWikiException("Interrupted while resolving the PDF files.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof XWikiException) {
+                throw (XWikiException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new XWikiException("Failed to resolve the PDF files.", cause);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.macro;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xwiki.pdfviewer.internal.configuration.PDFViewerConfiguration;
+import com.xwiki.pdfviewer.macro.PDFFile;
+
+/**
+ * Resolves the files of a macro concurrently, so that the rendering waits for the slowest file instead of the sum of
+ * all of them, e.g. when their documents are not in the document cache. The rendering thread resolves files too, helped
+ * by the idle threads of a shared pool. The helpers resolve the files with a copy of the execution context and of the
+ * XWiki context of the rendering thread, so they see the same user, document and request.
+ * <p>
+ * The pool is bounded, see {@link PDFViewerConfiguration#getResolutionThreads()}, and has no queue: when its threads
+ * are all busy, the rendering thread resolves all the files itself, instead of waiting behind the files of the other
+ * requests.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component(roles = FileResolutionExecutor.class)
+@Singleton
+public class FileResolutionExecutor implements Initializable, Disposable
+{
+    private static final long KEEP_ALIVE_TIME = 60;
+
+    /**
+     * Resolves a single file.
+     */
+    @FunctionalInterface
+    public interface FileResolver
+    {
+        /**
+         * @param file the attachment reference, attachment URL or external PDF URL
+         * @return the resolved file
+         * @throws XWikiException if an error occurs while resolving the file
+         */
+        PDFFile resolve(String file) throws XWikiException;
+    }
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    @Inject
+    private Provider<XWikiContext> wikiContextProvider;
+
+    @Inject
+    private PDFViewerConfiguration configuration;
+
+    /**
+     * The executor, or {@code null} if the files are resolved one after the other.
+     */
+    private ThreadPoolExecutor executor;
+
+    @Override
+    public void initialize()
+    {
+        // The rendering thread is one of the threads resolving the files.
+        int helpers = this.configuration.getResolutionThreads() - 1;
+        if (helpers > 0) {
+            this.executor = new ThreadPoolExecutor(helpers, helpers, KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                new BasicThreadFactory.Builder().namingPattern("PDF Viewer file resolution %d").daemon(true).build());
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.executor != null) {
+            // Let the helpers finish their file without interrupting them, the rendering threads waiting for them.
+            this.executor.shutdown();
+        }
+    }
+
+    /**
+     * Resolves the given files. The values stored in the execution context afterwards are not shared with the helpers,
+     * which work on a copy of it, so the values meant to be shared must be stored before calling this method.
+     *
+     * @param files the attachment references, attachment URLs or external PDF URLs
+     * @param resolver resolves a single file
+     * @return the resolved files, in the same order as the given files
+     * @throws XWikiException if an error occurs while resolving a file
+     */
+    public List<PDFFile> resolve(List<String> files, FileResolver resolver) throws XWikiException
+    {
+        ExecutionContext parentContext = this.execution.getContext();
+        if (this.executor == null || files.size() < 2 || parentContext == null) {
+            List<PDFFile> pdfFiles = new ArrayList<>();
+            for (String file : files) {
+                pdfFiles.add(resolver.resolve(file));
+            }
+            return pdfFiles;
+        }
+
+        FileResolution resolution = new FileResolution(files, resolver);
+        XWikiContext wikiContext = this.wikiContextProvider.get();
+        List<Future<?>> helpers = new ArrayList<>();
+        try {
+            // Skip copying the contexts when no thread is idle.
+            while (helpers.size() < files.size() - 1
+                && this.executor.getActiveCount() < this.executor.getMaximumPoolSize())
+            {
+                Future<?> helper = submit(resolution, parentContext, wikiContext);
+                if (helper == null) {
+                    break;
+                }
+                helpers.add(helper);
+            }
+            resolution.run();
+            return resolution.getResults();
+        } finally {
+            // Don't interrupt the helpers, since interrupting the store I/O can close its channels. They stop after
+            // the file they resolve anyway, when the others are all claimed or one of them failed.
+            helpers.forEach(helper -> helper.cancel(false));
+        }
+    }
+
+    /**
+     * @return the helper, or {@code null} if no thread is available
+     */
+    private Future<?> submit(FileResolution resolution, ExecutionContext parentContext, XWikiContext wikiContext)
+    {
+        try {
+            // The contexts are copied on the rendering thread, which doesn't change them while the files are resolved.
+            ExecutionContext context = this.executionContextManager.clone(parentContext);
+            wikiContext.clone().declareInExecutionContext(context);
+            return this.executor.submit(() -> {
+                this.execution.setContext(context);
+                try {
+                    resolution.run();
+                } finally {
+                    this.execution.removeContext();
+                }
+            });
+        } catch (ExecutionContextException | RejectedExecutionException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.macro;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.MacroBlock;
+import org.xwiki.rendering.block.MetaDataBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.block.match.MacroBlockMatcher;
+import org.xwiki.rendering.block.match.MetadataBlockMatcher;
+import org.xwiki.rendering.listener.MetaData;
+
+/**
+ * Finds the macros of an XDOM that come from the same source as a given macro, i.e. that are executed with the rights
+ * of the same author.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+final class MacroSources
+{
+    private MacroSources()
+    {
+    }
+
+    /**
+     * @param block a macro block
+     * @param xdom the XDOM containing the given macro
+     * @return the standalone macros of the XDOM with the same identifier and source as the given macro, itself included
+     */
+    static List<MacroBlock> getSameSourceMacros(MacroBlock block, XDOM xdom)
+    {
+        String source = getSource(block);
+        return xdom.<MacroBlock>getBlocks(new MacroBlockMatcher(block.getId()), Block.Axes.DESCENDANT).stream()
+            .filter(macroBlock -> !macroBlock.isInline() && Objects.equals(source, getSource(macroBlock)))
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * @param block a block
+     * @return the reference of the document the given block comes from, or {@code null} if unknown
+     */
+    static String getSource(Block block)
+    {
+        MetaDataBlock metaDataBlock =
+            block.getFirstBlock(new MetadataBlockMatcher(MetaData.SOURCE), Block.Axes.ANCESTOR);
+        return metaDataBlock != null ? (String) metaDataBlock.getMetaData().getMetaData(MetaData.SOURCE) : null;
+    }
+}
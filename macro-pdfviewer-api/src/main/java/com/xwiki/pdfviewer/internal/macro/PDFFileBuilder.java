@@ -19,7 +19,7 @@
  */
 package com.xwiki.pdfviewer.internal.macro;
 
-import java.util.Base64;
+import java.util.List;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -31,22 +31,21 @@ import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.EntityReferenceResolver;
-import org.xwiki.security.authorization.AuthorizationManager;
-import org.xwiki.security.authorization.Right;
-import org.xwiki.user.UserReferenceSerializer;
 
-import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiAttachment;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xwiki.pdfviewer.internal.macro.authorization.PDFFileAuthorization;
 import com.xwiki.pdfviewer.internal.macro.authorization.PDFViewerAuthorizationManager;
+import com.xwiki.pdfviewer.internal.content.AttachmentMetadataCache;
 import com.xwiki.pdfviewer.internal.token.DelegatedTokenManager;
 import com.xwiki.pdfviewer.macro.PDFFile;
 
 /**
  * Builds {@link PDFFile} objects for PDF attachments by resolving references, while also validating view permissions.
+ * The access tokens of the attachments whose view rights are delegated are issued at once, once all the files of a
+ * macro are resolved, see {@link DelegatedURLBuilder}.
  *
  * @version $Id$
  * @since 2.7
@@ -55,11 +54,6 @@ import com.xwiki.pdfviewer.macro.PDFFile;
 @Singleton
 public class PDFFileBuilder
 {
-    private static final String PDF_CONTENT_FORMAT = "%s/rest/pdfmacro/contents?access_token=%s";
-
-    @Inject
-    private AuthorizationManager authorizationManager;
-
     @Inject
     @Named("resource/standardURL")
     private EntityReferenceResolver<String> urlEntityReferenceResolver;
@@ -72,14 +66,67 @@ public class PDFFileBuilder
     private Provider<XWikiContext> wikiContextProvider;
 
     @Inject
-    private DelegatedTokenManager tokenManager;
+    private AttachmentMetadataCache attachmentMetadataCache;
 
     @Inject
     private PDFViewerAuthorizationManager pdfViewerAuthManager;
 
     @Inject
-    @Named("document")
-    private UserReferenceSerializer<DocumentReference> documentUserSerializer;
+    private ResolutionContext resolutionContext;
+
+    @Inject
+    private FileResolutionExecutor fileResolutionExecutor;
+
+    @Inject
+    private DelegatedURLBuilder delegatedURLBuilder;
+
+    /**
+     * Builds the {@link PDFFile}s of the files displayed by a macro, issuing the access tokens of all the delegated
+     * attachments with a single call, see {@link DelegatedTokenManager#getTokens}.
+     *
+     * @param files the attachment references, attachment URLs or external PDF URLs
+     * @param delegatedRights {@code true} if the view rights have been delegated by the author, or {@code false}
+     *     otherwise
+     * @param ownerDocumentReference reference of the document that contains the files given by name
+     * @return the {@link PDFFile}s of the given files, in the same order
+     * @throws XWikiException if an error occurs while resolving references or during the authorization check
+     */
+    public List<PDFFile> build(List<String> files, boolean delegatedRights, String ownerDocumentReference)
+        throws XWikiException
+    {
+        List<PDFFile> pdfFiles = resolve(files, delegatedRights, ownerDocumentReference);
+        setTokenURLs(pdfFiles);
+        return pdfFiles;
+    }
+
+    /**
+     * Builds the {@link PDFFile}s of the files displayed by a macro without issuing the access tokens of the delegated
+     * attachments, so that the tokens of several macros can be issued at once with {@link #setTokenURLs(List)}.
+     *
+     * @param files the attachment references, attachment URLs or external PDF URLs
+     * @param delegatedRights {@code true} if the view rights have been delegated by the author, or {@code false}
+     *     otherwise
+     * @param ownerDocumentReference reference of the document that contains the files given by name
+     * @return the {@link PDFFile}s of the given files, in the same order, without the URL of the delegated attachments
+     * @throws XWikiException if an error occurs while resolving references or during the authorization check
+     */
+    public List<PDFFile> resolve(List<String> files, boolean delegatedRights, String ownerDocumentReference)
+        throws XWikiException
+    {
+        // The files are resolved concurrently, since each of them might need to load documents. The threads resolving
+        // them get a copy of the execution context, so the memo they share must be created first.
+        resolutionContext.prepare();
+        return fileResolutionExecutor.resolve(files, file -> {
+            //  If the url is not directly specified, the attachment reference can be taken either directly from the
+            //  file macro parameter, since an attachment picker is used, or by using both the file and document
+            //  parameters, for macros added in xwiki versions before 11.5.
+            if (file.startsWith("http://") || file.startsWith("https://")) {
+                return resolveExternalURL(file, delegatedRights);
+            } else {
+                return resolveInternalAttachment(file, delegatedRights, ownerDocumentReference);
+            }
+        });
+    }
 
     /**
      * Builds a {@link PDFFile} from a given URL. If the URL refers to an attachment within the current XWiki instance,
@@ -93,6 +140,38 @@ public class PDFFileBuilder
      * @throws XWikiException if an error occurs while resolving references or during the authorization check
      */
     public PDFFile handleExternalURL(String pdfURL, boolean delegatedRights) throws XWikiException
+    {
+        PDFFile pdfFile = resolveExternalURL(pdfURL, delegatedRights);
+        setTokenURLs(List.of(pdfFile));
+        return pdfFile;
+    }
+
+    /**
+     * Builds a {@link PDFFile} from an internal attachment reference. The method first attempts to resolve the
+     * attachment relative to the current document or to the provided owner document (for backwards compatibility). If
+     * the attachment is not found in those contexts, the {@code pdfFileReference} parameter is treated as a full
+     * attachment reference.
+     *
+     * @param pdfFileReference the attachment name or full attachment reference
+     * @param delegatedRights {@code true} if the view rights have been delegated by the author, or {@code false}
+     *     otherwise
+     * @param ownerDocumentReference reference of the document that contains the file
+     * @return a {@link PDFFile} containing the resolved attachment reference, access URL, and view rights
+     * @throws XWikiException if an error occurs while resolving the document, attachment, or during the
+     *     authorization check
+     */
+    public PDFFile handleInternalAttachment(String pdfFileReference, boolean delegatedRights,
+        String ownerDocumentReference) throws XWikiException
+    {
+        PDFFile pdfFile = resolveInternalAttachment(pdfFileReference, delegatedRights, ownerDocumentReference);
+        setTokenURLs(List.of(pdfFile));
+        return pdfFile;
+    }
+
+    /**
+     * Resolves the given URL, leaving the URL of a delegated attachment unset until its token is issued.
+     */
+    private PDFFile resolveExternalURL(String pdfURL, boolean delegatedRights) throws XWikiException
     {
         AttachmentReference attachmentReference =
             new AttachmentReference(urlEntityReferenceResolver.resolve(pdfURL, EntityType.ATTACHMENT));
@@ -111,9 +190,7 @@ public class PDFFileBuilder
             if (attachmentExists(attachmentReference) && fileAuth.hasViewRights()) {
                 pdfFile.setHasViewRights(fileAuth.hasViewRights());
                 pdfFile.setDelegatedViewRights(fileAuth.areViewRightsDelegated());
-                if (pdfFile.areViewRightsDelegated()) {
-                    pdfFile.setUrl(getTokenURL(attachmentReference));
-                } else {
+                if (!pdfFile.areViewRightsDelegated()) {
                     pdfFile.setUrl(pdfURL);
                 }
             }
@@ -122,20 +199,9 @@ public class PDFFileBuilder
     }
 
     /**
-     * Builds a {@link PDFFile} from an internal attachment reference. The method first attempts to resolve the
-     * attachment relative to the current document or to the provided owner document (for backwards compatibility). If
-     * the attachment is not found in those contexts, the {@code pdfFileReference} parameter is treated as a full
-     * attachment reference.
-     *
-     * @param pdfFileReference the attachment name or full attachment reference
-     * @param delegatedRights {@code true} if the view rights have been delegated by the author, or {@code false}
-     *     otherwise
-     * @param ownerDocumentReference reference of the document that contains the file
-     * @return a {@link PDFFile} containing the resolved attachment reference, access URL, and view rights
-     * @throws XWikiException if an error occurs while resolving the document, attachment, or during the
-     *     authorization check
+     * Resolves the given attachment, leaving the URL of a delegated attachment unset until its token is issued.
      */
-    public PDFFile handleInternalAttachment(String pdfFileReference, boolean delegatedRights,
+    private PDFFile resolveInternalAttachment(String pdfFileReference, boolean delegatedRights,
         String ownerDocumentReference) throws XWikiException
     {
         PDFFile pdfFile = new PDFFile();
@@ -150,9 +216,7 @@ public class PDFFileBuilder
             return getPDFFile(attachmentReference, delegatedRights);
         } else {
             pdfFile.setAttachmentReference(attachment.getReference());
-            if (pdfFile.areViewRightsDelegated() && pdfFile.hasViewRights()) {
-                pdfFile.setUrl(getTokenURL(attachment.getReference()));
-            } else if (pdfFile.hasViewRights()) {
+            if (!pdfFile.areViewRightsDelegated() && pdfFile.hasViewRights()) {
                 XWikiContext wikiContext = wikiContextProvider.get();
                 String url = ownerDocument.getAttachmentURL(attachment.getFilename(), wikiContext);
                 pdfFile.setUrl(url);
@@ -169,7 +233,9 @@ public class PDFFileBuilder
             pdfFile.setHasViewRights(fileAuthorization.hasViewRights());
             pdfFile.setDelegatedViewRights(fileAuthorization.areViewRightsDelegated());
             pdfFile.setAttachmentReference(attachmentRef);
-            pdfFile.setUrl(buildAttachmentURL(attachmentRef, pdfFile));
+            if (!pdfFile.areViewRightsDelegated()) {
+                pdfFile.setUrl(buildAttachmentURL(attachmentRef));
+            }
         }
         return pdfFile;
     }
@@ -182,8 +248,9 @@ public class PDFFileBuilder
         // full reference.
         XWikiContext wikiContext = wikiContextProvider.get();
         XWikiDocument attachmentDocument = wikiContext.getDoc();
-        if ((ownerDocumentReference == null || ownerDocumentReference.isEmpty()) && authorizationManager.hasAccess(
-            Right.VIEW, wikiContext.getUserReference(), attachmentDocument.getDocumentReference()))
+        DocumentReference currentUser = wikiContext.getUserReference();
+        if ((ownerDocumentReference == null || ownerDocumentReference.isEmpty())
+            && resolutionContext.hasViewAccess(currentUser, attachmentDocument.getDocumentReference()))
         {
             pdfFile.setHasViewRights(true);
         } else {
@@ -197,7 +264,7 @@ public class PDFFileBuilder
             if (attachmentExists(attachRef) && fileAuthorization.hasViewRights()) {
                 pdfFile.setHasViewRights(fileAuthorization.hasViewRights());
                 pdfFile.setDelegatedViewRights(fileAuthorization.areViewRightsDelegated());
-                attachmentDocument = wikiContext.getWiki().getDocument(givenDocumentReference, wikiContext);
+                attachmentDocument = resolutionContext.getDocument(givenDocumentReference);
             }
         }
         return attachmentDocument;
@@ -205,31 +272,26 @@ public class PDFFileBuilder
 
     private boolean attachmentExists(AttachmentReference attachmentReference) throws XWikiException
     {
-        XWikiContext wikiContext = wikiContextProvider.get();
-        XWiki wiki = wikiContext.getWiki();
-        XWikiDocument wikiDocument = wiki.getDocument(attachmentReference.getDocumentReference(), wikiContext);
-        return wikiDocument.getAttachment(attachmentReference.getName()) != null;
+        return attachmentMetadataCache.exists(attachmentReference);
     }
 
-    private String buildAttachmentURL(AttachmentReference attachmentReference, PDFFile pdfFile) throws XWikiException
+    private String buildAttachmentURL(AttachmentReference attachmentReference) throws XWikiException
     {
-        if (pdfFile.areViewRightsDelegated()) {
-            return getTokenURL(attachmentReference);
-        } else {
-            XWikiContext wikiContext = this.wikiContextProvider.get();
-            DocumentReference parentDocRef = new DocumentReference(attachmentReference.getParent());
-            XWikiDocument attachmentDocument = wikiContext.getWiki().getDocument(parentDocRef, wikiContext);
-            return attachmentDocument.getAttachmentURL(attachmentReference.getName(), wikiContext);
-        }
+        XWikiContext wikiContext = this.wikiContextProvider.get();
+        DocumentReference parentDocRef = new DocumentReference(attachmentReference.getParent());
+        XWikiDocument attachmentDocument = resolutionContext.getDocument(parentDocRef);
+        return attachmentDocument.getAttachmentURL(attachmentReference.getName(), wikiContext);
     }
 
-    private String getTokenURL(AttachmentReference attachmentReference)
+    /**
+     * Sets the URLs of the viewable attachments whose view rights are delegated, issuing all their tokens at once, or
+     * only referencing them when the tokens are issued lazily.
+     *
+     * @param pdfFiles the files resolved by {@link #resolve(List, boolean, String)}, possibly for several macros of
+     *     the same document
+     */
+    public void setTokenURLs(List<PDFFile> pdfFiles)
     {
-        XWikiContext wikiContext = wikiContextProvider.get();
-        XWikiDocument sdoc = (XWikiDocument) wikiContext.get(XWikiDocument.CKEY_SDOC);
-        DocumentReference currentAuthor = documentUserSerializer.serialize(sdoc.getAuthors().getContentAuthor());
-        String tokenId = tokenManager.getToken(currentAuthor, attachmentReference, sdoc.getDocumentReference());
-        String encodedToken = Base64.getUrlEncoder().encodeToString(tokenId.getBytes());
-        return String.format(PDF_CONTENT_FORMAT, wikiContext.getRequest().getContextPath(), encodedToken);
+        delegatedURLBuilder.setURLs(pdfFiles);
     }
 }
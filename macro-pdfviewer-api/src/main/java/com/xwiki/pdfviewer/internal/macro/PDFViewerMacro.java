@@ -24,6 +24,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -35,18 +36,20 @@ import org.apache.commons.lang.StringUtils;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.GroupBlock;
 import org.xwiki.rendering.block.MacroBlock;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.WordBlock;
 import org.xwiki.rendering.macro.AbstractMacro;
 import org.xwiki.rendering.macro.MacroExecutionException;
+import org.xwiki.rendering.syntax.Syntax;
+import org.xwiki.rendering.syntax.SyntaxType;
 import org.xwiki.rendering.transformation.MacroTransformationContext;
 import org.xwiki.script.ScriptContextManager;
 import org.xwiki.template.Template;
 import org.xwiki.template.TemplateManager;
 
 import com.xpn.xwiki.XWikiContext;
-import com.xpn.xwiki.XWikiException;
-import com.xwiki.licensing.Licensor;
-import com.xwiki.pdfviewer.internal.MJSMimeTypeRegistrar;
 import com.xwiki.pdfviewer.macro.PDFFile;
 import com.xwiki.pdfviewer.macro.PDFViewerMacroParameters;
 
@@ -63,7 +66,13 @@ public class PDFViewerMacro extends AbstractMacro<PDFViewerMacroParameters>
 {
     private static final String PDF_SEPARATOR = "(?<=\\.pdf),";
 
-    private final List<String> delegatedRightsValues = List.of("1", "true", "yes");
+    /**
+     * The target syntaxes in which the viewer can be displayed.
+     */
+    private static final Set<SyntaxType> INTERACTIVE_SYNTAX_TYPES =
+        Set.of(SyntaxType.XHTML, SyntaxType.HTML, SyntaxType.ANNOTATED_XHTML, SyntaxType.ANNOTATED_HTML);
+
+    private static final List<String> DELEGATED_RIGHTS_VALUES = List.of("1", "true", "yes");
 
     @Inject
     private TemplateManager templateManager;
@@ -71,17 +80,14 @@ public class PDFViewerMacro extends AbstractMacro<PDFViewerMacroParameters>
     @Inject
     private ScriptContextManager scriptContextManager;
 
-    @Inject
-    private Licensor licensor;
-
     @Inject
     private Provider<XWikiContext> wikiContextProvider;
 
     @Inject
-    private MJSMimeTypeRegistrar mjsMimeTypeRegistrar;
+    private PDFFileBuilder fileBuilder;
 
     @Inject
-    private PDFFileBuilder fileBuilder;
+    private PDFViewerMacroBatch macroBatch;
 
     /**
      * Create and initialize the descriptor of the macro.
@@ -99,26 +105,22 @@ public class PDFViewerMacro extends AbstractMacro<PDFViewerMacroParameters>
     {
         DocumentReference licenseDoc =
             new DocumentReference(wikiContextProvider.get().getWikiId(), List.of("PDFViewer", "Code"), "WebHome");
-        if (!licensor.hasLicensure(licenseDoc)) {
+        if (!macroBatch.hasLicensure(licenseDoc)) {
             return licenceError(context);
         }
 
+        List<String> allFiles = getFiles(parameters);
+        // No browser will display the viewer, so there is no need to resolve the files or to issue tokens.
+        if (!isInteractive(context)) {
+            return placeholder(allFiles);
+        }
+
         try {
-            mjsMimeTypeRegistrar.maybeRegisterMJSMimeType();
-            Template customTemplate = this.templateManager.getTemplate("pdfviewer/pdfviewer.vm");
-            List<String> allFiles = new ArrayList<>();
-            if (StringUtils.isNotBlank(parameters.getFile())) {
-                String[] files = parameters.getFile().split(PDF_SEPARATOR);
-                Collections.addAll(allFiles, files);
-            }
-            if (StringUtils.isNotBlank(parameters.getFileFromExternalUrl())) {
-                String[] filesFromExternalUrl = parameters.getFileFromExternalUrl().split(PDF_SEPARATOR);
-                Collections.addAll(allFiles, filesFromExternalUrl);
-            }
-            List<PDFFile> resourcesList = new ArrayList<>();
-            boolean delegatedRights = delegatedRightsValues.contains(parameters.getAsAuthor().toLowerCase());
-            for (String file : allFiles) {
-                resourcesList.add(getPDFFile(file, delegatedRights, parameters.getDocument()));
+            Template customTemplate = macroBatch.getTemplate();
+            // The files of the macro are usually resolved along with the other macros of the page.
+            List<PDFFile> resourcesList = macroBatch.getFiles(context);
+            if (resourcesList == null) {
+                resourcesList = fileBuilder.build(allFiles, isDelegated(parameters), parameters.getDocument());
             }
             this.bindValues(parameters, resourcesList);
 
@@ -134,12 +136,69 @@ public class PDFViewerMacro extends AbstractMacro<PDFViewerMacroParameters>
         return false;
     }
 
+    /**
+     * @param parameters the macro parameters
+     * @return the attachment references, attachment URLs and external PDF URLs displayed by the macro
+     */
+    static List<String> getFiles(PDFViewerMacroParameters parameters)
+    {
+        List<String> allFiles = new ArrayList<>();
+        if (StringUtils.isNotBlank(parameters.getFile())) {
+            String[] files = parameters.getFile().split(PDF_SEPARATOR);
+            Collections.addAll(allFiles, files);
+        }
+        if (StringUtils.isNotBlank(parameters.getFileFromExternalUrl())) {
+            String[] filesFromExternalUrl = parameters.getFileFromExternalUrl().split(PDF_SEPARATOR);
+            Collections.addAll(allFiles, filesFromExternalUrl);
+        }
+        return allFiles;
+    }
+
+    /**
+     * @param parameters the macro parameters
+     * @return {@code true} if the view rights have been delegated by the author, {@code false} otherwise
+     */
+    static boolean isDelegated(PDFViewerMacroParameters parameters)
+    {
+        return DELEGATED_RIGHTS_VALUES.contains(parameters.getAsAuthor().toLowerCase());
+    }
+
     private List<Block> licenceError(MacroTransformationContext context)
     {
         return Collections.singletonList(new MacroBlock("missingLicenseMessage",
             Collections.singletonMap("extensionName", "proMacros.extension.name"), null, context.isInline()));
     }
 
+    /**
+     * The request is not used to detect the background executions, since the asynchronous rendering restores a stub
+     * request as well, and its result is displayed in a browser.
+     *
+     * @return {@code false} if the macro is rendered for a target that can't display the viewer, such as the search
+     *     indexing or the plain text notification emails, or outside of a request, or for an export, {@code true}
+     *     otherwise
+     */
+    private boolean isInteractive(MacroTransformationContext context)
+    {
+        Syntax targetSyntax = context.getTransformationContext().getTargetSyntax();
+        if (targetSyntax != null && !INTERACTIVE_SYNTAX_TYPES.contains(targetSyntax.getType())) {
+            return false;
+        }
+        XWikiContext wikiContext = wikiContextProvider.get();
+        return wikiContext.getRequest() != null && !"export".equals(wikiContext.getAction());
+    }
+
+    /**
+     * @return the names of the given files, standing for the viewer
+     */
+    private List<Block> placeholder(List<String> files)
+    {
+        List<Block> paragraphs = new ArrayList<>();
+        for (String file : files) {
+            paragraphs.add(new ParagraphBlock(List.of(new WordBlock(file.trim()))));
+        }
+        return List.of(new GroupBlock(paragraphs, Map.of("class", "pdfviewer-placeholder")));
+    }
+
     private void bindValues(PDFViewerMacroParameters parameters, List<PDFFile> resourcesList)
     {
         ScriptContext scriptContext = scriptContextManager.getScriptContext();
@@ -148,19 +207,6 @@ public class PDFViewerMacro extends AbstractMacro<PDFViewerMacroParameters>
         scriptContext.setAttribute("files", resourcesList, ScriptContext.ENGINE_SCOPE);
     }
 
-    private PDFFile getPDFFile(String pdfFileReference, boolean delegatedRights, String ownerDocumentReference)
-        throws XWikiException
-    {
-        //  If the url is not directly specified, the attachment reference can be taken either directly from the file
-        //  macro parameter, since an attachment picker is used, or by using both the file and document parameters,
-        //  for macros added in xwiki versions before 11.5.
-        if (pdfFileReference.startsWith("http://") || pdfFileReference.startsWith("https://")) {
-            return fileBuilder.handleExternalURL(pdfFileReference, delegatedRights);
-        } else {
-            return fileBuilder.handleInternalAttachment(pdfFileReference, delegatedRights, ownerDocumentReference);
-        }
-    }
-
     private Map<String, String> getTemplateParameters(PDFViewerMacroParameters parameters)
     {
         // Height and width are handled differently, as the height value can only be represented in pixels (as an
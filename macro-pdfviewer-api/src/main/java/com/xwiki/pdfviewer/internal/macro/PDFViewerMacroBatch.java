@@ -0,0 +1,216 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.macro;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.properties.BeanManager;
+import org.xwiki.rendering.block.MacroBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.transformation.MacroTransformationContext;
+import org.xwiki.template.Template;
+import org.xwiki.template.TemplateManager;
+
+import com.xwiki.licensing.Licensor;
+import com.xwiki.pdfviewer.internal.MJSMimeTypeRegistrar;
+import com.xwiki.pdfviewer.macro.PDFFile;
+import com.xwiki.pdfviewer.macro.PDFViewerMacroParameters;
+
+/**
+ * Resolves the files of all the PDF viewer macros of a document at once, when the first of them is executed, so that
+ * their delegated tokens are issued with a single call and their document loads and rights checks are shared, see
+ * {@link ResolutionContext}. The other macros then render from the precomputed files. The license check, the template
+ * lookup and the mime type registration are done once per execution as well.
+ * <p>
+ * Only the macros coming from the same source as the executed macro are resolved together, since the macros of an
+ * included document are executed with the rights of their own author. The macros that are not in the XDOM yet, such
+ * as the ones generated by other macros, are resolved on their own.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component(roles = PDFViewerMacroBatch.class)
+@Singleton
+public class PDFViewerMacroBatch
+{
+    private static final String PROPERTY = "pdfviewer.macroBatch";
+
+    private static final String TEMPLATE = "pdfviewer/pdfviewer.vm";
+
+    /**
+     * The state of the current execution.
+     */
+    private static final class Batch
+    {
+        /**
+         * The sources whose macros were resolved, for each XDOM.
+         */
+        private final Map<XDOM, Set<String>> resolvedSources = new IdentityHashMap<>();
+
+        /**
+         * The precomputed files of the macros not executed yet.
+         */
+        private final Map<MacroBlock, List<PDFFile>> files = new IdentityHashMap<>();
+
+        private final Map<DocumentReference, Boolean> licensure = new HashMap<>();
+
+        private Template template;
+    }
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private BeanManager beanManager;
+
+    @Inject
+    private PDFFileBuilder fileBuilder;
+
+    @Inject
+    private Licensor licensor;
+
+    @Inject
+    private TemplateManager templateManager;
+
+    @Inject
+    private MJSMimeTypeRegistrar mjsMimeTypeRegistrar;
+
+    /**
+     * @param licenseDocument the document of the licensed extension
+     * @return {@code true} if the extension has a valid license, checked once per execution, {@code false} otherwise
+     */
+    public boolean hasLicensure(DocumentReference licenseDocument)
+    {
+        Batch batch = getBatch();
+        if (batch == null) {
+            return this.licensor.hasLicensure(licenseDocument);
+        }
+        return batch.licensure.computeIfAbsent(licenseDocument, this.licensor::hasLicensure);
+    }
+
+    /**
+     * Registers the mime type of the viewer modules and looks up the viewer template, once per execution.
+     *
+     * @return the viewer template
+     * @throws Exception if the template lookup fails
+     */
+    public Template getTemplate() throws Exception
+    {
+        Batch batch = getBatch();
+        if (batch != null && batch.template != null) {
+            return batch.template;
+        }
+        this.mjsMimeTypeRegistrar.maybeRegisterMJSMimeType();
+        Template template = this.templateManager.getTemplate(TEMPLATE);
+        if (batch != null) {
+            batch.template = template;
+        }
+        return template;
+    }
+
+    /**
+     * Gives the files of the executed macro. When it is the first macro of its source to be executed, the files of all
+     * the macros of the same source are resolved beforehand.
+     *
+     * @param context the context of the executed macro
+     * @return the files of the executed macro, or {@code null} if they need to be resolved on their own
+     */
+    public List<PDFFile> getFiles(MacroTransformationContext context)
+    {
+        Batch batch = getBatch();
+        MacroBlock currentBlock = context.getCurrentMacroBlock();
+        XDOM xdom = context.getXDOM();
+        if (batch == null || currentBlock == null || xdom == null) {
+            return null;
+        }
+        List<PDFFile> files = batch.files.remove(currentBlock);
+        if (files != null) {
+            return files;
+        }
+
+        String source = MacroSources.getSource(currentBlock);
+        if (!batch.resolvedSources.computeIfAbsent(xdom, key -> new HashSet<>()).add(source)) {
+            return null;
+        }
+        List<MacroBlock> blocks = MacroSources.getSameSourceMacros(currentBlock, xdom);
+        // There is nothing to share with a single macro.
+        if (blocks.size() > 1) {
+            resolve(blocks, batch);
+        }
+        return batch.files.remove(currentBlock);
+    }
+
+    private void resolve(List<MacroBlock> blocks, Batch batch)
+    {
+        Map<MacroBlock, List<PDFFile>> resolvedFiles = new IdentityHashMap<>();
+        for (MacroBlock block : blocks) {
+            try {
+                PDFViewerMacroParameters parameters = new PDFViewerMacroParameters();
+                this.beanManager.populate(parameters, block.getParameters());
+                resolvedFiles.put(block, this.fileBuilder.resolve(PDFViewerMacro.getFiles(parameters),
+                    PDFViewerMacro.isDelegated(parameters), parameters.getDocument()));
+            } catch (Exception e) {
+                // The macro is resolved again when executed, which reports the error.
+                this.logger.debug("Failed to resolve the files of the PDF viewer macro with parameters [{}] in advance."
+                    + " Root cause is: [{}]", block.getParameters(), ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+        try {
+            this.fileBuilder.setTokenURLs(
+                resolvedFiles.values().stream().flatMap(List::stream).collect(Collectors.toList()));
+            batch.files.putAll(resolvedFiles);
+        } catch (Exception e) {
+            this.logger.debug("Failed to issue the tokens of the PDF viewer macros in advance. Root cause is: [{}]",
+                ExceptionUtils.getRootCauseMessage(e));
+        }
+    }
+
+    private Batch getBatch()
+    {
+        ExecutionContext context = this.execution.getContext();
+        if (context == null) {
+            return null;
+        }
+        Batch batch = (Batch) context.getProperty(PROPERTY);
+        if (batch == null) {
+            batch = new Batch();
+            context.setProperty(PROPERTY, batch);
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.macro;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.user.UserReference;
+import org.xwiki.user.UserReferenceSerializer;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Memoizes the documents, the view rights decisions and the serialized content authors needed to resolve the files of
+ * the PDF viewer macros, for the duration of the current execution. This way, the files of all the macros of a page
+ * render share the backend calls, instead of repeating them for each file.
+ * <p>
+ * The memoized values are stored in the execution context, so they are dropped at the end of the request. Without an
+ * execution context, nothing is memoized.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component(roles = ResolutionContext.class)
+@Singleton
+public class ResolutionContext
+{
+    private static final String PROPERTY = "pdfviewer.resolutionContext";
+
+    /**
+     * The values memoized during an execution. The maps are concurrent since the files might be resolved in parallel.
+     */
+    private static final class Memo
+    {
+        private final Map<Pair<DocumentReference, DocumentReference>, Boolean> viewRights = new ConcurrentHashMap<>();
+
+        private final Map<DocumentReference, XWikiDocument> documents = new ConcurrentHashMap<>();
+
+        private final Map<UserReference, DocumentReference> authors = new ConcurrentHashMap<>();
+    }
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private AuthorizationManager authorizationManager;
+
+    @Inject
+    private Provider<XWikiContext> wikiContextProvider;
+
+    @Inject
+    @Named("document")
+    private UserReferenceSerializer<DocumentReference> documentUserSerializer;
+
+    /**
+     * @param user the user whose rights are checked, or {@code null} for the guest user
+     * @param document the document to view
+     * @return {@code true} if the given user can view the given document, {@code false} otherwise
+     */
+    public boolean hasViewAccess(DocumentReference user, DocumentReference document)
+    {
+        Memo memo = getMemo();
+        if (memo == null) {
+            return this.authorizationManager.hasAccess(Right.VIEW, user, document);
+        }
+        return memo.viewRights.computeIfAbsent(Pair.of(user, document),
+            key -> this.authorizationManager.hasAccess(Right.VIEW, user, document));
+    }
+
+    /**
+     * @param reference a document reference
+     * @return the document, loaded once per execution
+     * @throws XWikiException if the document fails to be loaded
+     */
+    public XWikiDocument getDocument(DocumentReference reference) throws XWikiException
+    {
+        Memo memo = getMemo();
+        XWikiDocument document = memo != null ? memo.documents.get(reference) : null;
+        if (document == null) {
+            XWikiContext wikiContext = this.wikiContextProvider.get();
+            document = wikiContext.getWiki().getDocument(reference, wikiContext);
+            if (memo != null) {
+                memo.documents.put(reference, document);
+            }
+        }
+        return document;
+    }
+
+    /**
+     * @param document a document, usually the secure document of the macro
+     * @return the reference of the content author of the given document
+     */
+    public DocumentReference getContentAuthor(XWikiDocument document)
+    {
+        UserReference author = document.getAuthors().getContentAuthor();
+        Memo memo = getMemo();
+        if (memo == null || author == null) {
+            return this.documentUserSerializer.serialize(author);
+        }
+        return memo.authors.computeIfAbsent(author, this.documentUserSerializer::serialize);
+    }
+
+    /**
+     * Creates the memo of the current execution if it doesn't exist yet. Must be called before copying the execution
+     * context for other threads, so that the copies share the memo of the current thread instead of creating their
+     * own.
+     */
+    public void prepare()
+    {
+        getMemo();
+    }
+
+    private Memo getMemo()
+    {
+        ExecutionContext context = this.execution.getContext();
+        if (context == null) {
+            return null;
+        }
+        Memo memo = (Memo) context.getProperty(PROPERTY);
+        if (memo == null) {
+            memo = new Memo();
+            context.setProperty(PROPERTY, memo);
+        }
+        return memo;
+    }
+}
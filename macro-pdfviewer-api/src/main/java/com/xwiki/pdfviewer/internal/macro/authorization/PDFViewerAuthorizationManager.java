@@ -20,21 +20,18 @@
 package com.xwiki.pdfviewer.internal.macro.authorization;
 
 import javax.inject.Inject;
-import javax.inject.Named;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.model.reference.DocumentReference;
-import org.xwiki.security.authorization.AuthorizationManager;
-import org.xwiki.security.authorization.Right;
-import org.xwiki.user.UserReferenceSerializer;
 
-import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.pdfviewer.internal.content.AttachmentMetadataCache;
+import com.xwiki.pdfviewer.internal.macro.ResolutionContext;
 import com.xwiki.pdfviewer.internal.token.DelegatedTokenManager;
 
 /**
@@ -47,9 +44,6 @@ import com.xwiki.pdfviewer.internal.token.DelegatedTokenManager;
 @Singleton
 public class PDFViewerAuthorizationManager
 {
-    @Inject
-    private AuthorizationManager authorizationManager;
-
     @Inject
     private Provider<XWikiContext> wikiContextProvider;
 
@@ -57,8 +51,10 @@ public class PDFViewerAuthorizationManager
     private DelegatedTokenManager tokenManager;
 
     @Inject
-    @Named("document")
-    private UserReferenceSerializer<DocumentReference> documentUserSerializer;
+    private AttachmentMetadataCache attachmentMetadataCache;
+
+    @Inject
+    private ResolutionContext resolutionContext;
 
     /**
      * Evaluates whether an attachment can be viewed, either through direct user permissions or delegated (author)
@@ -75,10 +71,9 @@ public class PDFViewerAuthorizationManager
         throws XWikiException
     {
         XWikiContext wikiContext = wikiContextProvider.get();
-        XWiki wiki = wikiContext.getWiki();
         DocumentReference documentReference = attachmentReference.getDocumentReference();
         PDFFileAuthorization fileAuthorization = new PDFFileAuthorization();
-        if (documentReference == null || !wiki.exists(documentReference, wikiContext)) {
+        if (documentReference == null || !attachmentMetadataCache.exists(documentReference)) {
             return fileAuthorization;
         }
 
@@ -99,7 +94,7 @@ public class PDFViewerAuthorizationManager
     private void hasDelegatedViewRights(AttachmentReference attachmentReference, XWikiDocument sdoc,
         PDFFileAuthorization fileAuthorization)
     {
-        DocumentReference author = documentUserSerializer.serialize(sdoc.getAuthors().getContentAuthor());
+        DocumentReference author = resolutionContext.getContentAuthor(sdoc);
         // We check the view rights of the author.
         boolean hasViewRights = hasViewAccess(author, attachmentReference.getDocumentReference());
         fileAuthorization.setDelegatedViewRights(true);
@@ -111,6 +106,6 @@ public class PDFViewerAuthorizationManager
 
     private boolean hasViewAccess(DocumentReference user, DocumentReference target)
     {
-        return authorizationManager.hasAccess(Right.VIEW, user, target);
+        return resolutionContext.hasViewAccess(user, target);
     }
 }
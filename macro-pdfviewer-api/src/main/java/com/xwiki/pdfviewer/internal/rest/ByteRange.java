@@ -0,0 +1,170 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.rest;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * A byte range of the file content, requested through the {@code Range} HTTP header.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+final class ByteRange
+{
+    private static final String UNIT = "bytes=";
+
+    /**
+     * The ranges of a request asking for more are ignored, so that a request can't make the server read the file in
+     * many small pieces.
+     */
+    private static final int MAX_RANGES = 20;
+
+    private final long start;
+
+    private final long end;
+
+    ByteRange(long start, long end)
+    {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * @return the offset of the first byte of the range
+     */
+    long getStart()
+    {
+        return this.start;
+    }
+
+    /**
+     * @return the offset of the last byte of the range, included
+     */
+    long getEnd()
+    {
+        return this.end;
+    }
+
+    /**
+     * @return the number of bytes of the range
+     */
+    long getLength()
+    {
+        return this.end - this.start + 1;
+    }
+
+    /**
+     * @param contentLength the length of the file content
+     * @return the value of the {@code Content-Range} header of this range
+     */
+    String toContentRange(long contentLength)
+    {
+        return String.format("bytes %d-%d/%d", this.start, this.end, contentLength);
+    }
+
+    /**
+     * Parses the value of a {@code Range} header. The ranges are sorted, and the overlapping or adjacent ranges are
+     * merged, so that the content can be read at once.
+     *
+     * @param header the value of the {@code Range} header
+     * @param contentLength the length of the file content
+     * @return the requested ranges, {@code null} if the header is missing, malformed or asks for too many ranges, in
+     *     which case the whole content is returned, or an empty list if none of the ranges can be satisfied
+     */
+    static List<ByteRange> parse(String header, long contentLength)
+    {
+        if (header == null || !header.startsWith(UNIT)) {
+            return null;
+        }
+        String[] specs = StringUtils.split(header.substring(UNIT.length()), ',');
+        if (specs.length == 0 || specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>();
+        try {
+            for (String spec : specs) {
+                String[] bounds = StringUtils.splitPreserveAllTokens(spec.trim(), '-');
+                if (!isValid(bounds)) {
+                    return null;
+                }
+                ByteRange range = toRange(bounds, contentLength);
+                if (range != null) {
+                    ranges.add(range);
+                }
+            }
+        } catch (NumberFormatException e) {
+            // The bounds don't fit a long.
+            return null;
+        }
+        return merge(ranges);
+    }
+
+    private static boolean isValid(String[] bounds)
+    {
+        if (bounds.length != 2 || !isBound(bounds[0]) || !isBound(bounds[1])) {
+            return false;
+        } else if (bounds[0].isEmpty() || bounds[1].isEmpty()) {
+            return !bounds[0].isEmpty() || !bounds[1].isEmpty();
+        } else {
+            return Long.parseLong(bounds[0]) <= Long.parseLong(bounds[1]);
+        }
+    }
+
+    private static boolean isBound(String bound)
+    {
+        return bound.isEmpty() || StringUtils.isNumeric(bound);
+    }
+
+    /**
+     * @return the range of the given bounds within the content, or {@code null} if it starts after the content end
+     */
+    private static ByteRange toRange(String[] bounds, long contentLength)
+    {
+        if (bounds[0].isEmpty()) {
+            // Suffix range, for the last bytes of the content.
+            long suffixLength = Math.min(Long.parseLong(bounds[1]), contentLength);
+            return suffixLength > 0 ? new ByteRange(contentLength - suffixLength, contentLength - 1) : null;
+        }
+        long start = Long.parseLong(bounds[0]);
+        long end = bounds[1].isEmpty() ? contentLength - 1 : Math.min(Long.parseLong(bounds[1]), contentLength - 1);
+        return start <= end ? new ByteRange(start, end) : null;
+    }
+
+    private static List<ByteRange> merge(List<ByteRange> ranges)
+    {
+        ranges.sort(Comparator.comparingLong(ByteRange::getStart));
+        List<ByteRange> mergedRanges = new ArrayList<>();
+        for (ByteRange range : ranges) {
+            int last = mergedRanges.size() - 1;
+            if (last >= 0 && range.start <= mergedRanges.get(last).end + 1) {
+                ByteRange previous = mergedRanges.get(last);
+                mergedRanges.set(last, new ByteRange(previous.start, Math.max(previous.end, range.end)));
+            } else {
+                mergedRanges.add(range);
+            }
+        }
+        return mergedRanges;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.rest;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.UUID;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xwiki.pdfviewer.internal.content.AttachmentContentFiles;
+import com.xwiki.pdfviewer.internal.content.ContentBlockCache;
+import com.xwiki.pdfviewer.internal.content.ContentWriter;
+
+/**
+ * Builds the response for the requested byte ranges of the file content: the whole content, a single range or the
+ * {@code multipart/byteranges} body of several ranges.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component(roles = ContentRangeWriter.class)
+@Singleton
+public class ContentRangeWriter
+{
+    private static final String PDF_TYPE = "application/pdf";
+
+    private static final String CONTENT_RANGE = "Content-Range";
+
+    /**
+     * The opened content of the requested file, either its file channel or its stream, written in increasing ranges.
+     */
+    private final class Content implements Closeable
+    {
+        private final FileChannel channel;
+
+        private final InputStream stream;
+
+        private long position;
+
+        Content(FileChannel channel, InputStream stream)
+        {
+            this.channel = channel;
+            this.stream = stream;
+        }
+
+        void write(long start, long length, OutputStream output) throws IOException
+        {
+            if (this.channel != null) {
+                contentWriter.transfer(this.channel, start, length, output);
+            } else {
+                skip(this.stream, start - this.position);
+                contentWriter.write(this.stream, length, output);
+                this.position = start + length;
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (this.channel != null) {
+                this.channel.close();
+            } else {
+                this.stream.close();
+            }
+        }
+    }
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private ContentBlockCache contentCache;
+
+    @Inject
+    private ContentWriter contentWriter;
+
+    @Inject
+    private AttachmentContentFiles contentFiles;
+
+    /**
+     * @param attachment the requested file
+     * @param range the value of the {@code Range} header, or {@code null} to get the whole content
+     * @param withContent {@code false} to build only the response headers
+     * @param context the current context
+     * @return the response for the requested ranges, without the validators of the content
+     * @throws XWikiException if the content of the file cannot be opened
+     */
+    public ResponseBuilder getContentResponse(XWikiAttachment attachment, String range, boolean withContent,
+        XWikiContext context) throws XWikiException
+    {
+        long contentLength = attachment.getLongSize();
+        List<ByteRange> ranges = ByteRange.parse(range, contentLength);
+        ResponseBuilder response;
+        if (ranges == null) {
+            response = Response.status(Response.Status.OK).type(PDF_TYPE)
+                .header(HttpHeaders.CONTENT_LENGTH, contentLength);
+            if (withContent) {
+                response.entity(writeContent(openContent(attachment, context), 0, contentLength));
+            }
+        } else if (ranges.isEmpty()) {
+            response = Response.status(416)
+                .header(CONTENT_RANGE, "bytes */" + contentLength);
+        } else if (ranges.size() == 1) {
+            ByteRange byteRange = ranges.get(0);
+            response = Response.status(206).type(PDF_TYPE)
+                .header(CONTENT_RANGE, byteRange.toContentRange(contentLength))
+                .header(HttpHeaders.CONTENT_LENGTH, byteRange.getLength());
+            if (withContent) {
+                response.entity(
+                    writeContent(openContent(attachment, context), byteRange.getStart(), byteRange.getLength()));
+            }
+        } else {
+            String boundary = UUID.randomUUID().toString();
+            response = Response.status(206)
+                .type("multipart/byteranges; boundary=" + boundary);
+            if (withContent) {
+                Content content = openContent(attachment, context);
+                response.entity((StreamingOutput) output ->
+                    writeRanges(content, ranges, boundary, contentLength, output));
+            }
+        }
+        return response;
+    }
+
+    /**
+     * The content kept on the file system is not cached, since the file can be transferred without copying it.
+     */
+    private Content openContent(XWikiAttachment attachment, XWikiContext context) throws XWikiException
+    {
+        File file = this.contentFiles.getContentFile(attachment, context);
+        if (file != null) {
+            try {
+                return new Content(FileChannel.open(file.toPath(), StandardOpenOption.READ), null);
+            } catch (IOException e) {
+                // The file might have been replaced concurrently, so read it through the store.
+                this.logger.debug("Failed to open the content file of attachment [{}]. Root cause is: [{}]",
+                    attachment.getReference(), ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+        return new Content(null, this.contentCache.isEnabled()
+            ? this.contentCache.getContentInputStream(attachment, context) : attachment.getContentInputStream(context));
+    }
+
+    /**
+     * The content is opened before the response is returned, while the store is still available, but it is read only
+     * when the response is written.
+     */
+    private StreamingOutput writeContent(Content content, long start, long length)
+    {
+        return output -> {
+            try (Content input = content) {
+                input.write(start, length, output);
+            }
+        };
+    }
+
+    /**
+     * Writes the given ranges, sorted and not overlapping, as the parts of a {@code multipart/byteranges} body.
+     */
+    private void writeRanges(Content content, List<ByteRange> ranges, String boundary, long contentLength,
+        OutputStream output) throws IOException
+    {
+        try (Content input = content) {
+            for (ByteRange range : ranges) {
+                String partHeaders = String.format("\r\n--%s\r\nContent-Type: %s\r\n%s: %s\r\n\r\n", boundary,
+                    PDF_TYPE, CONTENT_RANGE, range.toContentRange(contentLength));
+                output.write(partHeaders.getBytes(StandardCharsets.US_ASCII));
+                input.write(range.getStart(), range.getLength(), output);
+            }
+            output.write(String.format("\r\n--%s--\r\n", boundary).getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * Skips the given number of bytes, relying on {@link InputStream#skip(long)} since the attachment stores can skip
+     * without reading, e.g. by seeking in the attachment file.
+     */
+    private static void skip(InputStream input, long count) throws IOException
+    {
+        long remaining = count;
+        while (remaining > 0) {
+            long skipped = input.skip(remaining);
+            if (skipped <= 0) {
+                if (input.read() < 0) {
+                    throw new IOException("The attachment content is shorter than its declared size.");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.rest;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.Locale;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.xpn.xwiki.doc.XWikiAttachment;
+
+/**
+ * The validators of a file content, used to answer the conditional requests of the browsers that already have the
+ * content.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+final class ContentValidators
+{
+    private static final DateTimeFormatter HTTP_DATE =
+        DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH).withZone(ZoneOffset.UTC);
+
+    private static final String WEAK_PREFIX = "W/";
+
+    private static final String ANY = "*";
+
+    private final String eTag;
+
+    private final long lastModified;
+
+    /**
+     * @param attachment the attachment holding the content
+     */
+    ContentValidators(XWikiAttachment attachment)
+    {
+        // The attachment version changes with the content, and the date makes the tag unique after a version reset.
+        Date date = attachment.getDate();
+        // The HTTP dates are precise to the second.
+        this.lastModified = date != null ? date.getTime() / 1000 * 1000 : 0;
+        this.eTag = String.format("\"%s-%s\"", attachment.getVersion(), Long.toString(this.lastModified, 36));
+    }
+
+    /**
+     * @return the strong entity tag of the content
+     */
+    String getETag()
+    {
+        return this.eTag;
+    }
+
+    /**
+     * @return the value of the {@code Last-Modified} header
+     */
+    String getLastModified()
+    {
+        return HTTP_DATE.format(Instant.ofEpochMilli(this.lastModified));
+    }
+
+    /**
+     * @param ifNoneMatch the value of the {@code If-None-Match} header
+     * @param ifModifiedSince the value of the {@code If-Modified-Since} header
+     * @return {@code true} if the browser already has the current content, {@code false} otherwise
+     */
+    boolean isNotModified(String ifNoneMatch, String ifModifiedSince)
+    {
+        if (ifNoneMatch != null) {
+            // The date is ignored when there are entity tags, which are more accurate.
+            for (String tag : StringUtils.split(ifNoneMatch, ',')) {
+                String trimmedTag = StringUtils.removeStart(tag.trim(), WEAK_PREFIX);
+                if (ANY.equals(trimmedTag) || this.eTag.equals(trimmedTag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long since = parseDate(ifModifiedSince);
+        return since >= 0 && this.lastModified <= since;
+    }
+
+    /**
+     * @param ifRange the value of the {@code If-Range} header
+     * @return {@code true} if the requested ranges apply to the current content, {@code false} if the whole content
+     *     must be sent since the browser has an outdated copy
+     */
+    boolean isRangeApplicable(String ifRange)
+    {
+        if (ifRange == null) {
+            return true;
+        } else if (ifRange.startsWith("\"")) {
+            return this.eTag.equals(ifRange.trim());
+        } else {
+            return !ifRange.startsWith(WEAK_PREFIX) && parseDate(ifRange) == this.lastModified;
+        }
+    }
+
+    private static long parseDate(String value)
+    {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Instant.from(DateTimeFormatter.RFC_1123_DATE_TIME.parse(value.trim())).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
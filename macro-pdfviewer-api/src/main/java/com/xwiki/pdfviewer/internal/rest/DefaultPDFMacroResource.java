@@ -19,14 +19,18 @@
  */
 package com.xwiki.pdfviewer.internal.rest;
 
-import java.util.Base64;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
@@ -34,15 +38,16 @@ import org.xwiki.csrf.CSRFToken;
 import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.rest.XWikiRestException;
 
-import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.doc.XWikiAttachment;
-import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.pdfviewer.internal.content.AttachmentMetadataCache;
 import com.xwiki.pdfviewer.internal.token.DelegatedTokenManager;
+import com.xwiki.pdfviewer.internal.token.DelegatedTokenReferences;
 import com.xwiki.pdfviewer.rest.PDFMacroResource;
 
 /**
- * Default implementation of {@link PDFMacroResource}.
+ * Default implementation of {@link PDFMacroResource}. The file content supports byte range requests, so that the
+ * viewer can load the pages it displays without downloading the whole file first.
  *
  * @version $Id$
  * @since 2.7
@@ -52,9 +57,16 @@ import com.xwiki.pdfviewer.rest.PDFMacroResource;
 @Singleton
 public class DefaultPDFMacroResource implements PDFMacroResource
 {
+    private static final String ACCEPT_RANGES = "Accept-Ranges";
+
+    private static final String BYTES = "bytes";
+
     @Inject
     private DelegatedTokenManager tokenManager;
 
+    @Inject
+    private DelegatedTokenReferences tokenReferences;
+
     @Inject
     private Provider<XWikiContext> contextProvider;
 
@@ -64,24 +76,77 @@ public class DefaultPDFMacroResource implements PDFMacroResource
     @Inject
     private CSRFToken csrf;
 
+    @Inject
+    private AttachmentMetadataCache metadataCache;
+
+    @Inject
+    private ContentRangeWriter contentRangeWriter;
+
     @Override
-    public Response getContents(String token, String formToken) throws XWikiRestException
+    public Response getContents(String token, String formToken, String range, String ifNoneMatch,
+        String ifModifiedSince, String ifRange) throws XWikiRestException
+    {
+        return getContents(token, formToken, range, ifNoneMatch, ifModifiedSince, ifRange, true);
+    }
+
+    @Override
+    public Response getContentsHeaders(String token, String formToken, String range, String ifNoneMatch,
+        String ifModifiedSince, String ifRange) throws XWikiRestException
+    {
+        return getContents(token, formToken, range, ifNoneMatch, ifModifiedSince, ifRange, false);
+    }
+
+    @Override
+    public Response getToken(String reference, String formToken) throws XWikiRestException
     {
         try {
-            String decodedToken = new String(Base64.getDecoder().decode(token));
-            if (tokenManager.isInvalid(decodedToken) || !tokenManager.hasAccess(decodedToken) || !csrf.isTokenValid(
-                formToken))
-            {
+            String token = csrf.isTokenValid(formToken) ? tokenReferences.redeem(reference) : null;
+            if (token == null) {
+                logger.warn("Failed to issue the requested file token due to invalid reference or restricted rights.");
+                return Response.status(Response.Status.UNAUTHORIZED).build();
+            }
+            // The viewer follows the redirect, so it gets the file content without knowing about the token.
+            // The tokens are URL safe, so they don't need to be encoded.
+            String contentsURL = String.format("%s/rest/pdfmacro/contents?access_token=%s&form_token=%s",
+                contextProvider.get().getRequest().getContextPath(), token,
+                URLEncoder.encode(formToken, StandardCharsets.UTF_8));
+            return Response.seeOther(URI.create(contentsURL)).build();
+        } catch (Exception e) {
+            logger.error("An error occurred while attempting to issue the file token.", e);
+            throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    private Response getContents(String token, String formToken, String range, String ifNoneMatch,
+        String ifModifiedSince, String ifRange, boolean withContent)
+    {
+        try {
+            // Check the form token first, since validating the access token marks it as used.
+            AttachmentReference attachRef =
+                csrf.isTokenValid(formToken) ? tokenManager.getTokenAttachmentReference(token) : null;
+            if (attachRef == null) {
                 logger.warn("Failed to get content of requested file due to invalid token or restricted rights.");
                 return Response.status(Response.Status.UNAUTHORIZED).build();
             }
+            XWikiAttachment attachment = metadataCache.getAttachment(attachRef);
+            if (attachment == null) {
+                return Response.status(Response.Status.NOT_FOUND).build();
+            }
             XWikiContext context = contextProvider.get();
-            XWiki wiki = context.getWiki();
-            AttachmentReference attachRef = tokenManager.getTokenAttachmentReference(decodedToken);
-            XWikiDocument wikiDoc = wiki.getDocument(attachRef.getDocumentReference(), context);
-            XWikiAttachment attachment = wikiDoc.getAttachment(attachRef.getName());
-            return Response.status(Response.Status.OK).entity(attachment.getContentInputStream(context))
-                .type("application/pdf").build();
+            ContentValidators validators = new ContentValidators(attachment);
+            ResponseBuilder response;
+            if (validators.isNotModified(ifNoneMatch, ifModifiedSince)) {
+                response = Response.notModified();
+            } else {
+                // The browser's copy of the ranges is outdated, so it needs the whole content.
+                String applicableRange = validators.isRangeApplicable(ifRange) ? range : null;
+                response = contentRangeWriter.getContentResponse(attachment, applicableRange, withContent, context);
+            }
+            // The content is private to the token holders, and the browser needs to check that its token is still
+            // valid before reusing its copy.
+            return response.header(HttpHeaders.ETAG, validators.getETag())
+                .header(HttpHeaders.LAST_MODIFIED, validators.getLastModified())
+                .header(HttpHeaders.CACHE_CONTROL, "private, no-cache").header(ACCEPT_RANGES, BYTES).build();
         } catch (Exception e) {
             logger.error("An error occurred while attempting to retrieve file content.", e);
             throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
@@ -0,0 +1,209 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.observation.ObservationManager;
+
+/**
+ * Keeps the delegated tokens in memory, while sending each change to the other cluster nodes through the remote
+ * observation, see {@link DelegatedTokenChangeEvent}. The changes are sent in batches, at most 200 milliseconds after
+ * they happen, and the accesses of a token are sent at most once per minute, so that the idle tokens expire at about
+ * the same time on all the nodes.
+ * <p>
+ * When two nodes issue a token for the same attachment and macro origin at the same time, both tokens remain valid on
+ * all the nodes since they might have been handed out already, and all the nodes reuse the one with the greatest
+ * identifier for the next renderings.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component
+@Named(ClusterDelegatedTokenStore.HINT)
+@Singleton
+public class ClusterDelegatedTokenStore extends DefaultDelegatedTokenStore implements Initializable, Disposable
+{
+    /**
+     * The hint for the component.
+     */
+    public static final String HINT = "cluster";
+
+    private static final long FLUSH_INTERVAL = 200;
+
+    private static final int MAX_BATCH_SIZE = 500;
+
+    private static final long TOUCH_INTERVAL = 60000;
+
+    private static final long SHUTDOWN_TIMEOUT = 10;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private ObservationManager observationManager;
+
+    private final Queue<DelegatedTokenChange> changes = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger queuedChanges = new AtomicInteger();
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private ScheduledExecutorService publisher;
+
+    @Override
+    public void initialize()
+    {
+        this.publisher = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("PDF Viewer token publisher").daemon(true).build());
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.publisher.shutdownNow();
+        try {
+            this.publisher.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    @Override
+    public void touch(DelegatedToken token, long time)
+    {
+        long previousAccess = token.getLastAccessTime();
+        super.touch(token, time);
+        if (time - previousAccess >= TOUCH_INTERVAL) {
+            publish(DelegatedTokenChange.touched(token, time));
+        }
+    }
+
+    /**
+     * Applies the changes sent by another cluster node, without sending them again.
+     *
+     * @param event the changes sent by another node
+     */
+    public void apply(DelegatedTokenChangeEvent event)
+    {
+        for (DelegatedTokenChange change : event.getChanges()) {
+            try {
+                apply(change);
+            } catch (Exception e) {
+                this.logger.warn("Skipping invalid delegated token change [{}]. Root cause is: [{}]", change.getId(),
+                    ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+    }
+
+    /**
+     * Sends the pending changes to the other cluster nodes.
+     */
+    void flush()
+    {
+        this.flushScheduled.set(false);
+        List<DelegatedTokenChange> batch = new ArrayList<>();
+        DelegatedTokenChange change;
+        while ((change = this.changes.poll()) != null) {
+            this.queuedChanges.decrementAndGet();
+            batch.add(change);
+            if (batch.size() == MAX_BATCH_SIZE) {
+                send(batch);
+                batch = new ArrayList<>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            send(batch);
+        }
+    }
+
+    @Override
+    protected void tokenAdded(DelegatedToken token)
+    {
+        publish(DelegatedTokenChange.added(token));
+    }
+
+    @Override
+    protected void tokenRemoved(DelegatedToken token)
+    {
+        publish(DelegatedTokenChange.removed(token));
+    }
+
+    @Override
+    protected void wikiRemoved(String wikiId)
+    {
+        publish(DelegatedTokenChange.wikiRemoved(wikiId));
+    }
+
+    @Override
+    protected boolean isReplacedBy(DelegatedToken existingToken, DelegatedToken restoredToken)
+    {
+        // Converge on the same current token on all the nodes, whatever the order in which the changes are received.
+        return restoredToken.toString().compareTo(existingToken.toString()) >= 0;
+    }
+
+    /**
+     * Queues a change, which is called while holding the lock of the token entry, so the change is sent later by the
+     * publisher thread.
+     */
+    private void publish(DelegatedTokenChange change)
+    {
+        this.changes.add(change);
+        try {
+            if (this.queuedChanges.incrementAndGet() == MAX_BATCH_SIZE) {
+                this.publisher.execute(this::flush);
+            } else if (this.flushScheduled.compareAndSet(false, true)) {
+                this.publisher.schedule(this::flush, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException e) {
+            // The store is being disposed, and the queued changes are sent when it's done.
+        }
+    }
+
+    private void send(List<DelegatedTokenChange> batch)
+    {
+        try {
+            this.observationManager.notify(new DelegatedTokenChangeEvent(batch), HINT, null);
+        } catch (Exception e) {
+            this.logger.warn("Failed to send [{}] delegated token changes to the other cluster nodes. Root cause is: "
+                + "[{}]", batch.size(), ExceptionUtils.getRootCauseMessage(e));
+        }
+    }
+}
@@ -0,0 +1,499 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Keeps the delegated tokens in memory, in one {@link DelegatedTokenSegment} per wiki holding delegated attachments.
+ * The segment of a token is found from its identifier, see {@link DelegatedTokenId#getSlot()}, so the wikis don't
+ * share any structure on issuance and validation.
+ * <p>
+ * The tokens are read without locking. All the mutations of a token are done while holding the lock of its
+ * (attachment, macro origin) entry in the origin index of its segment, so that the token id map and the reverse
+ * indexes are always consistent with the origin index. The stored tokens share the instances of their equal
+ * references.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component
+@Named("default")
+@Singleton
+public class DefaultDelegatedTokenStore implements DelegatedTokenStore, DelegatedTokenGrantStore
+{
+    private final Map<String, DelegatedTokenSegment> segments = new ConcurrentHashMap<>();
+
+    /**
+     * The segments by identifier slot. Distinct wikis might share the same slot.
+     */
+    private final Map<Integer, Set<DelegatedTokenSegment>> slotSegments = new ConcurrentHashMap<>();
+
+    /**
+     * The number of tokens of all the segments, maintained by the segments since it is checked on each issuance.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    @Override
+    public DelegatedToken get(String tokenId)
+    {
+        return find(tokenId);
+    }
+
+    @Override
+    public DelegatedToken compute(AttachmentReference file, DocumentReference macroOrigin,
+        UnaryOperator<DelegatedToken> remappingFunction)
+    {
+        return compute(file.getDocumentReference().getWikiReference().getName(), file, macroOrigin,
+            remappingFunction);
+    }
+
+    @Override
+    public DelegatedToken computeGrant(DocumentReference macroOrigin, UnaryOperator<DelegatedToken> remappingFunction)
+    {
+        // The grants only cover attachments of the wiki of their macro origin, so they belong to its segment.
+        return compute(macroOrigin.getWikiReference().getName(), null, macroOrigin, remappingFunction);
+    }
+
+    @Override
+    public boolean remove(DelegatedToken token)
+    {
+        DelegatedTokenSegment segment = this.segments.get(token.getWikiId());
+        if (segment == null) {
+            return false;
+        }
+        boolean[] removed = new boolean[1];
+        segment.compute(token, (key, ownerToken) -> {
+            DelegatedToken removedToken = unindex(segment, token.getId());
+            if (removedToken == null) {
+                return ownerToken;
+            }
+            tokenRemoved(removedToken);
+            removed[0] = true;
+            return removedToken.equals(ownerToken) ? null : ownerToken;
+        });
+        return removed[0];
+    }
+
+    @Override
+    public Collection<DelegatedToken> removeAttachmentTokens(AttachmentReference file)
+    {
+        return removeTokens(getAttachmentTokens(file), (token, tokenFile) -> file.equals(tokenFile));
+    }
+
+    @Override
+    public Collection<DelegatedToken> removeDocumentTokens(DocumentReference document)
+    {
+        // The author and the macro origin might belong to any wiki.
+        return removeDocumentTokens(document, token -> true,
+            (token, file) -> document.equals(token.getUser()) || document.equals(token.getMacroOrigin())
+                || document.equals(file.getDocumentReference()));
+    }
+
+    @Override
+    public Collection<DelegatedToken> removeOriginTokens(DocumentReference macroOrigin)
+    {
+        return removeDocumentTokens(macroOrigin, token -> macroOrigin.equals(token.getMacroOrigin()),
+            (token, file) -> true);
+    }
+
+    @Override
+    public Collection<DelegatedToken> removeWikiTokens(String wikiId)
+    {
+        List<DelegatedToken> removedTokens = new ArrayList<>();
+        for (DelegatedTokenSegment segment : this.segments.values()) {
+            if (!wikiId.equals(segment.getWikiId())) {
+                removedTokens.addAll(removeTokens(segment.getForeignWikiTokens(wikiId), (token, file) -> true));
+            }
+        }
+
+        DelegatedTokenSegment segment = dropSegment(wikiId);
+        if (segment == null) {
+            return removedTokens;
+        }
+        wikiRemoved(wikiId);
+        if (removedTokens.isEmpty()) {
+            return segment.getTokens();
+        }
+        removedTokens.addAll(segment.getTokens());
+        return removedTokens;
+    }
+
+    @Override
+    public void touch(DelegatedToken token, long time)
+    {
+        token.touch(time);
+    }
+
+    @Override
+    public Collection<DelegatedToken> getAttachmentTokens(AttachmentReference file)
+    {
+        DelegatedTokenSegment segment = this.segments.get(file.getDocumentReference().getWikiReference().getName());
+        return segment != null ? segment.getAttachmentTokens(file) : List.of();
+    }
+
+    @Override
+    public Collection<DelegatedToken> getTokens()
+    {
+        return this.segments.values().stream().flatMap(segment -> segment.getTokens().stream())
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public Collection<String> getWikis()
+    {
+        return Collections.unmodifiableSet(this.segments.keySet());
+    }
+
+    @Override
+    public Collection<DelegatedToken> getWikiTokens(String wikiId)
+    {
+        DelegatedTokenSegment segment = this.segments.get(wikiId);
+        return segment != null ? segment.getTokens() : List.of();
+    }
+
+    @Override
+    public int size()
+    {
+        return this.size.get();
+    }
+
+    @Override
+    public long getMemoryFootprint()
+    {
+        return this.segments.values().stream().mapToLong(DefaultDelegatedTokenStore::getMemoryFootprint).sum();
+    }
+
+    @Override
+    public long getMemoryFootprint(String wikiId)
+    {
+        DelegatedTokenSegment segment = this.segments.get(wikiId);
+        return segment != null ? getMemoryFootprint(segment) : 0;
+    }
+
+    /**
+     * Adds a token without notifying {@link #tokenAdded(DelegatedToken)}. Used to restore tokens persisted or modified
+     * outside of this store. A previous version of the same token is replaced, but a distinct token of the same
+     * attachment and macro origin, or a distinct grant of the same macro origin, remains valid since it might have
+     * been handed out already: both tokens are kept and {@link #isReplacedBy(DelegatedToken, DelegatedToken)} only
+     * decides which of them is returned by the next {@link #compute}.
+     *
+     * @param token the token to add
+     */
+    protected void restore(DelegatedToken token)
+    {
+        DelegatedTokenSegment segment = getSegment(token.getWikiId());
+        DelegatedToken internedToken = segment.intern(token);
+        segment.compute(internedToken, (key, ownerToken) -> {
+            unindex(segment, internedToken.getId());
+            segment.index(internedToken);
+            if (ownerToken == null || internedToken.equals(ownerToken) || isReplacedBy(ownerToken, internedToken)) {
+                return internedToken;
+            }
+            return ownerToken;
+        });
+    }
+
+    /**
+     * Decides which token is returned by the next {@link #compute} when restoring a token of the same attachment and
+     * macro origin as an existing one. Both tokens remain valid whatever the decision.
+     *
+     * @param existingToken the current token
+     * @param restoredToken the token being restored
+     * @return {@code true} to compute the next token from the restored one, which is the default, {@code false} to
+     *     keep computing it from the current token
+     */
+    protected boolean isReplacedBy(DelegatedToken existingToken, DelegatedToken restoredToken)
+    {
+        return true;
+    }
+
+    /**
+     * Applies a change made outside of this store, without notifying it again.
+     *
+     * @param change the change to apply
+     */
+    protected void apply(DelegatedTokenChange change)
+    {
+        switch (change.getType()) {
+            case ADDED:
+                DelegatedToken token = change.getToken();
+                if (token == null) {
+                    throw new IllegalArgumentException("Invalid token identifier.");
+                }
+                restore(token);
+                break;
+            case REMOVED:
+                forget(change.getId());
+                break;
+            case TOUCHED:
+                DelegatedToken touchedToken = find(change.getId());
+                if (touchedToken != null && touchedToken.getLastAccessTime() < change.getLastAccessTime()) {
+                    touchedToken.touch(change.getLastAccessTime());
+                }
+                break;
+            default:
+                forgetWiki(change.getId());
+                break;
+        }
+    }
+
+    /**
+     * Removes a token without notifying {@link #tokenRemoved(DelegatedToken)}. Used to apply removals done outside of
+     * this store.
+     *
+     * @param tokenId the identifier of the token to remove
+     */
+    protected void forget(String tokenId)
+    {
+        DelegatedToken token = find(tokenId);
+        DelegatedTokenSegment segment = token != null ? this.segments.get(token.getWikiId()) : null;
+        if (segment != null) {
+            segment.compute(token, (key, ownerToken) -> {
+                DelegatedToken removedToken = unindex(segment, token.getId());
+                return removedToken != null && removedToken.equals(ownerToken) ? null : ownerToken;
+            });
+        }
+    }
+
+    /**
+     * Removes the tokens delegating the attachments of the given wiki without notifying
+     * {@link #wikiRemoved(String)}. Used to apply removals done outside of this store.
+     *
+     * @param wikiId the identifier of the deleted wiki
+     */
+    protected void forgetWiki(String wikiId)
+    {
+        dropSegment(wikiId);
+    }
+
+    /**
+     * Removes all the tokens, without any notification.
+     */
+    protected void clear()
+    {
+        this.segments.values().forEach(DelegatedTokenSegment::clear);
+        this.segments.clear();
+        this.slotSegments.clear();
+        this.size.set(0);
+    }
+
+    /**
+     * Called after a token was added, while holding the lock of its (attachment, macro origin) entry.
+     *
+     * @param token the added token
+     */
+    protected void tokenAdded(DelegatedToken token)
+    {
+        // Nothing to do for the in-memory store.
+    }
+
+    /**
+     * Called after a token was removed or replaced, while holding the lock of its (attachment, macro origin) entry.
+     *
+     * @param token the removed token
+     */
+    protected void tokenRemoved(DelegatedToken token)
+    {
+        // Nothing to do for the in-memory store.
+    }
+
+    /**
+     * Called after all the tokens delegating the attachments of a wiki were dropped at once, instead of calling
+     * {@link #tokenRemoved(DelegatedToken)} for each of them.
+     *
+     * @param wikiId the identifier of the deleted wiki
+     */
+    protected void wikiRemoved(String wikiId)
+    {
+        // Nothing to do for the in-memory store.
+    }
+
+    private DelegatedToken compute(String wikiId, AttachmentReference file, DocumentReference macroOrigin,
+        UnaryOperator<DelegatedToken> remappingFunction)
+    {
+        DelegatedTokenSegment segment = getSegment(wikiId);
+        return segment.compute(file, macroOrigin, (key, existingToken) -> {
+            DelegatedToken newToken = remappingFunction.apply(existingToken);
+            if (newToken != existingToken) {
+                newToken = segment.intern(newToken);
+                if (existingToken != null) {
+                    segment.unindex(existingToken);
+                    tokenRemoved(existingToken);
+                }
+                if (newToken != null) {
+                    segment.index(newToken);
+                    tokenAdded(newToken);
+                }
+            }
+            return newToken;
+        });
+    }
+
+    /**
+     * Removes the token with the given identifier from the indexes, whether it is the owner of its entry or a token
+     * kept valid after a concurrent restore. Must be called while holding the lock of the entry.
+     *
+     * @return the removed token, or {@code null} if there was no such token
+     */
+    private static DelegatedToken unindex(DelegatedTokenSegment segment, DelegatedTokenId tokenId)
+    {
+        DelegatedToken token = segment.get(tokenId);
+        if (token != null) {
+            segment.unindex(token);
+        }
+        return token;
+    }
+
+    private DelegatedToken find(String tokenId)
+    {
+        DelegatedTokenId id = DelegatedTokenId.parse(tokenId);
+        Set<DelegatedTokenSegment> candidates = id != null ? this.slotSegments.get(id.getSlot()) : null;
+        if (candidates != null) {
+            for (DelegatedTokenSegment segment : candidates) {
+                DelegatedToken token = segment.get(id);
+                if (token != null) {
+                    return token;
+                }
+            }
+        }
+        return null;
+    }
+
+    private DelegatedTokenSegment getSegment(String wikiId)
+    {
+        return this.segments.computeIfAbsent(wikiId, key -> {
+            DelegatedTokenSegment segment = new DelegatedTokenSegment(key, this.size);
+            this.slotSegments.computeIfAbsent(DelegatedTokenId.getSlot(key), slot -> ConcurrentHashMap.newKeySet())
+                .add(segment);
+            return segment;
+        });
+    }
+
+    /**
+     * Drops the segment of the given wiki at once. A token added concurrently to the dropped segment is lost, which is
+     * fine since its attachment is being deleted.
+     */
+    private DelegatedTokenSegment dropSegment(String wikiId)
+    {
+        DelegatedTokenSegment segment = this.segments.remove(wikiId);
+        if (segment != null) {
+            segment.detach();
+            this.slotSegments.computeIfPresent(DelegatedTokenId.getSlot(wikiId), (slot, slotSegment) -> {
+                slotSegment.remove(segment);
+                return slotSegment.isEmpty() ? null : slotSegment;
+            });
+        }
+        return segment;
+    }
+
+    private Collection<DelegatedToken> removeDocumentTokens(DocumentReference document,
+        Predicate<DelegatedToken> filter, BiPredicate<DelegatedToken, AttachmentReference> affectedFile)
+    {
+        List<DelegatedToken> removedTokens = new ArrayList<>();
+        for (DelegatedTokenSegment segment : this.segments.values()) {
+            removedTokens.addAll(removeTokens(segment.getDocumentTokens(document, filter), affectedFile));
+        }
+        return removedTokens;
+    }
+
+    /**
+     * Removes the given tokens, unless they were already removed or replaced. The grants covering other attachments
+     * than the affected ones only stop covering the affected attachments, so that the access tokens already handed out
+     * for the other attachments remain valid.
+     *
+     * @param affectedFile selects the attachments of each token that must not be accessed anymore
+     * @return the tokens that don't give access to the affected attachments anymore, including the grants that still
+     *     cover other attachments
+     */
+    private Collection<DelegatedToken> removeTokens(Collection<DelegatedToken> candidates,
+        BiPredicate<DelegatedToken, AttachmentReference> affectedFile)
+    {
+        List<DelegatedToken> removedTokens = new ArrayList<>();
+        for (DelegatedToken token : candidates) {
+            if (token.isGrant() ? revokeFiles(token, affectedFile) : remove(token)) {
+                removedTokens.add(token);
+            }
+        }
+        return removedTokens;
+    }
+
+    /**
+     * Removes the affected attachments from the given grant, or the whole grant when it doesn't cover any other
+     * attachment. The grant keeps its identifier and the indexes of its other attachments.
+     *
+     * @return {@code true} if the grant was changed by this call, {@code false} otherwise
+     */
+    private boolean revokeFiles(DelegatedToken grant, BiPredicate<DelegatedToken, AttachmentReference> affectedFile)
+    {
+        DelegatedTokenSegment segment = this.segments.get(grant.getWikiId());
+        if (segment == null) {
+            return false;
+        }
+        boolean[] revoked = new boolean[1];
+        segment.compute(grant, (key, ownerToken) -> {
+            // Start from the stored version, which might have been extended since the candidates were collected.
+            DelegatedToken storedGrant = segment.get(grant.getId());
+            DelegatedToken newGrant = storedGrant;
+            List<AttachmentReference> files = storedGrant != null ? storedGrant.getGrantedFiles() : List.of();
+            for (int i = 0; i < files.size() && newGrant != null; i++) {
+                if (files.get(i) != null && affectedFile.test(storedGrant, files.get(i))) {
+                    newGrant = newGrant.withoutFile(i);
+                }
+            }
+            if (newGrant == storedGrant) {
+                return ownerToken;
+            }
+            segment.unindex(storedGrant);
+            tokenRemoved(storedGrant);
+            if (newGrant != null) {
+                newGrant = segment.intern(newGrant);
+                segment.index(newGrant);
+                tokenAdded(newGrant);
+            }
+            revoked[0] = true;
+            return storedGrant.equals(ownerToken) ? newGrant : ownerToken;
+        });
+        return revoked[0];
+    }
+
+    private static long getMemoryFootprint(DelegatedTokenSegment segment)
+    {
+        return DelegatedTokenFootprint.estimate(segment.getTokens(), segment.getIndexSetCount());
+    }
+}
@@ -19,37 +19,120 @@
  */
 package com.xwiki.pdfviewer.internal.token;
 
-import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
 
-import org.apache.commons.lang3.builder.EqualsBuilder;
-import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.model.reference.DocumentReference;
 
 /**
- * Token used in order to authenticate requests done to gain an attachment content.
+ * Token used in order to authenticate requests done to gain an attachment content. A token is either issued for a
+ * single attachment, or it is a grant covering all the attachments delegated by the macros of its origin document,
+ * which all belong to the wiki of the macro origin.
  *
  * @version $Id$
  * @since 2.7
  */
 public class DelegatedToken
 {
-    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+    private final DelegatedTokenId id;
 
     private final DocumentReference user;
 
     private final AttachmentReference fileReference;
 
+    /**
+     * The attachments covered by a grant, in the order of their indexes, with {@code null} in place of the attachments
+     * revoked from the grant, or {@code null} for the tokens issued for a single attachment.
+     */
+    private final List<AttachmentReference> grantedFiles;
+
     private final DocumentReference macroOrigin;
 
-    private final int randomNumber;
+    private final long expirationTime;
+
+    private final long idleTimeout;
+
+    private volatile long lastAccessTime;
 
     DelegatedToken(DocumentReference user, AttachmentReference file, DocumentReference macroOrigin)
     {
+        this(user, file, macroOrigin, 0, 0);
+    }
+
+    /**
+     * @param timeToLive the number of milliseconds after which the token expires, or {@code 0} for no limit
+     * @param idleTimeout the number of milliseconds after which the token expires if it is not accessed, or {@code 0}
+     *     for no limit
+     */
+    DelegatedToken(DocumentReference user, AttachmentReference file, DocumentReference macroOrigin, long timeToLive,
+        long idleTimeout)
+    {
+        this(user, file, null, macroOrigin, timeToLive, idleTimeout);
+    }
+
+    /**
+     * Creates a grant covering the given attachments.
+     *
+     * @param files the delegated attachments, belonging to the wiki of the macro origin
+     * @param timeToLive the number of milliseconds after which the grant expires, or {@code 0} for no limit
+     * @param idleTimeout the number of milliseconds after which the grant expires if it is not accessed, or {@code 0}
+     *     for no limit
+     */
+    DelegatedToken(DocumentReference user, List<AttachmentReference> files, DocumentReference macroOrigin,
+        long timeToLive, long idleTimeout)
+    {
+        this(user, getFirstFile(files), copy(files), macroOrigin, timeToLive, idleTimeout);
+    }
+
+    private DelegatedToken(DocumentReference user, AttachmentReference file, List<AttachmentReference> grantedFiles,
+        DocumentReference macroOrigin, long timeToLive, long idleTimeout)
+    {
+        this.user = user;
+        this.fileReference = file;
+        this.grantedFiles = grantedFiles;
+        this.macroOrigin = macroOrigin;
+        this.id = DelegatedTokenId.generate(getWikiId());
+        this.lastAccessTime = System.currentTimeMillis();
+        this.expirationTime = timeToLive > 0 ? this.lastAccessTime + timeToLive : Long.MAX_VALUE;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Restores a token that was previously persisted, or copies a token.
+     */
+    DelegatedToken(DelegatedTokenId id, DocumentReference user, AttachmentReference file, DocumentReference macroOrigin,
+        long expirationTime, long idleTimeout, long lastAccessTime)
+    {
+        this(id, user, file, null, macroOrigin, expirationTime, idleTimeout, lastAccessTime);
+    }
+
+    /**
+     * Restores a grant that was previously persisted, or copies a grant.
+     *
+     * @param files the attachments covered by the grant, with {@code null} in place of the revoked ones
+     */
+    DelegatedToken(DelegatedTokenId id, DocumentReference user, List<AttachmentReference> files,
+        DocumentReference macroOrigin, long expirationTime, long idleTimeout, long lastAccessTime)
+    {
+        this(id, user, getFirstFile(files), copy(files), macroOrigin, expirationTime, idleTimeout, lastAccessTime);
+    }
+
+    private DelegatedToken(DelegatedTokenId id, DocumentReference user, AttachmentReference file,
+        List<AttachmentReference> grantedFiles, DocumentReference macroOrigin, long expirationTime, long idleTimeout,
+        long lastAccessTime)
+    {
+        this.id = id;
         this.user = user;
         this.fileReference = file;
+        this.grantedFiles = grantedFiles;
         this.macroOrigin = macroOrigin;
-        this.randomNumber = Math.abs(SECURE_RANDOM.nextInt());
+        this.expirationTime = expirationTime;
+        this.idleTimeout = idleTimeout;
+        this.lastAccessTime = lastAccessTime;
     }
 
     /**
@@ -61,13 +144,45 @@ public class DelegatedToken
     }
 
     /**
-     * @return the id of the file corresponding to this token
+     * @return the id of the file corresponding to this token, or the first file covered by the grant
      */
     public AttachmentReference getFileReference()
     {
         return this.fileReference;
     }
 
+    /**
+     * @return the files covered by this token, without the files revoked from a grant
+     */
+    public List<AttachmentReference> getFileReferences()
+    {
+        if (this.grantedFiles == null) {
+            return List.of(this.fileReference);
+        } else if (!this.grantedFiles.contains(null)) {
+            return this.grantedFiles;
+        }
+        return this.grantedFiles.stream().filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    /**
+     * @param index the index of a file covered by this token
+     * @return the file with the given index, or {@code null} if there is no such file or if it was revoked
+     */
+    public AttachmentReference getFileReference(int index)
+    {
+        List<AttachmentReference> files = getGrantedFiles();
+        return index >= 0 && index < files.size() ? files.get(index) : null;
+    }
+
+    /**
+     * @return {@code true} if this token is a grant covering the attachments delegated by the macros of its origin
+     *     document, {@code false} if it was issued for a single attachment
+     */
+    public boolean isGrant()
+    {
+        return this.grantedFiles != null;
+    }
+
     /**
      * @return the macro origin corresponding to this token
      */
@@ -76,40 +191,127 @@ public class DelegatedToken
         return macroOrigin;
     }
 
+    /**
+     * @return the last time this token was used to access the file content, in milliseconds
+     */
+    public long getLastAccessTime()
+    {
+        return this.lastAccessTime;
+    }
+
+    /**
+     * Mark the token as used at the given time, postponing its idle expiration.
+     *
+     * @param time the access time, in milliseconds
+     */
+    public void touch(long time)
+    {
+        this.lastAccessTime = time;
+    }
+
+    /**
+     * @param time the time to check against, in milliseconds
+     * @return {@code true} if the token reached its time to live or its idle timeout at the given time, {@code false}
+     *     otherwise
+     */
+    public boolean isExpired(long time)
+    {
+        return time >= this.expirationTime || (this.idleTimeout > 0 && time - this.lastAccessTime >= this.idleTimeout);
+    }
+
+    /**
+     * @return the opaque and URL safe identifier of this token
+     */
     @Override
     public String toString()
     {
-        return String.format("wopi_%s_%s_%s_%s", this.user.toString(), this.fileReference.toString(),
-            this.getMacroOrigin().toString(), this.randomNumber);
+        return this.id.toString();
     }
 
     @Override
     public int hashCode()
     {
-        return new HashCodeBuilder().append(this.getUser()).append(this.getFileReference().toString())
-            .append(this.getMacroOrigin().toString()).append(this.getRandomNumber()).toHashCode();
+        return this.id.hashCode();
     }
 
     @Override
     public boolean equals(Object obj)
     {
-        if (!(obj instanceof DelegatedToken)) {
-            return false;
+        return obj instanceof DelegatedToken && this.id.equals(((DelegatedToken) obj).id);
+    }
+
+    /**
+     * @param files the files covered by the grant, starting with the ones already covered by this grant
+     * @return a copy of this grant covering the given files, keeping the same identifier so that the indexes already
+     *     handed out remain valid
+     */
+    DelegatedToken withFiles(List<AttachmentReference> files)
+    {
+        return new DelegatedToken(this.id, this.user, files, this.macroOrigin, this.expirationTime, this.idleTimeout,
+            this.lastAccessTime);
+    }
+
+    /**
+     * @param index the index of a file covered by this grant
+     * @return a copy of this grant that doesn't cover the file with the given index anymore, keeping the same
+     *     identifier and the indexes of the other files, or {@code null} if the grant doesn't cover any other file
+     */
+    DelegatedToken withoutFile(int index)
+    {
+        List<AttachmentReference> files = new ArrayList<>(getGrantedFiles());
+        files.set(index, null);
+        if (files.stream().allMatch(Objects::isNull)) {
+            return null;
         }
-        DelegatedToken other = (DelegatedToken) obj;
-        EqualsBuilder builder = new EqualsBuilder();
+        return new DelegatedToken(this.id, this.user, files, this.macroOrigin, this.expirationTime, this.idleTimeout,
+            this.lastAccessTime);
+    }
+
+    /**
+     * @return the files covered by this token, in the order of their indexes, with {@code null} in place of the files
+     *     revoked from a grant
+     */
+    List<AttachmentReference> getGrantedFiles()
+    {
+        return this.grantedFiles != null ? this.grantedFiles : List.of(this.fileReference);
+    }
+
+    /**
+     * @return the wiki of the delegated attachments
+     */
+    String getWikiId()
+    {
+        return this.fileReference.getDocumentReference().getWikiReference().getName();
+    }
+
+    DelegatedTokenId getId()
+    {
+        return this.id;
+    }
+
+    long getExpirationTime()
+    {
+        return this.expirationTime;
+    }
 
-        builder.append(this.getUser(), other.getUser());
-        builder.append(this.getFileReference(), other.getFileReference());
-        builder.append(this.getMacroOrigin(), other.getMacroOrigin());
-        builder.append(this.getRandomNumber(), other.getRandomNumber());
+    long getIdleTimeout()
+    {
+        return this.idleTimeout;
+    }
 
-        return builder.build();
+    /**
+     * The first file that is still covered gives the wiki of the grant, which is the same for all its files.
+     */
+    private static AttachmentReference getFirstFile(List<AttachmentReference> files)
+    {
+        return files.stream().filter(Objects::nonNull).findFirst()
+            .orElseThrow(() -> new IllegalArgumentException("A grant must cover at least one file."));
     }
 
-    private int getRandomNumber()
+    private static List<AttachmentReference> copy(List<AttachmentReference> files)
     {
-        return this.randomNumber;
+        // The revoked files are kept as null elements, which the immutable lists don't support.
+        return Collections.unmodifiableList(new ArrayList<>(files));
     }
 }
 
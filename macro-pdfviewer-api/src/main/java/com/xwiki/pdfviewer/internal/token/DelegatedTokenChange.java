@@ -0,0 +1,149 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.io.Serializable;
+import java.util.List;
+
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * A change of the delegated tokens kept by a store, sent to the other cluster nodes or recorded in the token log.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+final class DelegatedTokenChange implements Serializable
+{
+    enum Type
+    {
+        ADDED,
+        REMOVED,
+        TOUCHED,
+        WIKI_REMOVED
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    private final Type type;
+
+    /**
+     * The token identifier, or the wiki identifier for {@link Type#WIKI_REMOVED}.
+     */
+    private final String id;
+
+    private final DocumentReference user;
+
+    private final AttachmentReference file;
+
+    /**
+     * The attachments covered by the added grant, or {@code null} if the added token is not a grant.
+     */
+    private final List<AttachmentReference> grantedFiles;
+
+    private final DocumentReference macroOrigin;
+
+    private final long expirationTime;
+
+    private final long idleTimeout;
+
+    private final long lastAccessTime;
+
+    private DelegatedTokenChange(Type type, String id, DelegatedToken token, long lastAccessTime)
+    {
+        this.type = type;
+        this.id = id;
+        boolean added = type == Type.ADDED;
+        this.user = added ? token.getUser() : null;
+        this.file = added ? token.getFileReference() : null;
+        this.grantedFiles = added && token.isGrant() ? token.getGrantedFiles() : null;
+        this.macroOrigin = added ? token.getMacroOrigin() : null;
+        this.expirationTime = added ? token.getExpirationTime() : 0;
+        this.idleTimeout = added ? token.getIdleTimeout() : 0;
+        this.lastAccessTime = lastAccessTime;
+    }
+
+    static DelegatedTokenChange added(DelegatedToken token)
+    {
+        return new DelegatedTokenChange(Type.ADDED, token.toString(), token, token.getLastAccessTime());
+    }
+
+    static DelegatedTokenChange removed(DelegatedToken token)
+    {
+        return new DelegatedTokenChange(Type.REMOVED, token.toString(), token, 0);
+    }
+
+    static DelegatedTokenChange touched(DelegatedToken token, long time)
+    {
+        return new DelegatedTokenChange(Type.TOUCHED, token.toString(), token, time);
+    }
+
+    static DelegatedTokenChange wikiRemoved(String wikiId)
+    {
+        return new DelegatedTokenChange(Type.WIKI_REMOVED, wikiId, null, 0);
+    }
+
+    /**
+     * @param type the type of change, other than {@link Type#ADDED}
+     * @param id the token identifier, or the wiki identifier for {@link Type#WIKI_REMOVED}
+     * @param lastAccessTime the access time for {@link Type#TOUCHED}, ignored otherwise
+     * @return the change
+     */
+    static DelegatedTokenChange of(Type type, String id, long lastAccessTime)
+    {
+        if (type == Type.ADDED) {
+            throw new IllegalArgumentException("The added changes are created from their token.");
+        }
+        return new DelegatedTokenChange(type, id, null, lastAccessTime);
+    }
+
+    Type getType()
+    {
+        return this.type;
+    }
+
+    String getId()
+    {
+        return this.id;
+    }
+
+    long getLastAccessTime()
+    {
+        return this.lastAccessTime;
+    }
+
+    /**
+     * @return the added token, or {@code null} if its identifier is invalid
+     */
+    DelegatedToken getToken()
+    {
+        DelegatedTokenId tokenId = DelegatedTokenId.parse(this.id);
+        if (tokenId == null) {
+            return null;
+        }
+        if (this.grantedFiles != null) {
+            return new DelegatedToken(tokenId, this.user, this.grantedFiles, this.macroOrigin, this.expirationTime,
+                this.idleTimeout, this.lastAccessTime);
+        }
+        return new DelegatedToken(tokenId, this.user, this.file, this.macroOrigin, this.expirationTime,
+            this.idleTimeout, this.lastAccessTime);
+    }
+}
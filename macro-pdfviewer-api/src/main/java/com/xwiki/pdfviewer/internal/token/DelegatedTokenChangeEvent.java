@@ -0,0 +1,64 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xwiki.observation.event.Event;
+
+/**
+ * Sent by {@link ClusterDelegatedTokenStore} with a batch of changes of its tokens, so that the other cluster nodes
+ * apply them to their own store.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+public class DelegatedTokenChangeEvent implements Event, Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final List<DelegatedTokenChange> changes;
+
+    /**
+     * Matches all the batches of changes.
+     */
+    public DelegatedTokenChangeEvent()
+    {
+        this(List.of());
+    }
+
+    DelegatedTokenChangeEvent(List<DelegatedTokenChange> changes)
+    {
+        this.changes = new ArrayList<>(changes);
+    }
+
+    List<DelegatedTokenChange> getChanges()
+    {
+        return this.changes;
+    }
+
+    @Override
+    public boolean matches(Object otherEvent)
+    {
+        return otherEvent instanceof DelegatedTokenChangeEvent;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.WikiReference;
+
+/**
+ * Estimates the heap used by the in-memory token store, assuming a 64-bit JVM with compressed references. The shared
+ * references are only counted once, so the estimate reflects the deduplication done by
+ * {@link EntityReferenceInterner}.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+final class DelegatedTokenFootprint
+{
+    /**
+     * The token itself: header, 5 references and 3 {@code long}s.
+     */
+    private static final long TOKEN_SIZE = 56;
+
+    /**
+     * The identifier: header and 2 {@code long}s.
+     */
+    private static final long TOKEN_ID_SIZE = 32;
+
+    /**
+     * A concurrent map node, plus its share of the map table.
+     */
+    private static final long MAP_ENTRY_SIZE = 40;
+
+    /**
+     * The (attachment, macro origin) pair used as key of the origin index.
+     */
+    private static final long ORIGIN_KEY_SIZE = 24;
+
+    /**
+     * Each token has an entry in the identifier map, in the origin index and in the attachment index, plus one entry
+     * in the document index for each of its distinct documents and one entry in the wiki index for each of its
+     * distinct wikis, besides the wiki of its segment.
+     */
+    private static final long PER_TOKEN_SIZE = TOKEN_SIZE + TOKEN_ID_SIZE + ORIGIN_KEY_SIZE + 3 * MAP_ENTRY_SIZE;
+
+    /**
+     * A set of tokens of a reverse index: the key set view, its map and a small table, plus the index entry.
+     */
+    private static final long PER_INDEX_SET_SIZE = 208;
+
+    /**
+     * The immutable list of the attachments covered by a grant, without its elements.
+     */
+    private static final long GRANTED_FILES_SIZE = 16;
+
+    private static final long ELEMENT_SIZE = 4;
+
+    private static final long REFERENCE_SIZE = 32;
+
+    private static final long STRING_SIZE = 24;
+
+    private static final long ARRAY_HEADER_SIZE = 16;
+
+    private static final int ALIGNMENT = 8;
+
+    private DelegatedTokenFootprint()
+    {
+    }
+
+    /**
+     * @param tokens the tokens of a store segment
+     * @param indexSets the number of token sets in the reverse indexes of the segment
+     * @return the estimated number of bytes used by the given tokens and the segment indexes
+     */
+    static long estimate(Collection<DelegatedToken> tokens, int indexSets)
+    {
+        Set<EntityReference> references = Collections.newSetFromMap(new IdentityHashMap<>());
+        long size = 0;
+        for (DelegatedToken token : tokens) {
+            size += PER_TOKEN_SIZE + getIndexEntries(token) * MAP_ENTRY_SIZE;
+            size += estimate(token.getUser(), references);
+            size += estimate(token.getMacroOrigin(), references);
+            List<AttachmentReference> files = token.getFileReferences();
+            for (AttachmentReference file : files) {
+                size += estimate(file, references);
+            }
+            if (token.isGrant()) {
+                // Each covered attachment besides the first one has its own entry in the attachment index.
+                size += GRANTED_FILES_SIZE + align(ARRAY_HEADER_SIZE + token.getGrantedFiles().size() * ELEMENT_SIZE)
+                    + (files.size() - 1) * MAP_ENTRY_SIZE;
+            }
+        }
+        return size + indexSets * PER_INDEX_SET_SIZE;
+    }
+
+    private static int getIndexEntries(DelegatedToken token)
+    {
+        Set<DocumentReference> documents = new HashSet<>();
+        Set<WikiReference> wikis = new HashSet<>();
+        List<DocumentReference> related = new ArrayList<>(Arrays.asList(token.getMacroOrigin(), token.getUser()));
+        token.getFileReferences().forEach(file -> related.add(file.getDocumentReference()));
+        for (DocumentReference document : related) {
+            if (document != null) {
+                documents.add(document);
+                wikis.add(document.getWikiReference());
+            }
+        }
+        return documents.size() + wikis.size() - 1;
+    }
+
+    private static long estimate(EntityReference reference, Set<EntityReference> references)
+    {
+        long size = 0;
+        // Stop at the first reference already counted, since it shares its parents too.
+        for (EntityReference current = reference; current != null && references.add(current);
+            current = current.getParent())
+        {
+            size += REFERENCE_SIZE + STRING_SIZE + align(ARRAY_HEADER_SIZE + StringUtils.length(current.getName()));
+        }
+        return size;
+    }
+
+    private static long align(long size)
+    {
+        return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+}
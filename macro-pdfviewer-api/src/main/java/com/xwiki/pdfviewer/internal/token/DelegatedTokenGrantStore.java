@@ -0,0 +1,46 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.util.function.UnaryOperator;
+
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Implemented by the {@link DelegatedTokenStore}s able to keep grants covering multiple attachments. The stores that
+ * don't implement it issue a token for each attachment.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+public interface DelegatedTokenGrantStore
+{
+    /**
+     * Atomically replaces the grant covering the attachments delegated by the macros of the given document. The given
+     * function must not access the store for the same document, and the grants it returns must only cover attachments
+     * of the wiki of the macro origin.
+     *
+     * @param macroOrigin the macro origin document
+     * @param remappingFunction computes the new grant from the current one, both of them being {@code null} when
+     *     there is no grant
+     * @return the new grant, or {@code null} if there is no grant anymore
+     */
+    DelegatedToken computeGrant(DocumentReference macroOrigin, UnaryOperator<DelegatedToken> remappingFunction);
+}
@@ -0,0 +1,154 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * The 128 bits identifying a {@link DelegatedToken}, kept as two {@code long}s so that the token maps use a small
+ * fixed-size key. The identifier is only encoded as a string when it is sent to the client.
+ * <p>
+ * The first 16 bits are derived from the wiki of the delegated attachment, so that the store finds the partition
+ * holding the token without any shared lookup table. The remaining 112 bits are random.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+final class DelegatedTokenId
+{
+    private static final int SIZE = 16;
+
+    private static final int ENCODED_LENGTH = 22;
+
+    private static final int SLOT_SHIFT = 48;
+
+    private static final int SLOT_MASK = 0xFFFF;
+
+    private static final long RANDOM_MASK = (1L << SLOT_SHIFT) - 1;
+
+    /**
+     * One DRBG generator per thread, since the generation of a DRBG instance is synchronized and the default native
+     * generators all share the same lock and entropy source.
+     */
+    private static final ThreadLocal<SecureRandom> SECURE_RANDOM =
+        ThreadLocal.withInitial(DelegatedTokenId::createRandom);
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final long high;
+
+    private final long low;
+
+    private DelegatedTokenId(long high, long low)
+    {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * @param wikiId the wiki of the delegated attachment
+     * @return a new random identifier
+     */
+    static DelegatedTokenId generate(String wikiId)
+    {
+        byte[] randomBytes = new byte[SIZE];
+        SECURE_RANDOM.get().nextBytes(randomBytes);
+        ByteBuffer bytes = ByteBuffer.wrap(randomBytes);
+        return new DelegatedTokenId(((long) getSlot(wikiId) << SLOT_SHIFT) | (bytes.getLong() & RANDOM_MASK),
+            bytes.getLong());
+    }
+
+    private static SecureRandom createRandom()
+    {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            // DRBG is always available since Java 9.
+            throw new IllegalStateException("Failed to create the generator of the delegated token identifiers.", e);
+        }
+    }
+
+    /**
+     * @param wikiId a wiki identifier
+     * @return the slot of the identifiers of the tokens delegating the attachments of the given wiki
+     */
+    static int getSlot(String wikiId)
+    {
+        // The string hash is stable, so the persisted identifiers keep their slot after a restart.
+        return wikiId != null ? wikiId.hashCode() & SLOT_MASK : 0;
+    }
+
+    /**
+     * @param value the string representation of an identifier
+     * @return the corresponding identifier, or {@code null} if the given value is not a valid identifier
+     */
+    static DelegatedTokenId parse(String value)
+    {
+        if (value == null || value.length() != ENCODED_LENGTH) {
+            return null;
+        }
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(DECODER.decode(value));
+            DelegatedTokenId id = new DelegatedTokenId(bytes.getLong(), bytes.getLong());
+            // Reject the alternative encodings of the same bits.
+            return value.equals(id.toString()) ? id : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the slot of this identifier, see {@link #getSlot(String)}
+     */
+    int getSlot()
+    {
+        return (int) (this.high >>> SLOT_SHIFT);
+    }
+
+    /**
+     * @return the identifier encoded as 22 URL safe characters
+     */
+    @Override
+    public String toString()
+    {
+        return ENCODER.encodeToString(ByteBuffer.allocate(SIZE).putLong(this.high).putLong(this.low).array());
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Long.hashCode(this.high) ^ Long.hashCode(this.low);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof DelegatedTokenId)) {
+            return false;
+        }
+        DelegatedTokenId other = (DelegatedTokenId) obj;
+        return this.high == other.high && this.low == other.low;
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xwiki.pdfviewer.internal.configuration.PDFViewerConfiguration;
+
+/**
+ * Removes the delegated tokens made useless by wiki changes on a background thread, so that deleting many attachments
+ * or documents doesn't pay for the token store work. The invalidations are coalesced and applied in batches.
+ * <p>
+ * A token targeted by an invalidation that is not applied yet is already rejected, see
+ * {@link #isInvalidated(DelegatedToken)}, so the REST endpoint sees the revocations as soon as they are requested.
+ * When the queue is full, the invalidations are applied on the calling thread.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component(roles = DelegatedTokenInvalidator.class)
+@Singleton
+public class DelegatedTokenInvalidator implements Initializable, Disposable
+{
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    private static final long SHUTDOWN_TIMEOUT = 10;
+
+    /**
+     * Minimum number of milliseconds between two reports of the statistics.
+     */
+    private static final long STATISTICS_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+
+    private enum Scope
+    {
+        ATTACHMENT,
+        DOCUMENT,
+        ORIGIN,
+        WIKI
+    }
+
+    /**
+     * An invalidation request, used as key to coalesce the identical requests.
+     */
+    private static final class Invalidation
+    {
+        private final Scope scope;
+
+        private final Object reference;
+
+        private final long time = System.currentTimeMillis();
+
+        Invalidation(Scope scope, Object reference)
+        {
+            this.scope = scope;
+            this.reference = reference;
+        }
+
+        @Override
+        public boolean equals(Object object)
+        {
+            if (this == object) {
+                return true;
+            }
+            if (!(object instanceof Invalidation)) {
+                return false;
+            }
+            Invalidation other = (Invalidation) object;
+            return this.scope == other.scope && this.reference.equals(other.reference);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(this.scope, this.reference);
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.scope + " " + this.reference;
+        }
+    }
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Provider<DelegatedTokenManager> tokenManagerProvider;
+
+    @Inject
+    private PDFViewerConfiguration configuration;
+
+    private BlockingQueue<Invalidation> queue;
+
+    /**
+     * The invalidations waiting in the queue, used to drop the duplicates.
+     */
+    private final Set<Invalidation> queuedInvalidations = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The invalidations not applied yet, either queued or being applied, with their number of occurrences.
+     */
+    private final Map<Invalidation, Integer> pendingInvalidations = new ConcurrentHashMap<>();
+
+    private final AtomicLong requested = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final AtomicLong applied = new AtomicLong();
+
+    private final AtomicLong batches = new AtomicLong();
+
+    private final AtomicLong overflowed = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong maxDelay = new AtomicLong();
+
+    private volatile long statisticsTime;
+
+    private ExecutorService worker;
+
+    @Override
+    public void initialize()
+    {
+        this.queue = new LinkedBlockingQueue<>(this.configuration.getInvalidationQueueSize());
+        this.worker = Executors.newSingleThreadExecutor(
+            new BasicThreadFactory.Builder().namingPattern("PDF Viewer token invalidator").daemon(true).build());
+        this.worker.execute(this::run);
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.worker.shutdownNow();
+        try {
+            this.worker.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * Removes the tokens delegating the given attachment.
+     *
+     * @param file the deleted or updated attachment
+     */
+    public void invalidateAttachment(AttachmentReference file)
+    {
+        invalidate(new Invalidation(Scope.ATTACHMENT, file));
+    }
+
+    /**
+     * Removes the tokens related to the given document, see {@link DelegatedTokenManager#clearDocumentTokens}.
+     *
+     * @param document the deleted document
+     */
+    public void invalidateDocument(DocumentReference document)
+    {
+        invalidate(new Invalidation(Scope.DOCUMENT, document));
+    }
+
+    /**
+     * Removes the tokens issued for the macros of the given document.
+     *
+     * @param macroOrigin the document that doesn't contain PDF viewer macros anymore
+     */
+    public void invalidateOrigin(DocumentReference macroOrigin)
+    {
+        invalidate(new Invalidation(Scope.ORIGIN, macroOrigin));
+    }
+
+    /**
+     * Removes the tokens related to any document of the given wiki.
+     *
+     * @param wikiId the identifier of the deleted wiki
+     */
+    public void invalidateWiki(String wikiId)
+    {
+        invalidate(new Invalidation(Scope.WIKI, wikiId));
+    }
+
+    /**
+     * @param token a delegated token
+     * @return {@code true} if the given token is targeted by an invalidation that is not applied yet, {@code false}
+     *     otherwise
+     */
+    public boolean isInvalidated(DelegatedToken token)
+    {
+        if (this.pendingInvalidations.isEmpty()) {
+            return false;
+        }
+        Set<DocumentReference> documents = new HashSet<>();
+        token.getFileReferences().forEach(file -> documents.add(file.getDocumentReference()));
+        documents.add(token.getMacroOrigin());
+        documents.add(token.getUser());
+        documents.remove(null);
+        Set<String> wikis = new HashSet<>();
+        documents.forEach(document -> wikis.add(document.getWikiReference().getName()));
+
+        return token.getFileReferences().stream().anyMatch(file -> isPending(Scope.ATTACHMENT, file))
+            || (token.getMacroOrigin() != null && isPending(Scope.ORIGIN, token.getMacroOrigin()))
+            || documents.stream().anyMatch(document -> isPending(Scope.DOCUMENT, document))
+            || wikis.stream().anyMatch(wiki -> isPending(Scope.WIKI, wiki));
+    }
+
+    /**
+     * @return the invalidation statistics, to monitor the background processing, also logged periodically at debug
+     *     level
+     */
+    public Map<String, Long> getStatistics()
+    {
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("requested", this.requested.get());
+        statistics.put("coalesced", this.coalesced.get());
+        statistics.put("applied", this.applied.get());
+        statistics.put("batches", this.batches.get());
+        statistics.put("overflowed", this.overflowed.get());
+        statistics.put("failed", this.failed.get());
+        statistics.put("queued", (long) this.queue.size());
+        statistics.put("maxDelay", this.maxDelay.get());
+        return statistics;
+    }
+
+    /**
+     * Applies the queued invalidations on the calling thread.
+     */
+    void flush()
+    {
+        List<Invalidation> batch = new ArrayList<>();
+        while (this.queue.drainTo(batch, MAX_BATCH_SIZE) > 0) {
+            apply(batch);
+            batch.clear();
+        }
+    }
+
+    private void invalidate(Invalidation invalidation)
+    {
+        this.requested.incrementAndGet();
+        // The invalidations already queued will be applied later, so they cover this one. The ones being applied don't
+        // since they might miss the tokens created meanwhile.
+        if (!this.queuedInvalidations.add(invalidation)) {
+            this.coalesced.incrementAndGet();
+            return;
+        }
+        this.pendingInvalidations.merge(invalidation, 1, Integer::sum);
+        if (!this.queue.offer(invalidation)) {
+            this.overflowed.incrementAndGet();
+            apply(List.of(invalidation));
+        }
+    }
+
+    private boolean isPending(Scope scope, Object reference)
+    {
+        return this.pendingInvalidations.containsKey(new Invalidation(scope, reference));
+    }
+
+    private void run()
+    {
+        List<Invalidation> batch = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(this.queue.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            this.queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+            try {
+                apply(batch);
+            } catch (Exception e) {
+                // Keep the worker alive, since the invalidations queued later would never be applied otherwise.
+                logger.warn("Failed to apply [{}] delegated token invalidations. Root cause is: [{}]", batch.size(),
+                    ExceptionUtils.getRootCauseMessage(e));
+            }
+            batch.clear();
+        }
+    }
+
+    private void apply(Collection<Invalidation> batch)
+    {
+        this.queuedInvalidations.removeAll(batch);
+        this.batches.incrementAndGet();
+
+        // The document and wiki invalidations cover the invalidations of what they contain.
+        Set<Object> documents = new HashSet<>();
+        Set<Object> wikis = new HashSet<>();
+        for (Invalidation invalidation : batch) {
+            if (invalidation.scope == Scope.DOCUMENT) {
+                documents.add(invalidation.reference);
+            } else if (invalidation.scope == Scope.WIKI) {
+                wikis.add(invalidation.reference);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        for (Invalidation invalidation : batch) {
+            // Each invalidation must leave the pending ones, even when the token manager can't be looked up, otherwise
+            // the tokens it targets would be rejected forever.
+            try {
+                if (isCovered(invalidation, documents, wikis)) {
+                    this.coalesced.incrementAndGet();
+                } else {
+                    apply(invalidation, this.tokenManagerProvider.get());
+                    this.applied.incrementAndGet();
+                }
+            } catch (Exception e) {
+                this.failed.incrementAndGet();
+                logger.warn("Failed to apply the delegated token invalidation [{}]. Root cause is: [{}]", invalidation,
+                    ExceptionUtils.getRootCauseMessage(e));
+            } finally {
+                this.pendingInvalidations.computeIfPresent(invalidation, (key, count) -> count > 1 ? count - 1 : null);
+                this.maxDelay.accumulateAndGet(now - invalidation.time, Math::max);
+            }
+        }
+        logStatistics(now);
+    }
+
+    /**
+     * Report the invalidation statistics periodically, in order to help sizing the queue.
+     */
+    private void logStatistics(long now)
+    {
+        if (logger.isDebugEnabled() && now - this.statisticsTime >= STATISTICS_INTERVAL) {
+            this.statisticsTime = now;
+            logger.debug("Delegated token invalidation statistics: [{}]", getStatistics());
+        }
+    }
+
+    private void apply(Invalidation invalidation, DelegatedTokenManager tokenManager)
+    {
+        switch (invalidation.scope) {
+            case ATTACHMENT:
+                AttachmentReference file = (AttachmentReference) invalidation.reference;
+                tokenManager.clearAttachmentTokens(file.getName(), file.getDocumentReference());
+                break;
+            case DOCUMENT:
+                tokenManager.clearDocumentTokens((DocumentReference) invalidation.reference);
+                break;
+            case ORIGIN:
+                tokenManager.clearOriginTokens((DocumentReference) invalidation.reference);
+                break;
+            default:
+                tokenManager.clearWikiTokens((String) invalidation.reference);
+                break;
+        }
+    }
+
+    private boolean isCovered(Invalidation invalidation, Set<Object> documents, Set<Object> wikis)
+    {
+        DocumentReference document;
+        if (invalidation.scope == Scope.ATTACHMENT) {
+            document = ((AttachmentReference) invalidation.reference).getDocumentReference();
+        } else if (invalidation.scope == Scope.WIKI) {
+            return false;
+        } else {
+            document = (DocumentReference) invalidation.reference;
+            if (invalidation.scope == Scope.DOCUMENT) {
+                return wikis.contains(document.getWikiReference().getName());
+            }
+        }
+        return documents.contains(document) || wikis.contains(document.getWikiReference().getName());
+    }
+}
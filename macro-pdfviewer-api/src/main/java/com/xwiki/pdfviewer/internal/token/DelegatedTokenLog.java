@@ -0,0 +1,395 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+
+/**
+ * An append-only log file, which can be shared by multiple XWiki instances, used by {@link FileDelegatedTokenStore}
+ * and {@link DelegatedTokenRevocations}. The records are appended under a file lock, and each instance reads the
+ * records appended by the others. The reads must not be concurrent, which is up to the caller.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+final class DelegatedTokenLog
+{
+    private static final int BUFFER_SIZE = 65536;
+
+    private static final int COMPACTION_THRESHOLD = 10000;
+
+    private final Path file;
+
+    private final Logger logger;
+
+    private volatile FileChannel channel;
+
+    private volatile Object fileKey;
+
+    /**
+     * The attributes of the log file when it was last read, used to skip the reads when it didn't change.
+     */
+    private volatile BasicFileAttributes readAttributes;
+
+    /**
+     * The position after the last record read.
+     */
+    private long readPosition;
+
+    /**
+     * The number of records in the log file, used to decide when to compact it.
+     */
+    private volatile int records;
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * The records waiting to be appended to the log file. They are queued while holding the lock of the token entry
+     * and written once it is released, so that the file I/O doesn't delay the other requests of the same token.
+     */
+    private final Queue<String> pendingRecords = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of records queued so far, and the number of them that were handled by {@link #writeRecords()}, used
+     * to know whether the records queued by the current thread still have to be written.
+     */
+    private final AtomicLong queuedRecords = new AtomicLong();
+
+    private volatile long writtenRecords;
+
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+    private final ExecutorService compactor;
+
+    /**
+     * @param file the log file, created when missing
+     * @param logger the logger of the log owner
+     */
+    DelegatedTokenLog(Path file, Logger logger)
+    {
+        this.file = file;
+        this.logger = logger;
+        this.compactor = Executors.newSingleThreadExecutor(
+            new BasicThreadFactory.Builder().namingPattern("PDF Viewer token log compactor").daemon(true).build());
+    }
+
+    Path getFile()
+    {
+        return this.file;
+    }
+
+    /**
+     * Opens the current log file, to read it again from the start. The queued records are written to it first.
+     */
+    void open() throws IOException
+    {
+        Files.createDirectories(this.file.getParent());
+        this.writeLock.lock();
+        try {
+            FileChannel previousChannel = this.channel;
+            this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+            closeQuietly(previousChannel);
+            this.fileKey = getFileKey();
+            this.records = 0;
+            writeRecords();
+        } finally {
+            this.writeLock.unlock();
+        }
+        this.readPosition = 0;
+    }
+
+    /**
+     * Writes the queued records and closes the log file.
+     */
+    void close()
+    {
+        this.compactor.shutdownNow();
+        this.writeLock.lock();
+        try {
+            writeRecords();
+            closeQuietly(this.channel);
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Queues a record, written by the next {@link #flush()}.
+     *
+     * @param record the record to append, without the line separator
+     */
+    void queue(String record)
+    {
+        this.pendingRecords.add(record);
+        this.queuedRecords.incrementAndGet();
+    }
+
+    /**
+     * Appends the records queued by the current thread to the log file, along with the records queued by the
+     * concurrent calls.
+     */
+    void flush()
+    {
+        if (this.writtenRecords >= this.queuedRecords.get()) {
+            return;
+        }
+        this.writeLock.lock();
+        try {
+            writeRecords();
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Passes the complete records appended since the last read to the given consumer.
+     *
+     * @param consumer the consumer of the records, without their line separator
+     */
+    void read(Consumer<String> consumer) throws IOException
+    {
+        // Read the attributes first, so that the records appended while reading are detected by the next read.
+        BasicFileAttributes attributes = getAttributes();
+        FileChannel sourceChannel = this.channel;
+        long size = sourceChannel.size();
+        long position = this.readPosition;
+        if (size > position) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, size - position));
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            while (position < size) {
+                buffer.clear();
+                int read = sourceChannel.read(buffer, position);
+                if (read <= 0) {
+                    break;
+                }
+                for (int i = 0; i < read; i++) {
+                    byte character = buffer.get(i);
+                    if (character == '\n') {
+                        consumer.accept(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                        this.records++;
+                        line.reset();
+                        // Only move past complete records, since the last one might still be written.
+                        this.readPosition = position + i + 1;
+                    } else {
+                        line.write(character);
+                    }
+                }
+                position += read;
+            }
+        }
+        this.readAttributes = attributes;
+    }
+
+    /**
+     * @return {@code true} if the log file was modified, replaced or removed since it was last read
+     */
+    boolean hasChanged()
+    {
+        BasicFileAttributes previousAttributes = this.readAttributes;
+        BasicFileAttributes attributes = getAttributes();
+        if (previousAttributes == null || attributes == null) {
+            return true;
+        }
+        Object currentKey = attributes.fileKey();
+        return attributes.size() != previousAttributes.size()
+            || !attributes.lastModifiedTime().equals(previousAttributes.lastModifiedTime())
+            || (currentKey != null && !currentKey.equals(this.fileKey));
+    }
+
+    /**
+     * @return {@code true} if the log file was replaced or removed by another instance, in which case it has to be
+     *     opened and read again
+     */
+    boolean isReplaced() throws IOException
+    {
+        if (!Files.exists(this.file)) {
+            return true;
+        }
+        Object currentKey = getFileKey();
+        return currentKey != null && !currentKey.equals(this.fileKey);
+    }
+
+    /**
+     * Runs the given compaction in the background once the log mostly contains obsolete records.
+     *
+     * @param liveRecords the number of records a compacted log would hold
+     * @param compaction reads the log and calls {@link #compact(Collection)}
+     */
+    void maybeCompact(int liveRecords, Runnable compaction)
+    {
+        int currentRecords = this.records;
+        if (currentRecords > COMPACTION_THRESHOLD && currentRecords > 2 * liveRecords
+            && this.compactionScheduled.compareAndSet(false, true))
+        {
+            this.compactor.execute(() -> {
+                try {
+                    compaction.run();
+                } finally {
+                    this.compactionScheduled.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Replaces the log file with the given records, unless it was compacted or modified by another instance since it
+     * was last read, the compaction being attempted again later in this case.
+     *
+     * @param liveRecords the records of the current tokens
+     * @return {@code true} if the log file was replaced, {@code false} otherwise
+     */
+    boolean compact(Collection<String> liveRecords) throws IOException
+    {
+        this.writeLock.lock();
+        try {
+            FileChannel currentChannel = this.channel;
+            try (FileLock lock = currentChannel.lock()) {
+                if (isReplaced() || currentChannel.size() > this.readPosition) {
+                    return false;
+                }
+                Path compactedFile = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+                StringBuilder content = new StringBuilder();
+                liveRecords.forEach(record -> content.append(record).append('\n'));
+                Files.write(compactedFile, content.toString().getBytes(StandardCharsets.UTF_8));
+                Files.move(compactedFile, this.file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+
+                // The new file matches the in-memory tokens, so there is no need to read it again.
+                this.channel = FileChannel.open(this.file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                this.fileKey = getFileKey();
+                this.readPosition = this.channel.size();
+                this.records = liveRecords.size();
+            }
+            closeQuietly(currentChannel);
+            return true;
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    int getRecordCount()
+    {
+        return this.records;
+    }
+
+    /**
+     * Appends the queued records to the log file in a single write. Must be called while holding {@link #writeLock}.
+     */
+    private void writeRecords()
+    {
+        // The records counted here are all in the queue already.
+        long queued = this.queuedRecords.get();
+        StringBuilder batch = new StringBuilder();
+        int count = 0;
+        String record;
+        while ((record = this.pendingRecords.poll()) != null) {
+            batch.append(record).append('\n');
+            count++;
+        }
+        if (count > 0) {
+            ByteBuffer buffer = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+            try {
+                FileChannel currentChannel = this.channel;
+                boolean replaced;
+                try (FileLock lock = currentChannel.lock()) {
+                    replaced = isReplaced();
+                    if (!replaced) {
+                        write(currentChannel, buffer);
+                    }
+                }
+                if (replaced) {
+                    // Another instance compacted the log. Write to the new file, and let the next refresh reload the
+                    // tokens from it.
+                    this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                    closeQuietly(currentChannel);
+                    try (FileLock lock = this.channel.lock()) {
+                        write(this.channel, buffer);
+                    }
+                }
+                this.records += count;
+            } catch (IOException e) {
+                this.logger.warn("Failed to append [{}] records to [{}]. Root cause is: [{}]", count,
+                    this.file, ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+        this.writtenRecords = queued;
+    }
+
+    private static void write(FileChannel targetChannel, ByteBuffer buffer) throws IOException
+    {
+        long position = targetChannel.size();
+        while (buffer.hasRemaining()) {
+            position += targetChannel.write(buffer, position);
+        }
+    }
+
+    private BasicFileAttributes getAttributes()
+    {
+        try {
+            return Files.readAttributes(this.file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            // The log file was removed.
+            return null;
+        }
+    }
+
+    private Object getFileKey() throws IOException
+    {
+        // Not all the file systems provide a file key, in which case the compactions of the other instances are
+        // detected only when the file is missing.
+        return Files.readAttributes(this.file, BasicFileAttributes.class).fileKey();
+    }
+
+    private void closeQuietly(FileChannel fileChannel)
+    {
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                this.logger.debug("Failed to close the log [{}].", this.file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+/**
+ * Converts the changes of the delegated tokens to the records of the log kept by {@link FileDelegatedTokenStore}, and
+ * back. Each record is a line of URL encoded fields separated by tabs, starting with the type of change.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component(roles = DelegatedTokenLogCodec.class)
+@Singleton
+public class DelegatedTokenLogCodec
+{
+    private static final String ADDED = "+";
+
+    private static final String GRANTED = "*";
+
+    private static final String REMOVED = "-";
+
+    private static final String TOUCHED = "~";
+
+    private static final String WIKI_REMOVED = "x";
+
+    private static final String SEPARATOR = "\t";
+
+    /**
+     * The index of the field holding the second attachment covered by a grant.
+     */
+    private static final int GRANTED_FILES_FIELD = 8;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    private EntityReferenceResolver<String> resolver;
+
+    /**
+     * @param change a change of the delegated tokens
+     * @return the record of the change, without the line separator
+     */
+    String encode(DelegatedTokenChange change)
+    {
+        switch (change.getType()) {
+            case ADDED:
+                return encodeToken(change.getToken());
+            case REMOVED:
+                return String.join(SEPARATOR, REMOVED, encode(change.getId()));
+            case TOUCHED:
+                return String.join(SEPARATOR, TOUCHED, encode(change.getId()),
+                    String.valueOf(change.getLastAccessTime()));
+            default:
+                return String.join(SEPARATOR, WIKI_REMOVED, encode(change.getId()));
+        }
+    }
+
+    /**
+     * @param record a record of the log, without the line separator
+     * @return the change recorded
+     * @throws IllegalArgumentException if the record is invalid
+     */
+    DelegatedTokenChange decode(String record)
+    {
+        String[] fields = record.split(SEPARATOR, -1);
+        if (fields.length < 2) {
+            throw new IllegalArgumentException("Missing record fields.");
+        }
+        String id = decode(fields[1]);
+        switch (fields[0]) {
+            case ADDED:
+            case GRANTED:
+                return DelegatedTokenChange.added(decodeToken(fields));
+            case REMOVED:
+                return DelegatedTokenChange.of(DelegatedTokenChange.Type.REMOVED, id, 0);
+            case TOUCHED:
+                return DelegatedTokenChange.of(DelegatedTokenChange.Type.TOUCHED, id, Long.parseLong(fields[2]));
+            case WIKI_REMOVED:
+                // The field holds the wiki identifier for this record.
+                return DelegatedTokenChange.of(DelegatedTokenChange.Type.WIKI_REMOVED, id, 0);
+            default:
+                throw new IllegalArgumentException("Unknown record type.");
+        }
+    }
+
+    /**
+     * The grants are recorded like the other tokens, followed by the attachments they cover besides the first one.
+     * The attachments revoked from a grant are recorded as empty fields, so that the other ones keep their index.
+     */
+    private String encodeToken(DelegatedToken token)
+    {
+        List<AttachmentReference> files = token.getGrantedFiles();
+        StringBuilder record = new StringBuilder(String.join(SEPARATOR, token.isGrant() ? GRANTED : ADDED,
+            encode(token.toString()), encode(this.serializer.serialize(token.getUser())), encodeFile(files.get(0)),
+            encode(this.serializer.serialize(token.getMacroOrigin())), String.valueOf(token.getExpirationTime()),
+            String.valueOf(token.getIdleTimeout()), String.valueOf(token.getLastAccessTime())));
+        files.stream().skip(1).forEach(file -> record.append(SEPARATOR).append(encodeFile(file)));
+        return record.toString();
+    }
+
+    private DelegatedToken decodeToken(String[] fields)
+    {
+        DocumentReference user = new DocumentReference(resolve(fields[2], EntityType.DOCUMENT));
+        AttachmentReference file = decodeFile(fields[3]);
+        DocumentReference macroOrigin = new DocumentReference(resolve(fields[4], EntityType.DOCUMENT));
+        DelegatedTokenId id = DelegatedTokenId.parse(decode(fields[1]));
+        if (id == null) {
+            throw new IllegalArgumentException("Invalid token identifier.");
+        }
+        long expirationTime = Long.parseLong(fields[5]);
+        long idleTimeout = Long.parseLong(fields[6]);
+        long lastAccessTime = Long.parseLong(fields[7]);
+        if (GRANTED.equals(fields[0])) {
+            List<AttachmentReference> files = new ArrayList<>();
+            files.add(file);
+            for (int i = GRANTED_FILES_FIELD; i < fields.length; i++) {
+                files.add(decodeFile(fields[i]));
+            }
+            return new DelegatedToken(id, user, files, macroOrigin, expirationTime, idleTimeout, lastAccessTime);
+        } else if (file == null) {
+            throw new IllegalArgumentException("Missing token attachment.");
+        }
+        return new DelegatedToken(id, user, file, macroOrigin, expirationTime, idleTimeout, lastAccessTime);
+    }
+
+    private String encodeFile(AttachmentReference file)
+    {
+        return file != null ? encode(this.serializer.serialize(file)) : "";
+    }
+
+    private AttachmentReference decodeFile(String field)
+    {
+        return field.isEmpty() ? null : new AttachmentReference(resolve(field, EntityType.ATTACHMENT));
+    }
+
+    private EntityReference resolve(String field, EntityType type)
+    {
+        return this.resolver.resolve(decode(field), type);
+    }
+
+    private static String encode(String value)
+    {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    private static String decode(String value)
+    {
+        return URLDecoder.decode(value, StandardCharsets.UTF_8);
+    }
+}
@@ -19,46 +19,92 @@
  */
 package com.xwiki.pdfviewer.internal.token;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
 import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.model.reference.DocumentReference;
-import org.xwiki.security.authorization.AuthorizationManager;
-import org.xwiki.security.authorization.ContextualAuthorizationManager;
-import org.xwiki.security.authorization.Right;
+
+import com.xwiki.pdfviewer.internal.configuration.PDFViewerConfiguration;
 
 /**
- * Manages the token actions for PDF viewer macro.
+ * Manages the token actions for PDF viewer macro. The tokens are kept in the {@link DelegatedTokenStore} selected in
+ * the configuration.
+ * <p>
+ * When the store supports it, the attachments delegated by the macros of a document share a single grant, so that the
+ * number of tokens and the cost of issuing them depend on the number of pages rather than on the number of
+ * attachments. The access token of a granted attachment is the grant identifier followed by the index of the
+ * attachment in the grant, see {@link #getTokens(DocumentReference, List, DocumentReference)}.
+ * <p>
+ * Expired tokens and the least recently used tokens exceeding the configured limits, globally and per wiki, are
+ * removed in the background by the {@link DelegatedTokenSweeper}.
  *
  * @version $Id$
  * @since 2.7
  */
 @Component(roles = DelegatedTokenManager.class)
 @Singleton
-public class DelegatedTokenManager
+public class DelegatedTokenManager implements Initializable
 {
     private static final String TOKEN_DELETE_FORMAT =
         "Deleted delegated token for file [{}] from macro origin document [{}].";
 
-    private final Map<String, DelegatedToken> tokens = new HashMap<>();
+    private static final String DEFAULT_STORE_HINT = "default";
+
+    /**
+     * Separates the grant identifier from the attachment index in the access tokens of the granted attachments. It is
+     * URL safe and it is not used by the token identifiers.
+     */
+    private static final char GRANT_FILE_SEPARATOR = '~';
 
     @Inject
     private Logger logger;
 
     @Inject
-    private AuthorizationManager authorizationManager;
+    private DelegatedTokenRightsCache rightsCache;
+
+    @Inject
+    private DelegatedTokenInvalidator invalidator;
+
+    @Inject
+    private PDFViewerConfiguration configuration;
 
     @Inject
-    private ContextualAuthorizationManager contextualAuthorizationManager;
+    private ComponentManager componentManager;
+
+    @Inject
+    private DelegatedTokenSweeper sweeper;
+
+    private DelegatedTokenStore store;
+
+    /**
+     * The store, if it supports grants, {@code null} otherwise.
+     */
+    private DelegatedTokenGrantStore grantStore;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.store = getStore();
+        this.grantStore = this.store instanceof DelegatedTokenGrantStore ? (DelegatedTokenGrantStore) this.store : null;
+        this.sweeper.start(this.store);
+    }
 
     /**
      * Get {@link DelegatedToken} corresponding to the given user, {@link AttachmentReference} and macro origin
@@ -72,22 +118,64 @@ public class DelegatedTokenManager
      */
     public String getToken(DocumentReference userReference, AttachmentReference fileId, DocumentReference macroOrigin)
     {
-        DelegatedToken token = getExistingToken(fileId, macroOrigin);
-        if (token != null) {
-            // If the token author is different from the current one, or if the author lacks the rights to view the
-            // attachment, we delete the token.
-            if (!userReference.equals(token.getUser())) {
-                logger.debug("Found token author [{}] is different from the given author [{}]. Removing token and "
-                    + "attempting to create a new one.", token.getUser(), userReference);
-                tokens.remove(token.toString());
-            } else if (!checkAuthorViewRights(token)) {
-                return "";
+        // Evaluate the rights and read the configuration before locking the entry, so that the lock is only held
+        // while installing the token.
+        boolean canView = this.rightsCache.hasAuthorAccess(userReference, fileId.getDocumentReference());
+        long timeToLive = TimeUnit.SECONDS.toMillis(this.configuration.getTokenTimeToLive());
+        long idleTimeout = TimeUnit.SECONDS.toMillis(this.configuration.getTokenIdleTimeout());
+        String wikiId = fileId.getDocumentReference().getWikiReference().getName();
+        this.sweeper.readWikiLimit(wikiId);
+        long now = System.currentTimeMillis();
+        DelegatedToken[] replacedToken = new DelegatedToken[1];
+        DelegatedToken token = this.store.compute(fileId, macroOrigin, existingToken -> {
+            replacedToken[0] = existingToken;
+            // The rights were evaluated for the author of the existing token if it is not replaced.
+            if (existingToken != null && !existingToken.isExpired(now)
+                && userReference.equals(existingToken.getUser()))
+            {
+                return canView ? existingToken : null;
+            }
+            return canView ? new DelegatedToken(userReference, fileId, macroOrigin, timeToLive, idleTimeout) : null;
+        });
+        logTokenChange(userReference, fileId, macroOrigin, replacedToken[0], token, now);
+        this.sweeper.maybeSweep(wikiId);
+
+        return token != null ? token.toString() : "";
+    }
+
+    /**
+     * Get the access tokens of the given attachments, delegated by the macros of the given document. The attachments
+     * of the wiki of the macro origin are covered by the grant of the macro origin, which is issued or extended with
+     * a single rights evaluation. The other attachments, and all of them when the store doesn't support grants, get
+     * their own token as with {@link #getToken(DocumentReference, AttachmentReference, DocumentReference)}.
+     *
+     * @param userReference current user reference
+     * @param files the target attachments
+     * @param macroOrigin origin of the PDF macros
+     * @return the access token of each given attachment, in the same order, or an empty string for the attachments
+     *     the author can't view
+     */
+    public List<String> getTokens(DocumentReference userReference, List<AttachmentReference> files,
+        DocumentReference macroOrigin)
+    {
+        String originWiki = macroOrigin.getWikiReference().getName();
+        List<AttachmentReference> grantedFiles = this.grantStore != null ? files.stream()
+            .filter(file -> originWiki.equals(file.getDocumentReference().getWikiReference().getName())).distinct()
+            .collect(Collectors.toList()) : List.of();
+        DelegatedToken grant = grantedFiles.isEmpty() ? null : getGrant(userReference, grantedFiles, macroOrigin);
+
+        List<String> tokens = new ArrayList<>(files.size());
+        for (AttachmentReference file : files) {
+            int index = grant != null ? grant.getGrantedFiles().indexOf(file) : -1;
+            if (index >= 0) {
+                tokens.add(grant.toString() + GRANT_FILE_SEPARATOR + index);
+            } else if (grantedFiles.contains(file)) {
+                tokens.add("");
             } else {
-                return token.toString();
+                tokens.add(getToken(userReference, file, macroOrigin));
             }
         }
-
-        return createNewToken(userReference, fileId, macroOrigin);
+        return tokens;
     }
 
     /**
@@ -98,8 +186,8 @@ public class DelegatedTokenManager
      */
     public boolean isInvalid(String token)
     {
-        DelegatedToken foundToken = tokens.get(token);
-        return foundToken == null;
+        Pair<DelegatedToken, AttachmentReference> grantedFile = getGrantedFile(token);
+        return grantedFile == null || grantedFile.getLeft().isExpired(System.currentTimeMillis());
     }
 
     /**
@@ -110,11 +198,12 @@ public class DelegatedTokenManager
      */
     public void clearToken(AttachmentReference fileId, DocumentReference macroOrigin)
     {
-        DelegatedToken foundToken = getExistingToken(fileId, macroOrigin);
-        if (foundToken != null) {
-            tokens.remove(foundToken.toString());
-            logger.debug(TOKEN_DELETE_FORMAT, fileId, macroOrigin);
-        }
+        this.store.compute(fileId, macroOrigin, foundToken -> {
+            if (foundToken != null) {
+                logger.debug(TOKEN_DELETE_FORMAT, fileId, macroOrigin);
+            }
+            return null;
+        });
     }
 
     /**
@@ -124,8 +213,7 @@ public class DelegatedTokenManager
      */
     public void clearToken(DelegatedToken token)
     {
-        if (token != null) {
-            tokens.remove(token.toString());
+        if (token != null && this.store.remove(token)) {
             logger.debug(TOKEN_DELETE_FORMAT, token.getFileReference(), token.getMacroOrigin());
         }
     }
@@ -138,29 +226,82 @@ public class DelegatedTokenManager
      */
     public void clearAttachmentTokens(String fileName, DocumentReference attachmentDoc)
     {
-        List<DelegatedToken> foundTokens = getAttachmentTokens(fileName, attachmentDoc);
-        for (DelegatedToken token : foundTokens) {
-            String tokenName = token.toString();
-            tokens.remove(tokenName);
-            logger.debug("Deleted delegated token [{}] for file [{}] from document [{}].", tokenName, fileName,
+        AttachmentReference file = new AttachmentReference(fileName, attachmentDoc);
+        for (DelegatedToken token : this.store.removeAttachmentTokens(file)) {
+            logger.debug("Deleted delegated token [{}] for file [{}] from document [{}].", token, fileName,
                 attachmentDoc);
         }
     }
 
     /**
-     * Get the {@link AttachmentReference} of the given token representation.
+     * Remove all tokens related to a given document, whether it holds the delegated attachment, the macro or it is the
+     * profile of the token author.
      *
-     * @param tokenId token id
-     * @return the {@link AttachmentReference} of the given token representation.
+     * @param document the deleted document
      */
-    public AttachmentReference getTokenAttachmentReference(String tokenId)
+    public void clearDocumentTokens(DocumentReference document)
+    {
+        int removed = this.store.removeDocumentTokens(document).size();
+        if (removed > 0) {
+            logger.debug("Deleted [{}] delegated tokens related to document [{}].", removed, document);
+        }
+    }
+
+    /**
+     * Remove all tokens issued for the macros of a given document.
+     *
+     * @param macroOrigin the macro origin document, which doesn't contain PDF viewer macros anymore
+     */
+    public void clearOriginTokens(DocumentReference macroOrigin)
+    {
+        int removed = this.store.removeOriginTokens(macroOrigin).size();
+        if (removed > 0) {
+            logger.debug("Deleted [{}] delegated tokens issued from macro origin document [{}].", removed,
+                macroOrigin);
+        }
+    }
+
+    /**
+     * Remove all tokens related to any document of a given wiki.
+     *
+     * @param wikiId the identifier of the deleted wiki
+     */
+    public void clearWikiTokens(String wikiId)
     {
-        AttachmentReference attachmentReference = null;
-        if (hasAccess(tokenId)) {
-            DelegatedToken fileToken = tokens.get(tokenId);
-            attachmentReference = fileToken.getFileReference();
+        int removed = this.store.removeWikiTokens(wikiId).size();
+        if (removed > 0) {
+            logger.debug("Deleted [{}] delegated tokens related to wiki [{}].", removed, wikiId);
         }
-        return attachmentReference;
+    }
+
+    /**
+     * Check the given token in a single pass: it must exist and not be expired, its author must still have view rights
+     * on the delegated attachment and the context user must have view rights on the macro origin document.
+     *
+     * @param tokenId token id, or the access token of a granted attachment
+     * @return the granting token, holding the delegated attachment, or {@code null} if the access is denied
+     */
+    public DelegatedToken validate(String tokenId)
+    {
+        // Read the token only once, since it might be removed concurrently.
+        Pair<DelegatedToken, AttachmentReference> grantedFile = getGrantedFile(tokenId);
+        return grantedFile != null && hasAccess(grantedFile.getLeft(), grantedFile.getRight())
+            ? grantedFile.getLeft() : null;
+    }
+
+    /**
+     * Get the {@link AttachmentReference} of the given token representation, after checking it like
+     * {@link #validate(String)}.
+     *
+     * @param tokenId token id, or the access token of a granted attachment
+     * @return the {@link AttachmentReference} of the given token representation, or {@code null} if the access is
+     *     denied
+     */
+    public AttachmentReference getTokenAttachmentReference(String tokenId)
+    {
+        Pair<DelegatedToken, AttachmentReference> grantedFile = getGrantedFile(tokenId);
+        return grantedFile != null && hasAccess(grantedFile.getLeft(), grantedFile.getRight())
+            ? grantedFile.getRight() : null;
     }
 
     /**
@@ -170,55 +311,207 @@ public class DelegatedTokenManager
      */
     public boolean hasAccess(String token)
     {
-        DelegatedToken fileToken = tokens.getOrDefault(token, null);
-        return fileToken != null && checkAuthorViewRights(fileToken) && checkUserViewRights(fileToken);
+        return validate(token) != null;
     }
 
-    private boolean checkAuthorViewRights(DelegatedToken fileToken)
+    private DelegatedTokenStore getStore() throws InitializationException
     {
-        boolean hasViewRights = this.authorizationManager.hasAccess(Right.VIEW, fileToken.getUser(),
-            fileToken.getFileReference().getDocumentReference());
-        if (!hasViewRights) {
-            clearToken(fileToken);
+        String hint = this.configuration.getTokenStoreHint();
+        try {
+            if (hint != null && this.componentManager.hasComponent(DelegatedTokenStore.class, hint)) {
+                return this.componentManager.getInstance(DelegatedTokenStore.class, hint);
+            }
+            if (hint != null && !DEFAULT_STORE_HINT.equals(hint)) {
+                logger.warn("Unknown delegated token store [{}]. Falling back to the default in-memory store.", hint);
+            }
+            return this.componentManager.getInstance(DelegatedTokenStore.class, DEFAULT_STORE_HINT);
+        } catch (ComponentLookupException e) {
+            throw new InitializationException(String.format("Failed to initialize the delegated token store [%s].",
+                hint), e);
         }
+    }
 
-        return hasViewRights;
+    /**
+     * @param accessToken the identifier of a token, or the access token of a granted attachment
+     * @return the token with the attachment it grants access to, or {@code null} if there is no such token or
+     *     attachment
+     */
+    private Pair<DelegatedToken, AttachmentReference> getGrantedFile(String accessToken)
+    {
+        int separatorIndex = StringUtils.lastIndexOf(accessToken, GRANT_FILE_SEPARATOR);
+        AttachmentReference file = null;
+        DelegatedToken token;
+        if (separatorIndex < 0) {
+            token = this.store.get(accessToken);
+            if (token != null && !token.isGrant()) {
+                file = token.getFileReference();
+            }
+        } else {
+            token = this.store.get(accessToken.substring(0, separatorIndex));
+            if (token != null && token.isGrant()) {
+                file = token.getFileReference(NumberUtils.toInt(accessToken.substring(separatorIndex + 1), -1));
+            }
+        }
+        return file != null ? Pair.of(token, file) : null;
     }
 
-    private boolean checkUserViewRights(DelegatedToken fileToken)
+    private DelegatedToken getGrant(DocumentReference user, List<AttachmentReference> files,
+        DocumentReference macroOrigin)
     {
-        return contextualAuthorizationManager.hasAccess(Right.VIEW, fileToken.getMacroOrigin());
+        // Evaluate the rights and read the configuration before locking the entry, so that the lock is only held
+        // while installing the grant.
+        List<AttachmentReference> viewableFiles = getViewableFiles(user, files);
+        long timeToLive = TimeUnit.SECONDS.toMillis(this.configuration.getTokenTimeToLive());
+        long idleTimeout = TimeUnit.SECONDS.toMillis(this.configuration.getTokenIdleTimeout());
+        // The grants belong to the wiki of their macro origin, which holds all their attachments.
+        String wikiId = macroOrigin.getWikiReference().getName();
+        this.sweeper.readWikiLimit(wikiId);
+        long now = System.currentTimeMillis();
+        DelegatedToken[] replacedGrant = new DelegatedToken[1];
+        DelegatedToken grant = this.grantStore.computeGrant(macroOrigin, existingGrant -> {
+            replacedGrant[0] = existingGrant;
+            if (existingGrant != null && !existingGrant.isExpired(now) && user.equals(existingGrant.getUser())) {
+                return extendGrant(existingGrant, viewableFiles);
+            }
+            return viewableFiles.isEmpty() ? null
+                : new DelegatedToken(user, viewableFiles, macroOrigin, timeToLive, idleTimeout);
+        });
+        logGrantChange(user, macroOrigin, replacedGrant[0], grant, now);
+        this.sweeper.maybeSweep(wikiId);
+        return grant;
     }
 
-    private DelegatedToken getExistingToken(AttachmentReference fileId, DocumentReference macroOrigin)
+    /**
+     * Adds the given attachments to the grant, keeping its identifier so that the access tokens already handed out
+     * for the other macros of the same document remain valid.
+     */
+    private DelegatedToken extendGrant(DelegatedToken grant, List<AttachmentReference> files)
     {
-        Optional<Map.Entry<String, DelegatedToken>> tokenEntry = this.tokens.entrySet().stream().filter(
-            x -> x.getValue().getFileReference().equals(fileId) && x.getValue().getMacroOrigin().equals(macroOrigin))
-                .findFirst();
+        List<AttachmentReference> grantedFiles = grant.getGrantedFiles();
+        List<AttachmentReference> addedFiles =
+            files.stream().filter(file -> !grantedFiles.contains(file)).collect(Collectors.toList());
+        if (addedFiles.isEmpty()) {
+            return grant;
+        }
+        List<AttachmentReference> extendedFiles = new ArrayList<>(grantedFiles);
+        extendedFiles.addAll(addedFiles);
+        return grant.withFiles(extendedFiles);
+    }
 
-        return tokenEntry.map(Map.Entry::getValue).orElse(null);
+    /**
+     * Evaluates the author rights once per document, since the attachments delegated by a page usually share a few
+     * documents.
+     */
+    private List<AttachmentReference> getViewableFiles(DocumentReference user, List<AttachmentReference> files)
+    {
+        Map<DocumentReference, Boolean> documentRights = new HashMap<>();
+        List<AttachmentReference> viewableFiles = new ArrayList<>();
+        for (AttachmentReference file : files) {
+            if (documentRights.computeIfAbsent(file.getDocumentReference(),
+                document -> this.rightsCache.hasAuthorAccess(user, document)))
+            {
+                viewableFiles.add(file);
+            } else {
+                logger.warn("Failed to grant file [{}] to user [{}] due to insufficient rights.", file, user);
+            }
+        }
+        return viewableFiles;
     }
 
-    private List<DelegatedToken> getAttachmentTokens(String fileId, DocumentReference fileDoc)
+    private boolean hasAccess(DelegatedToken fileToken, AttachmentReference file)
     {
-        return this.tokens.values().stream().filter(
-            x -> x.getFileReference().getName().equals(fileId) && x.getFileReference().getDocumentReference()
-                .equals(fileDoc)).collect(Collectors.toList());
+        long now = System.currentTimeMillis();
+        // The tokens targeted by an invalidation still waiting in the queue are already rejected.
+        if (fileToken.isExpired(now) || this.invalidator.isInvalidated(fileToken)) {
+            return false;
+        }
+        boolean hasAccess = checkAuthorViewRights(fileToken, file) && checkUserViewRights(fileToken);
+        if (hasAccess) {
+            this.store.touch(fileToken, now);
+        }
+        return hasAccess;
     }
 
-    private String createNewToken(DocumentReference user, AttachmentReference fileId, DocumentReference macroOrigin)
+    private boolean checkAuthorViewRights(DelegatedToken fileToken, AttachmentReference file)
     {
-        String tokenId = "";
-        boolean canView = this.authorizationManager.hasAccess(Right.VIEW, user, fileId.getDocumentReference());
-        if (canView) {
-            DelegatedToken token = new DelegatedToken(user, fileId, macroOrigin);
-            tokens.put(token.toString(), token);
+        boolean hasViewRights = this.rightsCache.hasAuthorAccess(fileToken.getUser(), file.getDocumentReference());
+        if (!hasViewRights && fileToken.isGrant()) {
+            revokeGrantedFile(fileToken, file);
+        } else if (!hasViewRights) {
+            clearToken(fileToken);
+        }
+
+        return hasViewRights;
+    }
+
+    /**
+     * Revokes a single attachment of the grant, so that the access tokens of the other attachments, which other
+     * viewers of the macro origin might be using, remain valid.
+     */
+    private void revokeGrantedFile(DelegatedToken grant, AttachmentReference file)
+    {
+        this.grantStore.computeGrant(grant.getMacroOrigin(), existingGrant -> {
+            // The grant might have been replaced or removed concurrently, in which case there is nothing to revoke.
+            int index = grant.equals(existingGrant) ? existingGrant.getGrantedFiles().indexOf(file) : -1;
+            return index >= 0 ? existingGrant.withoutFile(index) : existingGrant;
+        });
+        logger.debug(TOKEN_DELETE_FORMAT, file, grant.getMacroOrigin());
+    }
+
+    private boolean checkUserViewRights(DelegatedToken fileToken)
+    {
+        return this.rightsCache.hasViewerAccess(fileToken.getMacroOrigin());
+    }
+
+    private void logTokenChange(DocumentReference user, AttachmentReference fileId, DocumentReference macroOrigin,
+        DelegatedToken existingToken, DelegatedToken token, long now)
+    {
+        if (existingToken == token) {
+            return;
+        }
+        if (existingToken != null) {
+            if (existingToken.isExpired(now)) {
+                logger.debug("Found token for file [{}] on origin [{}] is expired. Removing token and attempting "
+                    + "to create a new one.", fileId, macroOrigin);
+            } else if (!user.equals(existingToken.getUser())) {
+                logger.debug("Found token author [{}] is different from the given author [{}]. Removing token "
+                    + "and attempting to create a new one.", existingToken.getUser(), user);
+            } else {
+                // The author lost the rights to view the attachment.
+                logger.debug(TOKEN_DELETE_FORMAT, fileId, macroOrigin);
+                return;
+            }
+        }
+        if (token != null) {
             logger.debug("New token created for file [{}] on origin [{}] and user [{}].", fileId, macroOrigin, user);
-            tokenId = token.toString();
         } else {
             logger.warn("Failed to create token for file [{}] on origin [{}] and user [{}] due to insufficient rights.",
                 fileId, macroOrigin, user);
         }
-        return tokenId;
+    }
+
+    private void logGrantChange(DocumentReference user, DocumentReference macroOrigin, DelegatedToken existingGrant,
+        DelegatedToken grant, long now)
+    {
+        if (existingGrant != null && existingGrant.equals(grant)) {
+            List<AttachmentReference> files = grant.getGrantedFiles();
+            int grantedCount = existingGrant.getGrantedFiles().size();
+            if (files.size() > grantedCount) {
+                logger.debug("Extended the grant on origin [{}] with files [{}].", macroOrigin,
+                    files.subList(grantedCount, files.size()));
+            }
+            return;
+        }
+        if (existingGrant != null && existingGrant.isExpired(now)) {
+            logger.debug("Found grant on origin [{}] is expired. Removing grant and attempting to create a new one.",
+                macroOrigin);
+        } else if (existingGrant != null) {
+            logger.debug("Found grant author [{}] is different from the given author [{}]. Removing grant and "
+                + "attempting to create a new one.", existingGrant.getUser(), user);
+        }
+        if (grant != null) {
+            logger.debug("New grant created for files [{}] on origin [{}] and user [{}].", grant.getFileReferences(),
+                macroOrigin, user);
+        }
     }
 }
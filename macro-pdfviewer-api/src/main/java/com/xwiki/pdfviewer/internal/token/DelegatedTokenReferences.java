@@ -0,0 +1,137 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+import com.xwiki.pdfviewer.internal.configuration.PDFViewerConfiguration;
+
+/**
+ * Hands out signed references to the delegated tokens instead of the tokens themselves, so that rendering a macro
+ * doesn't issue tokens for the viewers that are never opened. A reference costs a signature, and it is exchanged for
+ * the actual token, see {@link DelegatedTokenManager#getTokens}, only when the viewer requests the file.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component(roles = DelegatedTokenReferences.class)
+@Singleton
+public class DelegatedTokenReferences
+{
+    private static final String CLAIM_TYPE = "reference";
+
+    private static final String SEPARATOR = "/";
+
+    private static final long DEFAULT_LIFETIME = TimeUnit.DAYS.toMillis(1);
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private DelegatedTokenSigner signer;
+
+    @Inject
+    private DelegatedTokenManager tokenManager;
+
+    @Inject
+    private PDFViewerConfiguration configuration;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    private EntityReferenceResolver<String> resolver;
+
+    /**
+     * Creates a reference to the token delegating the author's view right on the given attachment. Neither the token
+     * nor the author's rights are checked at this point.
+     *
+     * @param user the author delegating the view right
+     * @param file the delegated attachment
+     * @param macroOrigin the document containing the macro
+     * @return the URL safe reference, valid for the token idle timeout
+     */
+    public String create(DocumentReference user, AttachmentReference file, DocumentReference macroOrigin)
+    {
+        long idleTimeout = TimeUnit.SECONDS.toMillis(this.configuration.getTokenIdleTimeout());
+        long expirationTime = System.currentTimeMillis() + (idleTimeout > 0 ? idleTimeout : DEFAULT_LIFETIME);
+        return this.signer.sign(CLAIM_TYPE, String.join(SEPARATOR, String.valueOf(expirationTime),
+            encode(this.serializer.serialize(user)), encode(this.serializer.serialize(file)),
+            encode(this.serializer.serialize(macroOrigin))));
+    }
+
+    /**
+     * Issues the token the given reference points to.
+     *
+     * @param reference a reference returned by {@link #create}
+     * @return the access token of the referenced attachment, or {@code null} if the reference is invalid or expired,
+     *     or if the author can't view the attachment anymore
+     */
+    public String redeem(String reference)
+    {
+        String claim = StringUtils.isEmpty(reference) ? null : this.signer.verify(CLAIM_TYPE, reference);
+        if (claim == null) {
+            return null;
+        }
+        try {
+            String[] fields = claim.split(SEPARATOR, -1);
+            if (Long.parseLong(fields[0]) < System.currentTimeMillis()) {
+                return null;
+            }
+            DocumentReference user = new DocumentReference(resolve(fields[1], EntityType.DOCUMENT));
+            AttachmentReference file = new AttachmentReference(resolve(fields[2], EntityType.ATTACHMENT));
+            DocumentReference macroOrigin = new DocumentReference(resolve(fields[3], EntityType.DOCUMENT));
+            String token = this.tokenManager.getTokens(user, List.of(file), macroOrigin).get(0);
+            return StringUtils.isEmpty(token) ? null : token;
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            this.logger.debug("Invalid delegated token reference [{}]. Root cause is: [{}]", reference,
+                ExceptionUtils.getRootCauseMessage(e));
+            return null;
+        }
+    }
+
+    private EntityReference resolve(String field, EntityType type)
+    {
+        return this.resolver.resolve(URLDecoder.decode(field, StandardCharsets.UTF_8), type);
+    }
+
+    private static String encode(String value)
+    {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+import com.xwiki.pdfviewer.internal.configuration.PDFViewerConfiguration;
+
+/**
+ * Keeps the revocation generation of each attachment and of each macro origin document for
+ * {@link SignedDelegatedTokenStore}. The generations are recorded in a log file of the token store directory, see
+ * {@link DelegatedTokenLog}, so that the revocations survive restarts and apply to all the XWiki instances sharing the
+ * directory. The generations only ever increase, so the records are merged by keeping the greatest generation of each
+ * reference.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component(roles = DelegatedTokenRevocations.class)
+@Singleton
+public class DelegatedTokenRevocations implements Initializable, Disposable
+{
+    /**
+     * The name of the log file, which has to change whenever the record format changes.
+     */
+    private static final String LOG_FILE_NAME = "revocations-v2.log";
+
+    private static final String SEPARATOR = "\t";
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private PDFViewerConfiguration configuration;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    private EntityReferenceResolver<String> resolver;
+
+    private DelegatedTokenLog log;
+
+    /**
+     * The revocation generation of each attachment and macro origin document, missing for the references whose tokens
+     * were never revoked.
+     */
+    private final Map<EntityReference, Integer> generations = new ConcurrentHashMap<>();
+
+    /**
+     * Guards the reads of the log.
+     */
+    private final ReentrantLock readLock = new ReentrantLock();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        String directory = this.configuration.getTokenStoreDirectory();
+        this.log = new DelegatedTokenLog((directory != null ? Paths.get(directory)
+            : this.environment.getPermanentDirectory().toPath().resolve("pdfviewer")).resolve(LOG_FILE_NAME),
+            this.logger);
+        this.readLock.lock();
+        try {
+            this.log.open();
+            this.log.read(this::apply);
+        } catch (IOException e) {
+            throw new InitializationException("Failed to load the delegated token revocations.", e);
+        } finally {
+            this.readLock.unlock();
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.log.close();
+    }
+
+    /**
+     * @param file an attachment reference
+     * @return the revocation generation of the given attachment, including the revocations made by the other instances
+     */
+    public int getGeneration(AttachmentReference file)
+    {
+        refresh(false);
+        return this.generations.getOrDefault(file, 0);
+    }
+
+    /**
+     * @param macroOrigin a macro origin document
+     * @return the revocation generation of the given macro origin, including the revocations made by the other
+     *     instances
+     */
+    public int getOriginGeneration(DocumentReference macroOrigin)
+    {
+        refresh(false);
+        return this.generations.getOrDefault(macroOrigin, 0);
+    }
+
+    /**
+     * Revokes the tokens issued so far for the given attachment, by incrementing its generation.
+     *
+     * @param file an attachment reference
+     */
+    public void revoke(AttachmentReference file)
+    {
+        increment(file);
+        this.logger.debug("Revoked the delegated tokens issued for file [{}].", file);
+    }
+
+    /**
+     * Revokes the tokens issued so far for the macros of the given document, by incrementing its generation.
+     *
+     * @param macroOrigin a macro origin document
+     */
+    public void revokeOrigin(DocumentReference macroOrigin)
+    {
+        increment(macroOrigin);
+        this.logger.debug("Revoked the delegated tokens issued from macro origin document [{}].", macroOrigin);
+    }
+
+    private void increment(EntityReference reference)
+    {
+        // Start from the generation reached by the other instances.
+        refresh(true);
+        int generation = this.generations.merge(reference, 1, Integer::sum);
+        this.log.queue(encode(reference, generation));
+        this.log.flush();
+        this.log.maybeCompact(this.generations.size(), this::compact);
+    }
+
+    /**
+     * Applies the revocations recorded by the other instances since the last refresh.
+     *
+     * @param wait {@code true} to wait for a concurrent refresh to finish, {@code false} to skip the refresh in this
+     *     case
+     */
+    private void refresh(boolean wait)
+    {
+        if (wait) {
+            this.readLock.lock();
+        } else if (!this.log.hasChanged() || !this.readLock.tryLock()) {
+            return;
+        }
+        try {
+            if (this.log.isReplaced()) {
+                // The generations only increase, so the compacted log can simply be read again.
+                this.log.open();
+            }
+            this.log.read(this::apply);
+        } catch (IOException e) {
+            this.logger.warn("Failed to read the delegated token revocations from [{}]. Root cause is: [{}]",
+                this.log.getFile(), ExceptionUtils.getRootCauseMessage(e));
+        } finally {
+            this.readLock.unlock();
+        }
+    }
+
+    private void apply(String record)
+    {
+        try {
+            String[] fields = StringUtils.split(record, SEPARATOR);
+            EntityType type = EntityType.valueOf(fields[0]);
+            EntityReference reference =
+                this.resolver.resolve(URLDecoder.decode(fields[1], StandardCharsets.UTF_8), type);
+            // Keep the typed references, which the lookups use.
+            reference = type == EntityType.ATTACHMENT ? new AttachmentReference(reference)
+                : new DocumentReference(reference);
+            this.generations.merge(reference, Integer.parseInt(fields[2]), Math::max);
+        } catch (Exception e) {
+            this.logger.warn("Skipping invalid delegated token revocation record [{}]. Root cause is: [{}]", record,
+                ExceptionUtils.getRootCauseMessage(e));
+        }
+    }
+
+    private String encode(EntityReference reference, int generation)
+    {
+        return reference.getType() + SEPARATOR
+            + URLEncoder.encode(this.serializer.serialize(reference), StandardCharsets.UTF_8) + SEPARATOR + generation;
+    }
+
+    /**
+     * Rewrites the log with only the current generation of each reference.
+     */
+    private void compact()
+    {
+        this.readLock.lock();
+        try {
+            this.log.read(this::apply);
+            this.log.compact(this.generations.entrySet().stream()
+                .map(entry -> encode(entry.getKey(), entry.getValue())).collect(Collectors.toList()));
+        } catch (IOException e) {
+            this.logger.warn("Failed to compact the delegated token revocations [{}]. Root cause is: [{}]",
+                this.log.getFile(), ExceptionUtils.getRootCauseMessage(e));
+        } finally {
+            this.readLock.unlock();
+        }
+    }
+}
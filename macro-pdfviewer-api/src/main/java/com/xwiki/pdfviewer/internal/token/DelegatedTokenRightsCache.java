@@ -0,0 +1,158 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.security.authorization.Right;
+
+/**
+ * Remembers for a short time the view rights checked when a delegated token is used, since the PDF viewer requests
+ * the same file many times in a row (e.g. one request per range of bytes). The results are dropped as soon as the
+ * rights might have changed, see {@code PDFViewerRightsListener}.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component(roles = DelegatedTokenRightsCache.class)
+@Singleton
+public class DelegatedTokenRightsCache implements Initializable, Disposable
+{
+    private static final int CACHE_SIZE = 10000;
+
+    /**
+     * The number of seconds during which a rights check result is reused.
+     */
+    private static final int CACHE_LIFESPAN = 30;
+
+    private static final char AUTHOR_PREFIX = 'a';
+
+    private static final char VIEWER_PREFIX = 'v';
+
+    private static final char SEPARATOR = '|';
+
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private AuthorizationManager authorizationManager;
+
+    @Inject
+    private ContextualAuthorizationManager contextualAuthorizationManager;
+
+    @Inject
+    private DocumentAccessBridge documentAccessBridge;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    private Cache<Boolean> cache;
+
+    /**
+     * Incremented on each invalidation, so that the results computed before an invalidation are not cached after it.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        LRUCacheConfiguration configuration = new LRUCacheConfiguration("pdfviewer.token.rights", CACHE_SIZE);
+        configuration.getLRUEvictionConfiguration().setLifespan(CACHE_LIFESPAN);
+        try {
+            this.cache = this.cacheManager.createNewCache(configuration);
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the delegated token rights cache.", e);
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.cache.dispose();
+    }
+
+    /**
+     * @param author the author of a delegated token
+     * @param document the document holding the delegated attachment
+     * @return {@code true} if the author has view rights on the document, {@code false} otherwise
+     */
+    public boolean hasAuthorAccess(DocumentReference author, DocumentReference document)
+    {
+        return get(getKey(AUTHOR_PREFIX, author, document),
+            () -> this.authorizationManager.hasAccess(Right.VIEW, author, document));
+    }
+
+    /**
+     * @param macroOrigin the document where the PDF viewer macro was used
+     * @return {@code true} if the current user has view rights on the macro origin document, {@code false} otherwise
+     */
+    public boolean hasViewerAccess(DocumentReference macroOrigin)
+    {
+        return get(getKey(VIEWER_PREFIX, this.documentAccessBridge.getCurrentUserReference(), macroOrigin),
+            () -> this.contextualAuthorizationManager.hasAccess(Right.VIEW, macroOrigin));
+    }
+
+    /**
+     * Forgets all the rights check results.
+     */
+    public void invalidate()
+    {
+        this.generation.incrementAndGet();
+        this.cache.removeAll();
+    }
+
+    private boolean get(String key, BooleanSupplier evaluation)
+    {
+        Boolean result = this.cache.get(key);
+        if (result == null) {
+            long currentGeneration = this.generation.get();
+            result = evaluation.getAsBoolean();
+            if (currentGeneration == this.generation.get()) {
+                this.cache.set(key, result);
+            }
+        }
+        return result;
+    }
+
+    private String getKey(char prefix, DocumentReference user, DocumentReference document)
+    {
+        // The guest user doesn't have a reference.
+        String serializedUser = user != null ? this.serializer.serialize(user) : "";
+        // Prefix the user with its length, so that the keys can't be ambiguous.
+        return prefix + serializedUser.length() + SEPARATOR + serializedUser + this.serializer.serialize(document);
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * The tokens delegating the attachments of a single wiki, with their indexes. Each wiki has its own segment so that
+ * the wikis don't contend with each other, and so that the tokens of a deleted wiki are dropped at once.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+final class DelegatedTokenSegment
+{
+    private final String wikiId;
+
+    private final Map<DelegatedTokenId, DelegatedToken> tokens = new ConcurrentHashMap<>();
+
+    /**
+     * Secondary index of {@link #tokens}, keyed by the delegated attachment and the macro origin document, holding the
+     * current token of each entry. The grants are keyed by their macro origin document only, with a {@code null}
+     * attachment.
+     */
+    private final Map<Pair<AttachmentReference, DocumentReference>, DelegatedToken> originTokens =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Reverse index of {@link #tokens}, holding all the tokens issued for a given attachment.
+     */
+    private final Map<AttachmentReference, Set<DelegatedToken>> attachmentTokens = new ConcurrentHashMap<>();
+
+    /**
+     * Reverse index of {@link #tokens}, holding all the tokens related to a given document, whether it holds the
+     * attachment, it is the macro origin or it is the author's profile.
+     */
+    private final Map<DocumentReference, Set<DelegatedToken>> documentTokens = new ConcurrentHashMap<>();
+
+    /**
+     * Reverse index of {@link #tokens}, holding the tokens related to another wiki through their macro origin or
+     * their author.
+     */
+    private final Map<String, Set<DelegatedToken>> wikiTokens = new ConcurrentHashMap<>();
+
+    private final EntityReferenceInterner interner = new EntityReferenceInterner();
+
+    /**
+     * The number of tokens of all the segments of the store, updated along with {@link #tokens} so that the store
+     * doesn't need to count the tokens of each segment. Replaced when the segment is dropped.
+     */
+    private volatile AtomicInteger storeSize;
+
+    /**
+     * @param wikiId the wiki of the delegated attachments
+     * @param storeSize the number of tokens of all the segments of the store
+     */
+    DelegatedTokenSegment(String wikiId, AtomicInteger storeSize)
+    {
+        this.wikiId = wikiId;
+        this.storeSize = storeSize;
+    }
+
+    /**
+     * @return the wiki of the delegated attachments
+     */
+    String getWikiId()
+    {
+        return this.wikiId;
+    }
+
+    DelegatedToken get(DelegatedTokenId id)
+    {
+        return this.tokens.get(id);
+    }
+
+    /**
+     * Updates the token of the given attachment and macro origin while holding the lock of its entry.
+     *
+     * @param file the delegated attachment, or {@code null} for the grant of the macro origin
+     */
+    DelegatedToken compute(AttachmentReference file, DocumentReference macroOrigin,
+        BiFunction<Pair<AttachmentReference, DocumentReference>, DelegatedToken, DelegatedToken> remappingFunction)
+    {
+        return this.originTokens.compute(Pair.of(file, macroOrigin), remappingFunction);
+    }
+
+    /**
+     * Updates the entry of the given token while holding its lock.
+     */
+    DelegatedToken compute(DelegatedToken token,
+        BiFunction<Pair<AttachmentReference, DocumentReference>, DelegatedToken, DelegatedToken> remappingFunction)
+    {
+        return this.originTokens.compute(getKey(token), remappingFunction);
+    }
+
+    /**
+     * @return a copy of the given token sharing the references already used by the other tokens, or the given token if
+     *     it already does
+     */
+    DelegatedToken intern(DelegatedToken token)
+    {
+        if (token == null) {
+            return null;
+        }
+        DocumentReference user = this.interner.intern(token.getUser());
+        DocumentReference macroOrigin = this.interner.intern(token.getMacroOrigin());
+        if (token.isGrant()) {
+            // The files revoked from the grant keep their index.
+            List<AttachmentReference> files = token.getGrantedFiles().stream()
+                .map(file -> file != null ? this.interner.intern(file) : null).collect(Collectors.toList());
+            return new DelegatedToken(token.getId(), user, files, macroOrigin, token.getExpirationTime(),
+                token.getIdleTimeout(), token.getLastAccessTime());
+        }
+        AttachmentReference file = this.interner.intern(token.getFileReference());
+        if (user == token.getUser() && file == token.getFileReference() && macroOrigin == token.getMacroOrigin()) {
+            return token;
+        }
+        return new DelegatedToken(token.getId(), user, file, macroOrigin, token.getExpirationTime(),
+            token.getIdleTimeout(), token.getLastAccessTime());
+    }
+
+    /**
+     * Adds the token to the indexes. Must be called while holding the lock of its entry.
+     */
+    void index(DelegatedToken token)
+    {
+        if (this.tokens.put(token.getId(), token) == null) {
+            this.storeSize.incrementAndGet();
+        }
+        token.getFileReferences().forEach(file -> addToIndex(this.attachmentTokens, file, token));
+        getRelatedDocuments(token).forEach(document -> addToIndex(this.documentTokens, document, token));
+        getForeignWikis(token).forEach(wiki -> addToIndex(this.wikiTokens, wiki, token));
+    }
+
+    /**
+     * Removes the token from the indexes. Must be called while holding the lock of its entry.
+     */
+    void unindex(DelegatedToken token)
+    {
+        if (this.tokens.remove(token.getId()) != null) {
+            this.storeSize.decrementAndGet();
+        }
+        token.getFileReferences().forEach(file -> removeFromIndex(this.attachmentTokens, file, token));
+        getRelatedDocuments(token).forEach(document -> removeFromIndex(this.documentTokens, document, token));
+        getForeignWikis(token).forEach(wiki -> removeFromIndex(this.wikiTokens, wiki, token));
+    }
+
+    Collection<DelegatedToken> getAttachmentTokens(AttachmentReference file)
+    {
+        return getIndexedTokens(this.attachmentTokens, file, token -> true);
+    }
+
+    Collection<DelegatedToken> getDocumentTokens(DocumentReference document, Predicate<DelegatedToken> filter)
+    {
+        return getIndexedTokens(this.documentTokens, document, filter);
+    }
+
+    /**
+     * @return the tokens related to the given wiki through their macro origin or their author
+     */
+    Collection<DelegatedToken> getForeignWikiTokens(String foreignWikiId)
+    {
+        return getIndexedTokens(this.wikiTokens, foreignWikiId, token -> true);
+    }
+
+    Collection<DelegatedToken> getTokens()
+    {
+        return Collections.unmodifiableCollection(this.tokens.values());
+    }
+
+    int size()
+    {
+        return this.tokens.size();
+    }
+
+    /**
+     * @return the number of token sets in the reverse indexes
+     */
+    int getIndexSetCount()
+    {
+        return this.attachmentTokens.size() + this.documentTokens.size() + this.wikiTokens.size();
+    }
+
+    /**
+     * Stops counting the tokens of this segment in the size of the store, once the segment was dropped.
+     */
+    void detach()
+    {
+        AtomicInteger size = this.storeSize;
+        this.storeSize = new AtomicInteger();
+        size.addAndGet(-this.tokens.size());
+    }
+
+    void clear()
+    {
+        this.originTokens.clear();
+        this.tokens.clear();
+        this.attachmentTokens.clear();
+        this.documentTokens.clear();
+        this.wikiTokens.clear();
+    }
+
+    /**
+     * @return the documents holding the attachments, the macro and the author's profile of the given token
+     */
+    private static Set<DocumentReference> getRelatedDocuments(DelegatedToken token)
+    {
+        return Stream.concat(token.getFileReferences().stream().map(AttachmentReference::getDocumentReference),
+            Stream.of(token.getMacroOrigin(), token.getUser())).filter(Objects::nonNull).collect(Collectors.toSet());
+    }
+
+    private static Pair<AttachmentReference, DocumentReference> getKey(DelegatedToken token)
+    {
+        return Pair.of(token.isGrant() ? null : token.getFileReference(), token.getMacroOrigin());
+    }
+
+    private Set<String> getForeignWikis(DelegatedToken token)
+    {
+        return getRelatedDocuments(token).stream().map(document -> document.getWikiReference().getName())
+            .filter(wiki -> !this.wikiId.equals(wiki)).collect(Collectors.toSet());
+    }
+
+    private static <K> void addToIndex(Map<K, Set<DelegatedToken>> index, K key, DelegatedToken token)
+    {
+        index.compute(key, (indexKey, indexedTokens) -> {
+            Set<DelegatedToken> updatedTokens = indexedTokens != null ? indexedTokens : ConcurrentHashMap.newKeySet();
+            updatedTokens.add(token);
+            return updatedTokens;
+        });
+    }
+
+    private static <K> void removeFromIndex(Map<K, Set<DelegatedToken>> index, K key, DelegatedToken token)
+    {
+        index.computeIfPresent(key, (indexKey, indexedTokens) -> {
+            indexedTokens.remove(token);
+            return indexedTokens.isEmpty() ? null : indexedTokens;
+        });
+    }
+
+    private static <K> Collection<DelegatedToken> getIndexedTokens(Map<K, Set<DelegatedToken>> index, K key,
+        Predicate<DelegatedToken> filter)
+    {
+        Set<DelegatedToken> foundTokens = index.get(key);
+        // Copy the tokens since the index might be updated while they are used.
+        return foundTokens != null ? foundTokens.stream().filter(filter).collect(Collectors.toList()) : List.of();
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.environment.Environment;
+
+import com.xwiki.pdfviewer.internal.configuration.PDFViewerConfiguration;
+
+/**
+ * Signs the claims handed out to the browsers, so that they can't be forged, and checks them when they come back. The
+ * key is either configured or generated in the token store directory, so that the XWiki instances sharing it can check
+ * each other's claims.
+ * <p>
+ * Each claim is signed along with its type, so that a value signed for one purpose, e.g. a token reference, is never
+ * accepted for another purpose, e.g. as a token, even though they share the key.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component(roles = DelegatedTokenSigner.class)
+@Singleton
+public class DelegatedTokenSigner implements Initializable
+{
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final String KEY_FILE_NAME = "token-signing.key";
+
+    private static final int KEY_SIZE = 32;
+
+    private static final char SIGNATURE_SEPARATOR = '.';
+
+    private static final char TYPE_SEPARATOR = ':';
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private PDFViewerConfiguration configuration;
+
+    private ThreadLocal<Mac> mac;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            SecretKeySpec key = new SecretKeySpec(getKey(), ALGORITHM);
+            // Fail early if the key can't be used.
+            createMac(key);
+            this.mac = ThreadLocal.withInitial(() -> createMac(key));
+        } catch (IOException | IllegalStateException e) {
+            throw new InitializationException("Failed to initialize the delegated token signing key.", e);
+        }
+    }
+
+    /**
+     * @param type the type of the claim, without {@code :}
+     * @param claim the claim to sign
+     * @return the URL safe encoding of the typed claim, followed by its signature
+     */
+    public String sign(String type, String claim)
+    {
+        String payload = ENCODER.encodeToString((type + TYPE_SEPARATOR + claim).getBytes(StandardCharsets.UTF_8));
+        return payload + SIGNATURE_SEPARATOR + ENCODER.encodeToString(sign(payload.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @param type the expected type of the claim
+     * @param value a value returned by {@link #sign(String, String)}
+     * @return the signed claim, without its type, or {@code null} if the value is malformed, if its signature doesn't
+     *     match or if the claim has another type
+     */
+    public String verify(String type, String value)
+    {
+        String claim = verify(value);
+        String prefix = type + TYPE_SEPARATOR;
+        return claim != null && claim.startsWith(prefix) ? claim.substring(prefix.length()) : null;
+    }
+
+    private String verify(String value)
+    {
+        int separatorIndex = StringUtils.lastIndexOf(value, SIGNATURE_SEPARATOR);
+        if (separatorIndex < 0) {
+            return null;
+        }
+        byte[] payload = value.substring(0, separatorIndex).getBytes(StandardCharsets.UTF_8);
+        try {
+            byte[] signature = DECODER.decode(value.substring(separatorIndex + 1));
+            if (!MessageDigest.isEqual(sign(payload), signature)) {
+                return null;
+            }
+            return new String(DECODER.decode(payload), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private byte[] sign(byte[] payload)
+    {
+        return this.mac.get().doFinal(payload);
+    }
+
+    private byte[] getKey() throws IOException
+    {
+        String configuredKey = this.configuration.getTokenSigningKey();
+        if (StringUtils.isNotEmpty(configuredKey)) {
+            return configuredKey.getBytes(StandardCharsets.UTF_8);
+        }
+
+        String directory = this.configuration.getTokenStoreDirectory();
+        Path storeDirectory = directory != null ? Paths.get(directory)
+            : this.environment.getPermanentDirectory().toPath().resolve("pdfviewer");
+        Path keyFile = storeDirectory.resolve(KEY_FILE_NAME);
+        if (!Files.exists(keyFile)) {
+            Files.createDirectories(storeDirectory);
+            byte[] key = new byte[KEY_SIZE];
+            new SecureRandom().nextBytes(key);
+            try {
+                Files.write(keyFile, key, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                this.logger.info("Generated the delegated token signing key [{}]. The XWiki instances validating "
+                    + "each other's tokens need to share it.", keyFile);
+            } catch (FileAlreadyExistsException e) {
+                // Another instance sharing the directory generated the key in the meantime.
+            }
+        }
+        return Files.readAllBytes(keyFile);
+    }
+
+    private static Mac createMac(SecretKeySpec key)
+    {
+        try {
+            Mac newMac = Mac.getInstance(ALGORITHM);
+            newMac.init(key);
+            return newMac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to create the delegated token signature.", e);
+        }
+    }
+}
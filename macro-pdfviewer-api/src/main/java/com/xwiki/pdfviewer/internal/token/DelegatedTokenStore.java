@@ -0,0 +1,149 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.util.Collection;
+import java.util.function.UnaryOperator;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Stores the {@link DelegatedToken}s and keeps them indexed. There is at most one current token for each
+ * (attachment, macro origin) pair, and at most one current grant for each macro origin when the store supports
+ * grants, see {@link DelegatedTokenGrantStore}. A token issued concurrently elsewhere, e.g. by another cluster node,
+ * remains valid next to the current one until it expires or is removed. The store only guarantees the consistency of
+ * its indexes, the token validation being handled by {@link DelegatedTokenManager}.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Role
+public interface DelegatedTokenStore
+{
+    /**
+     * @param tokenId the token identifier
+     * @return the token with the given identifier, or {@code null} if there is no such token
+     */
+    DelegatedToken get(String tokenId);
+
+    /**
+     * Atomically replaces the current token of the given attachment and macro origin. The given function must not
+     * access the store for the same pair.
+     *
+     * @param file the delegated attachment
+     * @param macroOrigin the macro origin document
+     * @param remappingFunction computes the new token from the current one, both of them being {@code null} when
+     *     there is no token
+     * @return the new token, or {@code null} if there is no token anymore
+     */
+    DelegatedToken compute(AttachmentReference file, DocumentReference macroOrigin,
+        UnaryOperator<DelegatedToken> remappingFunction);
+
+    /**
+     * Removes the given token, unless it was already removed or replaced.
+     *
+     * @param token the token to remove
+     * @return {@code true} if the token was removed by this call, {@code false} otherwise
+     */
+    boolean remove(DelegatedToken token);
+
+    /**
+     * Removes all the tokens issued for the given attachment. The grants covering other attachments as well only stop
+     * covering the given one, so that the access tokens of the other attachments remain valid.
+     *
+     * @param file an attachment reference
+     * @return the tokens that don't give access to the given attachment anymore
+     */
+    Collection<DelegatedToken> removeAttachmentTokens(AttachmentReference file);
+
+    /**
+     * Removes all the tokens related to the given document, whether it holds the delegated attachment, the macro or
+     * it is the profile of the token author. The grants covering attachments of other documents as well only stop
+     * covering the attachments of the given document, unless it holds their macro or it is their author's profile.
+     *
+     * @param document a document reference
+     * @return the tokens that don't give access to the attachments of the given document anymore
+     */
+    Collection<DelegatedToken> removeDocumentTokens(DocumentReference document);
+
+    /**
+     * Removes all the tokens issued for macros of the given document.
+     *
+     * @param macroOrigin the macro origin document
+     * @return the removed tokens
+     */
+    Collection<DelegatedToken> removeOriginTokens(DocumentReference macroOrigin);
+
+    /**
+     * Removes all the tokens related to any document of the given wiki.
+     *
+     * @param wikiId the wiki identifier
+     * @return the removed tokens
+     */
+    Collection<DelegatedToken> removeWikiTokens(String wikiId);
+
+    /**
+     * Marks the token as accessed.
+     *
+     * @param token the accessed token
+     * @param time the access time, in milliseconds
+     */
+    void touch(DelegatedToken token, long time);
+
+    /**
+     * @param file an attachment reference
+     * @return the tokens issued for the given attachment
+     */
+    Collection<DelegatedToken> getAttachmentTokens(AttachmentReference file);
+
+    /**
+     * @return all the stored tokens
+     */
+    Collection<DelegatedToken> getTokens();
+
+    /**
+     * @return the wikis holding the attachments delegated by the stored tokens
+     */
+    Collection<String> getWikis();
+
+    /**
+     * @param wikiId a wiki identifier
+     * @return the stored tokens delegating the attachments of the given wiki
+     */
+    Collection<DelegatedToken> getWikiTokens(String wikiId);
+
+    /**
+     * @return the number of stored tokens
+     */
+    int size();
+
+    /**
+     * @return the estimated number of bytes used by the stored tokens
+     */
+    long getMemoryFootprint();
+
+    /**
+     * @param wikiId a wiki identifier
+     * @return the estimated number of bytes used by the stored tokens delegating the attachments of the given wiki
+     */
+    long getMemoryFootprint(String wikiId);
+}
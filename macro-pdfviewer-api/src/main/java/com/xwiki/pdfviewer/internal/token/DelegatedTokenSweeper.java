@@ -0,0 +1,216 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+
+import com.xwiki.pdfviewer.internal.configuration.PDFViewerConfiguration;
+
+/**
+ * Removes the expired delegated tokens and the least recently used tokens exceeding the configured limits, in the
+ * background, so that the cleanup never runs on the rendering or REST threads. The global limit is defined in
+ * {@code xwiki.properties}, while each wiki defines the limit of the tokens issued for its attachments.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component(roles = DelegatedTokenSweeper.class)
+@Singleton
+public class DelegatedTokenSweeper implements Disposable
+{
+    private static final long SWEEP_INTERVAL = 60;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private PDFViewerConfiguration configuration;
+
+    /**
+     * The limit of each wiki holding delegated attachments, recorded when the tokens are issued so that the background
+     * task doesn't need to read the configuration of the wikis.
+     */
+    private final Map<String, Integer> wikiLimits = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean sweepScheduled = new AtomicBoolean();
+
+    private DelegatedTokenStore store;
+
+    private int maxTokens;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Starts sweeping the given store periodically.
+     *
+     * @param tokenStore the store holding the delegated tokens
+     */
+    void start(DelegatedTokenStore tokenStore)
+    {
+        this.store = tokenStore;
+        this.maxTokens = this.configuration.getMaxTokens();
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("PDF Viewer token sweeper").daemon(true).build());
+        this.executor.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+            try {
+                this.executor.awaitTermination(SWEEP_INTERVAL, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Records the limit configured by the given wiki, which applies to the tokens issued for its attachments. Must be
+     * called before issuing a token, outside of the lock of its entry.
+     *
+     * @param wikiId the wiki of the attachment whose token is about to be issued
+     */
+    void readWikiLimit(String wikiId)
+    {
+        this.wikiLimits.put(wikiId, this.configuration.getMaxTokensPerWiki(wikiId));
+    }
+
+    /**
+     * Runs the cleanup earlier than planned when one of the limits is exceeded, without blocking the caller.
+     *
+     * @param wikiId the wiki of the attachment whose token was just issued
+     */
+    void maybeSweep(String wikiId)
+    {
+        int limit = this.maxTokens;
+        int wikiLimit = this.wikiLimits.getOrDefault(wikiId, 0);
+        boolean exceeded = limit > 0 && this.store.size() > limit;
+        if (!exceeded && wikiLimit > 0) {
+            exceeded = this.store.getWikiTokens(wikiId).size() > wikiLimit;
+        }
+        if (exceeded && this.sweepScheduled.compareAndSet(false, true)) {
+            this.executor.execute(this::sweep);
+        }
+    }
+
+    /**
+     * Remove the expired tokens and, if the configured limits are exceeded, the least recently used ones.
+     */
+    void sweep()
+    {
+        this.sweepScheduled.set(false);
+        try {
+            long now = System.currentTimeMillis();
+            int expired = 0;
+            for (DelegatedToken token : this.store.getTokens()) {
+                if (token.isExpired(now) && this.store.remove(token)) {
+                    expired++;
+                }
+            }
+            int evicted = evictLeastRecentlyUsedPerWiki();
+            evicted += evictLeastRecentlyUsed(this.store.getTokens(), this.maxTokens);
+            if (expired > 0 || evicted > 0) {
+                this.logger.debug("Removed [{}] expired and [{}] least recently used delegated tokens.", expired,
+                    evicted);
+            }
+            logFootprint();
+        } catch (Exception e) {
+            this.logger.warn("Failed to remove the expired delegated tokens. Root cause is: [{}]",
+                ExceptionUtils.getRootCauseMessage(e));
+        }
+    }
+
+    /**
+     * Report the memory used by the tokens, in order to help sizing the heap.
+     */
+    private void logFootprint()
+    {
+        int size = this.store.size();
+        if (size > 0 && this.logger.isDebugEnabled()) {
+            long footprint = this.store.getMemoryFootprint();
+            this.logger.debug("Keeping [{}] delegated tokens in about [{}] bytes, that is [{}] bytes per token.", size,
+                footprint, footprint / size);
+            for (String wikiId : this.store.getWikis()) {
+                this.logger.debug("Keeping [{}] delegated tokens for wiki [{}] in about [{}] bytes.",
+                    this.store.getWikiTokens(wikiId).size(), wikiId, this.store.getMemoryFootprint(wikiId));
+            }
+        }
+    }
+
+    private int evictLeastRecentlyUsedPerWiki()
+    {
+        int evicted = 0;
+        for (String wikiId : this.store.getWikis()) {
+            int wikiEvicted =
+                evictLeastRecentlyUsed(this.store.getWikiTokens(wikiId), this.wikiLimits.getOrDefault(wikiId, 0));
+            if (wikiEvicted > 0) {
+                this.logger.debug("Removed [{}] least recently used delegated tokens of wiki [{}].", wikiEvicted,
+                    wikiId);
+                evicted += wikiEvicted;
+            }
+        }
+        return evicted;
+    }
+
+    private int evictLeastRecentlyUsed(Collection<DelegatedToken> tokens, int limit)
+    {
+        int excess = tokens.size() - limit;
+        if (limit <= 0 || excess <= 0) {
+            return 0;
+        }
+
+        // Snapshot the access times, since they keep changing while sorting.
+        List<Pair<Long, DelegatedToken>> candidates = tokens.stream()
+            .map(token -> Pair.of(token.getLastAccessTime(), token)).sorted(Comparator.comparing(Pair::getLeft))
+            .collect(Collectors.toList());
+        int evicted = 0;
+        for (Pair<Long, DelegatedToken> candidate : candidates) {
+            if (evicted >= excess) {
+                break;
+            }
+            if (this.store.remove(candidate.getRight())) {
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+}
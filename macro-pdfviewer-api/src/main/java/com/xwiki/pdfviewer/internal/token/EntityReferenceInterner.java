@@ -0,0 +1,83 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+
+/**
+ * Shares a single instance between the equal references held by the stored tokens, since many tokens are usually
+ * issued for the same attachments, authors and macro origins. The references are only weakly held, so they are
+ * released once no token uses them anymore.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+final class EntityReferenceInterner
+{
+    private final Map<EntityReference, WeakReference<EntityReference>> references = new WeakHashMap<>();
+
+    /**
+     * @param reference a document reference
+     * @return the shared instance equal to the given reference
+     */
+    synchronized DocumentReference intern(DocumentReference reference)
+    {
+        DocumentReference canonical = get(reference);
+        if (canonical == null) {
+            canonical = reference;
+            put(canonical);
+        }
+        return canonical;
+    }
+
+    /**
+     * @param reference an attachment reference
+     * @return the shared instance equal to the given reference, whose document reference is shared as well
+     */
+    synchronized AttachmentReference intern(AttachmentReference reference)
+    {
+        AttachmentReference canonical = get(reference);
+        if (canonical == null) {
+            DocumentReference document = intern(reference.getDocumentReference());
+            canonical = document == reference.getDocumentReference() ? reference
+                : new AttachmentReference(reference.getName(), document);
+            put(canonical);
+        }
+        return canonical;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends EntityReference> T get(T reference)
+    {
+        WeakReference<EntityReference> canonical = this.references.get(reference);
+        return canonical != null ? (T) canonical.get() : null;
+    }
+
+    private void put(EntityReference reference)
+    {
+        this.references.put(reference, new WeakReference<>(reference));
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xwiki.pdfviewer.internal.configuration.PDFViewerConfiguration;
+
+/**
+ * Keeps the delegated tokens in memory, while also recording each change in an append-only log file, see
+ * {@link DelegatedTokenLog}. The log is replayed at startup, so that the tokens survive restarts. Multiple XWiki
+ * instances can share the same log file, in which case each instance follows the changes appended by the others. The
+ * log is compacted when it mostly contains obsolete records.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component
+@Named(FileDelegatedTokenStore.HINT)
+@Singleton
+public class FileDelegatedTokenStore extends DefaultDelegatedTokenStore implements Initializable, Disposable
+{
+    /**
+     * The hint for the component.
+     */
+    public static final String HINT = "file";
+
+    /**
+     * The name of the log file, which has to change whenever the record format changes, see
+     * {@link DelegatedTokenLogCodec}.
+     */
+    private static final String LOG_FILE_NAME = "tokens-v4.log";
+
+    /**
+     * Minimum number of milliseconds between two recorded accesses of the same token, to limit the log growth.
+     */
+    private static final long TOUCH_INTERVAL = 60000;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private PDFViewerConfiguration configuration;
+
+    @Inject
+    private DelegatedTokenLogCodec codec;
+
+    private DelegatedTokenLog log;
+
+    /**
+     * Guards the reads of the log, which apply its records to the in-memory tokens.
+     */
+    private final ReentrantLock readLock = new ReentrantLock();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        String directory = this.configuration.getTokenStoreDirectory();
+        this.log = new DelegatedTokenLog((directory != null ? Paths.get(directory)
+            : this.environment.getPermanentDirectory().toPath().resolve("pdfviewer")).resolve(LOG_FILE_NAME),
+            this.logger);
+        this.readLock.lock();
+        try {
+            reload();
+        } catch (IOException e) {
+            throw new InitializationException("Failed to load the delegated tokens log.", e);
+        } finally {
+            this.readLock.unlock();
+        }
+        this.logger.debug("Loaded [{}] delegated tokens from [{}].", size(), this.log.getFile());
+        maybeCompact();
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.log.close();
+    }
+
+    @Override
+    public DelegatedToken get(String tokenId)
+    {
+        refresh(false);
+        DelegatedToken token = super.get(tokenId);
+        if (token == null && this.log.hasChanged()) {
+            // The token might have just been created by another instance. Don't wait for a concurrent refresh though,
+            // so that the unknown tokens, e.g. forged ones, can't delay the other requests.
+            refresh(false);
+            token = super.get(tokenId);
+        }
+        return token;
+    }
+
+    @Override
+    public DelegatedToken compute(AttachmentReference file, DocumentReference macroOrigin,
+        UnaryOperator<DelegatedToken> remappingFunction)
+    {
+        // Catch up with the other instances first, in order to reuse the tokens they issued.
+        refresh(false);
+        DelegatedToken token = super.compute(file, macroOrigin, remappingFunction);
+        flush();
+        return token;
+    }
+
+    @Override
+    public DelegatedToken computeGrant(DocumentReference macroOrigin, UnaryOperator<DelegatedToken> remappingFunction)
+    {
+        refresh(false);
+        DelegatedToken grant = super.computeGrant(macroOrigin, remappingFunction);
+        flush();
+        return grant;
+    }
+
+    @Override
+    public boolean remove(DelegatedToken token)
+    {
+        boolean removed = super.remove(token);
+        flush();
+        return removed;
+    }
+
+    @Override
+    public Collection<DelegatedToken> getAttachmentTokens(AttachmentReference file)
+    {
+        // Include the tokens issued by the other instances, so that they are invalidated as well.
+        refresh(true);
+        return super.getAttachmentTokens(file);
+    }
+
+    @Override
+    public Collection<DelegatedToken> removeAttachmentTokens(AttachmentReference file)
+    {
+        // The grants that still cover other attachments are updated without going through remove.
+        Collection<DelegatedToken> removedTokens = super.removeAttachmentTokens(file);
+        flush();
+        return removedTokens;
+    }
+
+    @Override
+    public Collection<DelegatedToken> removeDocumentTokens(DocumentReference document)
+    {
+        refresh(true);
+        Collection<DelegatedToken> removedTokens = super.removeDocumentTokens(document);
+        flush();
+        return removedTokens;
+    }
+
+    @Override
+    public Collection<DelegatedToken> removeOriginTokens(DocumentReference macroOrigin)
+    {
+        refresh(true);
+        Collection<DelegatedToken> removedTokens = super.removeOriginTokens(macroOrigin);
+        flush();
+        return removedTokens;
+    }
+
+    @Override
+    public Collection<DelegatedToken> removeWikiTokens(String wikiId)
+    {
+        refresh(true);
+        Collection<DelegatedToken> removedTokens = super.removeWikiTokens(wikiId);
+        flush();
+        return removedTokens;
+    }
+
+    @Override
+    public void touch(DelegatedToken token, long time)
+    {
+        long previousAccess = token.getLastAccessTime();
+        super.touch(token, time);
+        if (time - previousAccess >= TOUCH_INTERVAL) {
+            this.log.queue(this.codec.encode(DelegatedTokenChange.touched(token, time)));
+            flush();
+        }
+    }
+
+    @Override
+    protected void tokenAdded(DelegatedToken token)
+    {
+        this.log.queue(this.codec.encode(DelegatedTokenChange.added(token)));
+    }
+
+    @Override
+    protected void tokenRemoved(DelegatedToken token)
+    {
+        this.log.queue(this.codec.encode(DelegatedTokenChange.removed(token)));
+    }
+
+    @Override
+    protected void wikiRemoved(String wikiId)
+    {
+        this.log.queue(this.codec.encode(DelegatedTokenChange.wikiRemoved(wikiId)));
+    }
+
+    /**
+     * Writes the queued records to the log. Must be called after releasing the token entries, and before handing out
+     * the changed tokens, so that the other instances know them.
+     */
+    private void flush()
+    {
+        this.log.flush();
+        maybeCompact();
+    }
+
+    /**
+     * Applies the records appended by the other instances since the last refresh.
+     *
+     * @param wait {@code true} to wait for a concurrent refresh to finish, {@code false} to skip the refresh in this
+     *     case
+     */
+    private void refresh(boolean wait)
+    {
+        if (wait) {
+            this.readLock.lock();
+        } else if (!this.log.hasChanged() || !this.readLock.tryLock()) {
+            return;
+        }
+        try {
+            if (this.log.isReplaced()) {
+                reload();
+            } else {
+                this.log.read(record -> apply(record, null));
+            }
+        } catch (IOException e) {
+            this.logger.warn("Failed to read the delegated token changes from [{}]. Root cause is: [{}]",
+                this.log.getFile(), ExceptionUtils.getRootCauseMessage(e));
+        } finally {
+            this.readLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the whole log file and makes the in-memory tokens match its content. Must be called while holding
+     * {@link #readLock}.
+     */
+    private void reload() throws IOException
+    {
+        long reloadTime = System.currentTimeMillis();
+        this.log.open();
+        Set<String> liveTokens = new HashSet<>();
+        this.log.read(record -> apply(record, liveTokens));
+        for (DelegatedToken token : getTokens()) {
+            // Skip the tokens created or used during the reload, since their records might be written after the file
+            // was read.
+            if (!liveTokens.contains(token.toString()) && token.getLastAccessTime() < reloadTime) {
+                forget(token.toString());
+            }
+        }
+    }
+
+    /**
+     * @param liveTokens if not {@code null}, collects the identifiers of the tokens that are still valid
+     */
+    private void apply(String record, Set<String> liveTokens)
+    {
+        try {
+            DelegatedTokenChange change = this.codec.decode(record);
+            apply(change);
+            if (liveTokens != null && change.getType() == DelegatedTokenChange.Type.ADDED) {
+                liveTokens.add(change.getId());
+            } else if (liveTokens != null && change.getType() == DelegatedTokenChange.Type.REMOVED) {
+                liveTokens.remove(change.getId());
+            }
+        } catch (Exception e) {
+            this.logger.warn("Skipping invalid delegated token record [{}]. Root cause is: [{}]", record,
+                ExceptionUtils.getRootCauseMessage(e));
+        }
+    }
+
+    private void maybeCompact()
+    {
+        this.log.maybeCompact(size(), this::compact);
+    }
+
+    /**
+     * Rewrites the log with only the records of the current tokens.
+     */
+    private void compact()
+    {
+        this.readLock.lock();
+        try {
+            // Apply the changes made by the other instances before dropping their records.
+            this.log.read(record -> apply(record, null));
+            if (this.log.compact(getTokens().stream()
+                .map(token -> this.codec.encode(DelegatedTokenChange.added(token))).collect(Collectors.toList())))
+            {
+                this.logger.debug("Compacted the delegated tokens log [{}] to [{}] records.", this.log.getFile(),
+                    this.log.getRecordCount());
+            }
+        } catch (IOException e) {
+            this.logger.warn("Failed to compact the delegated tokens log [{}]. Root cause is: [{}]",
+                this.log.getFile(), ExceptionUtils.getRootCauseMessage(e));
+        } finally {
+            this.readLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * A {@link DelegatedToken} whose string representation is a signed claim, so that it can be validated without being
+ * stored.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+class SignedDelegatedToken extends DelegatedToken
+{
+    private final int generation;
+
+    private final int originGeneration;
+
+    private final String value;
+
+    /**
+     * @param generation the revocation generation of the attachment when the token was issued
+     * @param originGeneration the revocation generation of the macro origin when the token was issued
+     * @param expirationTime the time when the token expires, in milliseconds
+     * @param issueTime the time when the token was issued, in milliseconds
+     * @param value the signed representation of the token
+     */
+    SignedDelegatedToken(DocumentReference user, AttachmentReference file, DocumentReference macroOrigin,
+        int generation, int originGeneration, long expirationTime, long issueTime, String value)
+    {
+        super(null, user, file, macroOrigin, expirationTime, 0, issueTime);
+        this.generation = generation;
+        this.originGeneration = originGeneration;
+        this.value = value;
+    }
+
+    /**
+     * @return the revocation generation of the attachment when the token was issued
+     */
+    int getGeneration()
+    {
+        return this.generation;
+    }
+
+    /**
+     * @return the revocation generation of the macro origin when the token was issued
+     */
+    int getOriginGeneration()
+    {
+        return this.originGeneration;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.value;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return this.value.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        return obj instanceof SignedDelegatedToken && this.value.equals(((SignedDelegatedToken) obj).value);
+    }
+}
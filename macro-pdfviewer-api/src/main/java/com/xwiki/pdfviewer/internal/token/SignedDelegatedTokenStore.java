@@ -0,0 +1,268 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+/**
+ * Doesn't store the delegated tokens, but signs them instead, so that any XWiki instance sharing the signing key can
+ * validate them. The tokens are always issued with an expiration time, which is the configured time to live, capped
+ * by the idle timeout since the token use can't be tracked.
+ * <p>
+ * The tokens of an attachment are revoked by incrementing its generation, and the tokens issued for the macros of a
+ * document by incrementing the generation of the macro origin, both generations being part of the signed claim. The
+ * generations are recorded in the token store directory, see {@link DelegatedTokenRevocations}, so a revocation
+ * survives restarts and applies to all the XWiki instances sharing the directory. The rights of the token author and
+ * of the user are still checked each time a token is used.
+ * <p>
+ * The signed tokens can't be grants, see {@link DelegatedTokenGrantStore}, since their claim would grow with the number
+ * of attachments, and so would the URLs of the attachments.
+ *
+ * @version $Id$
+ * @since 2.7
+ */
+@Component
+@Named(SignedDelegatedTokenStore.HINT)
+@Singleton
+public class SignedDelegatedTokenStore implements DelegatedTokenStore
+{
+    /**
+     * The hint for the component.
+     */
+    public static final String HINT = "signed";
+
+    private static final String CLAIM_TYPE = "token";
+
+    private static final String SEPARATOR = "/";
+
+    private static final long DEFAULT_LIFETIME = TimeUnit.DAYS.toMillis(1);
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private DelegatedTokenSigner signer;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    private EntityReferenceResolver<String> resolver;
+
+    @Inject
+    private DelegatedTokenRevocations revocations;
+
+    @Override
+    public DelegatedToken get(String tokenId)
+    {
+        String claim = this.signer.verify(CLAIM_TYPE, tokenId);
+        if (claim == null) {
+            return null;
+        }
+        try {
+            SignedDelegatedToken token = parseToken(claim, tokenId);
+            boolean revoked = token.getGeneration() != this.revocations.getGeneration(token.getFileReference())
+                || token.getOriginGeneration() != this.revocations.getOriginGeneration(token.getMacroOrigin());
+            return revoked ? null : token;
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            this.logger.debug("Invalid delegated token [{}]. Root cause is: [{}]", tokenId,
+                ExceptionUtils.getRootCauseMessage(e));
+            return null;
+        }
+    }
+
+    @Override
+    public DelegatedToken compute(AttachmentReference file, DocumentReference macroOrigin,
+        UnaryOperator<DelegatedToken> remappingFunction)
+    {
+        // There is never an existing token, a new one being signed each time.
+        DelegatedToken token = remappingFunction.apply(null);
+        return token != null ? signToken(token) : null;
+    }
+
+    /**
+     * Does nothing, since the signed tokens can't be revoked one by one, and revoking all the tokens of the attachment
+     * or of the macro origin would affect the other authors or the other attachments. The token is removed when its
+     * author loses the view right on the attachment, which is checked each time a token is used, so the token keeps
+     * being rejected as long as the right is missing.
+     *
+     * @param token the token to remove
+     * @return {@code false}
+     */
+    @Override
+    public boolean remove(DelegatedToken token)
+    {
+        return false;
+    }
+
+    @Override
+    public Collection<DelegatedToken> removeAttachmentTokens(AttachmentReference file)
+    {
+        this.revocations.revoke(file);
+        return List.of();
+    }
+
+    /**
+     * Revokes the tokens issued for the macros of the given document, since it might be their macro origin. The tokens
+     * of the attachments of a deleted document are rejected anyway once the attachments are missing, and the rights of
+     * the token author are checked on each use.
+     *
+     * @param document a document reference
+     * @return an empty list, since the revoked tokens are not known
+     */
+    @Override
+    public Collection<DelegatedToken> removeDocumentTokens(DocumentReference document)
+    {
+        this.revocations.revokeOrigin(document);
+        return List.of();
+    }
+
+    /**
+     * Revokes the tokens issued for the macros of the given document.
+     *
+     * @param macroOrigin the macro origin document
+     * @return an empty list, since the revoked tokens are not known
+     */
+    @Override
+    public Collection<DelegatedToken> removeOriginTokens(DocumentReference macroOrigin)
+    {
+        this.revocations.revokeOrigin(macroOrigin);
+        return List.of();
+    }
+
+    /**
+     * Does nothing, since the tokens of a deleted wiki are rejected anyway because their attachment is missing.
+     *
+     * @param wikiId the wiki identifier
+     * @return an empty list
+     */
+    @Override
+    public Collection<DelegatedToken> removeWikiTokens(String wikiId)
+    {
+        return List.of();
+    }
+
+    @Override
+    public void touch(DelegatedToken token, long time)
+    {
+        // The token use is not tracked.
+    }
+
+    @Override
+    public Collection<DelegatedToken> getAttachmentTokens(AttachmentReference file)
+    {
+        return List.of();
+    }
+
+    @Override
+    public Collection<DelegatedToken> getTokens()
+    {
+        return List.of();
+    }
+
+    @Override
+    public Collection<String> getWikis()
+    {
+        return List.of();
+    }
+
+    @Override
+    public Collection<DelegatedToken> getWikiTokens(String wikiId)
+    {
+        return List.of();
+    }
+
+    @Override
+    public int size()
+    {
+        return 0;
+    }
+
+    @Override
+    public long getMemoryFootprint()
+    {
+        return 0;
+    }
+
+    @Override
+    public long getMemoryFootprint(String wikiId)
+    {
+        return 0;
+    }
+
+    private SignedDelegatedToken signToken(DelegatedToken token)
+    {
+        long issueTime = token.getLastAccessTime();
+        long lifetime = token.getIdleTimeout() > 0 ? token.getIdleTimeout() : DEFAULT_LIFETIME;
+        long expirationTime = Math.min(token.getExpirationTime(), issueTime + lifetime);
+        int generation = this.revocations.getGeneration(token.getFileReference());
+        int originGeneration = this.revocations.getOriginGeneration(token.getMacroOrigin());
+
+        String claim = String.join(SEPARATOR, String.valueOf(generation), String.valueOf(originGeneration),
+            String.valueOf(expirationTime), String.valueOf(issueTime),
+            encode(this.serializer.serialize(token.getUser())),
+            encode(this.serializer.serialize(token.getFileReference())),
+            encode(this.serializer.serialize(token.getMacroOrigin())));
+        String value = this.signer.sign(CLAIM_TYPE, claim);
+
+        return new SignedDelegatedToken(token.getUser(), token.getFileReference(), token.getMacroOrigin(), generation,
+            originGeneration, expirationTime, issueTime, value);
+    }
+
+    private SignedDelegatedToken parseToken(String claim, String value)
+    {
+        String[] fields = claim.split(SEPARATOR, -1);
+        DocumentReference user = new DocumentReference(resolve(fields[4], EntityType.DOCUMENT));
+        AttachmentReference file = new AttachmentReference(resolve(fields[5], EntityType.ATTACHMENT));
+        DocumentReference macroOrigin = new DocumentReference(resolve(fields[6], EntityType.DOCUMENT));
+        return new SignedDelegatedToken(user, file, macroOrigin, Integer.parseInt(fields[0]),
+            Integer.parseInt(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]), value);
+    }
+
+    private EntityReference resolve(String field, EntityType type)
+    {
+        return this.resolver.resolve(URLDecoder.decode(field, StandardCharsets.UTF_8), type);
+    }
+
+    private static String encode(String value)
+    {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+}
@@ -20,6 +20,8 @@
 package com.xwiki.pdfviewer.rest;
 
 import javax.ws.rs.GET;
+import javax.ws.rs.HEAD;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Response;
@@ -39,15 +41,56 @@ import org.xwiki.stability.Unstable;
 public interface PDFMacroResource extends XWikiRestComponent
 {
     /**
-     * Get file content.
+     * Get file content, or the requested byte ranges of it.
      *
-     * @param token {@code String} representation of the delegation token
+     * @param token {@code String} representation of the delegation token, or of a grant followed by the file index
      * @param csrfToken {@code String} representation of the CSRF token
-     * @return the content of the file saved in the token
+     * @param range the value of the {@code Range} header, or {@code null} to get the whole content
+     * @param ifNoneMatch the value of the {@code If-None-Match} header, used when the browser already has a copy of
+     *     the content
+     * @param ifModifiedSince the value of the {@code If-Modified-Since} header, used when the browser already has a
+     *     copy of the content
+     * @param ifRange the value of the {@code If-Range} header, used when the browser already has some ranges of the
+     *     content
+     * @return the content of the file saved in the token, or a {@code 304} response if the browser's copy is current
      * @throws XWikiRestException if an error occurred while retrieving the file content
      */
     @GET
     @Path("/contents")
-    Response getContents(@QueryParam("access_token") String token, @QueryParam("form_token") String csrfToken)
+    Response getContents(@QueryParam("access_token") String token, @QueryParam("form_token") String csrfToken,
+        @HeaderParam("Range") String range, @HeaderParam("If-None-Match") String ifNoneMatch,
+        @HeaderParam("If-Modified-Since") String ifModifiedSince, @HeaderParam("If-Range") String ifRange)
+        throws XWikiRestException;
+
+    /**
+     * Get the headers of {@link #getContents}, such as the file length, without the content.
+     *
+     * @param token {@code String} representation of the delegation token, or of a grant followed by the file index
+     * @param csrfToken {@code String} representation of the CSRF token
+     * @param range the value of the {@code Range} header, or {@code null} for the whole content
+     * @param ifNoneMatch the value of the {@code If-None-Match} header
+     * @param ifModifiedSince the value of the {@code If-Modified-Since} header
+     * @param ifRange the value of the {@code If-Range} header
+     * @return the headers of the file content response
+     * @throws XWikiRestException if an error occurred while retrieving the file
+     */
+    @HEAD
+    @Path("/contents")
+    Response getContentsHeaders(@QueryParam("access_token") String token, @QueryParam("form_token") String csrfToken,
+        @HeaderParam("Range") String range, @HeaderParam("If-None-Match") String ifNoneMatch,
+        @HeaderParam("If-Modified-Since") String ifModifiedSince, @HeaderParam("If-Range") String ifRange)
+        throws XWikiRestException;
+
+    /**
+     * Issue the delegation token referenced by a rendered viewer, and redirect to the file content.
+     *
+     * @param reference {@code String} representation of the signed token reference
+     * @param csrfToken {@code String} representation of the CSRF token
+     * @return a redirect to the content of the referenced file, see {@link #getContents}
+     * @throws XWikiRestException if an error occurred while issuing the token
+     */
+    @GET
+    @Path("/token")
+    Response getToken(@QueryParam("reference") String reference, @QueryParam("form_token") String csrfToken)
         throws XWikiRestException;
 }
@@ -0,0 +1,87 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.observation.remote.RemoteObservationManagerContext;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xwiki.pdfviewer.internal.configuration.PDFViewerConfiguration;
+import com.xwiki.pdfviewer.internal.token.ClusterDelegatedTokenStore;
+import com.xwiki.pdfviewer.internal.token.DelegatedTokenChangeEvent;
+import com.xwiki.pdfviewer.internal.token.DelegatedTokenStore;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link PDFViewerClusterListener}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class PDFViewerClusterListenerTest
+{
+    @InjectMockComponents
+    private PDFViewerClusterListener listener;
+
+    @MockComponent
+    private RemoteObservationManagerContext remoteObservationManagerContext;
+
+    @MockComponent
+    private PDFViewerConfiguration configuration;
+
+    @MockComponent(classToMock = ClusterDelegatedTokenStore.class)
+    @Named(ClusterDelegatedTokenStore.HINT)
+    private DelegatedTokenStore store;
+
+    @BeforeEach
+    void setUp()
+    {
+        when(this.configuration.getTokenStoreHint()).thenReturn(ClusterDelegatedTokenStore.HINT);
+    }
+
+    @Test
+    void applyRemoteChanges()
+    {
+        ClusterDelegatedTokenStore clusterStore = (ClusterDelegatedTokenStore) this.store;
+        DelegatedTokenChangeEvent event = new DelegatedTokenChangeEvent();
+        when(this.remoteObservationManagerContext.isRemoteState()).thenReturn(true);
+
+        this.listener.onEvent(event, ClusterDelegatedTokenStore.HINT, null);
+
+        verify(clusterStore).apply(event);
+    }
+
+    @Test
+    void ignoreLocalChanges()
+    {
+        this.listener.onEvent(new DelegatedTokenChangeEvent(), ClusterDelegatedTokenStore.HINT, null);
+
+        verify((ClusterDelegatedTokenStore) this.store, never()).apply(any());
+    }
+}
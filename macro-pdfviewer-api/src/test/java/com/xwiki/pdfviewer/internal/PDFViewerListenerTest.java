@@ -19,9 +19,15 @@
  */
 package com.xwiki.pdfviewer.internal;
 
+import java.util.Locale;
+
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
 import org.mockito.Mock;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.bridge.event.WikiDeletedEvent;
+import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.observation.event.Event;
 import org.xwiki.test.LogLevel;
@@ -32,11 +38,13 @@ import org.xwiki.test.junit5.mockito.MockComponent;
 
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.internal.event.AttachmentDeletedEvent;
-import com.xwiki.pdfviewer.internal.token.DelegatedTokenManager;
+import com.xpn.xwiki.internal.event.AttachmentUpdatedEvent;
+import com.xwiki.pdfviewer.internal.token.DelegatedTokenInvalidator;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -53,13 +61,12 @@ class PDFViewerListenerTest
     private PDFViewerListener pdfViewerListener;
 
     @MockComponent
-    private DelegatedTokenManager tokenManager;
+    private DelegatedTokenInvalidator invalidator;
 
     @RegisterExtension
     private LogCaptureExtension logCapture = new LogCaptureExtension(LogLevel.DEBUG);
 
-    @Mock
-    private DocumentReference documentReference;
+    private final DocumentReference documentReference = new DocumentReference("wiki", "Space", "Page");
 
     @Mock
     private XWikiDocument xWikiDocument;
@@ -70,21 +77,76 @@ class PDFViewerListenerTest
         Event event = new AttachmentDeletedEvent("test document name", "test attachment name");
         when(xWikiDocument.getDocumentReference()).thenReturn(documentReference);
         pdfViewerListener.onEvent(event, xWikiDocument, null);
-        assertEquals("Successfully removed all tokens granted for [test attachment name]", logCapture.getMessage(0));
-        verify(tokenManager, times(1)).clearAttachmentTokens("test attachment name", documentReference);
+        assertEquals("Scheduled the removal of all tokens granted for [test attachment name]",
+            logCapture.getMessage(0));
+        verify(invalidator, times(1))
+            .invalidateAttachment(new AttachmentReference("test attachment name", documentReference));
     }
 
     @Test
     void onAttachmentDeletedEventFail()
     {
         Event event = new AttachmentDeletedEvent("test document name", "test attachment name");
-        doThrow(new RuntimeException("test error message")).when(tokenManager)
-            .clearAttachmentTokens("test attachment name", null);
-        RuntimeException exception =
-            assertThrows(RuntimeException.class, () -> this.pdfViewerListener.onEvent(event, xWikiDocument, null));
-        assertEquals("java.lang.RuntimeException: test error message", exception.getMessage());
+        when(xWikiDocument.getDocumentReference()).thenReturn(documentReference);
+        doThrow(new RuntimeException("test error message")).when(invalidator).invalidateAttachment(any());
+        // The failure must not prevent the attachment deletion.
+        this.pdfViewerListener.onEvent(event, xWikiDocument, null);
         assertEquals(
             "An error occurred while removing PDF Viewer access tokens. Root cause is: [RuntimeException: test error "
                 + "message]", logCapture.getMessage(0));
     }
+
+    @Test
+    void onAttachmentUpdatedEvent()
+    {
+        Event event = new AttachmentUpdatedEvent("test document name", "test attachment name");
+        when(xWikiDocument.getDocumentReference()).thenReturn(documentReference);
+        pdfViewerListener.onEvent(event, xWikiDocument, null);
+        assertEquals("Scheduled the removal of all tokens granted for [test attachment name]",
+            logCapture.getMessage(0));
+        verify(invalidator, times(1))
+            .invalidateAttachment(new AttachmentReference("test attachment name", documentReference));
+    }
+
+    @Test
+    void onDocumentDeletedEvent()
+    {
+        when(xWikiDocument.getDocumentReference()).thenReturn(documentReference);
+        pdfViewerListener.onEvent(new DocumentDeletedEvent(), xWikiDocument, null);
+        verify(invalidator, times(1)).invalidateDocument(documentReference);
+    }
+
+    @Test
+    void onTranslationDeletedEvent()
+    {
+        when(xWikiDocument.getDocumentReference()).thenReturn(documentReference);
+        when(xWikiDocument.getLocale()).thenReturn(Locale.FRENCH);
+        pdfViewerListener.onEvent(new DocumentDeletedEvent(), xWikiDocument, null);
+        verify(invalidator, never()).invalidateDocument(any());
+    }
+
+    @Test
+    void onWikiDeletedEvent()
+    {
+        pdfViewerListener.onEvent(new WikiDeletedEvent("subwiki"), null, null);
+        verify(invalidator, times(1)).invalidateWiki("subwiki");
+    }
+
+    @Test
+    void onDocumentUpdatedEventWithoutMacro()
+    {
+        when(xWikiDocument.getDocumentReference()).thenReturn(documentReference);
+        when(xWikiDocument.getContent()).thenReturn("{{info}}No PDF anymore.{{/info}}");
+        pdfViewerListener.onEvent(new DocumentUpdatedEvent(), xWikiDocument, null);
+        verify(invalidator, times(1)).invalidateOrigin(documentReference);
+    }
+
+    @Test
+    void onDocumentUpdatedEventWithMacro()
+    {
+        when(xWikiDocument.getDocumentReference()).thenReturn(documentReference);
+        when(xWikiDocument.getContent()).thenReturn("{{pdfviewer file=\"test.pdf\"/}}");
+        pdfViewerListener.onEvent(new DocumentUpdatedEvent(), xWikiDocument, null);
+        verify(invalidator, never()).invalidateOrigin(any());
+    }
 }
@@ -0,0 +1,77 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.internal.event.XObjectAddedEvent;
+import com.xpn.xwiki.internal.event.XObjectDeletedEvent;
+import com.xpn.xwiki.internal.event.XObjectUpdatedEvent;
+import com.xpn.xwiki.objects.BaseObjectReference;
+import com.xwiki.pdfviewer.internal.token.DelegatedTokenRightsCache;
+
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Unit test for {@link PDFViewerRightsListener}
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class PDFViewerRightsListenerTest
+{
+    private static final DocumentReference DOCUMENT = new DocumentReference("wiki", "Space", "Page");
+
+    @InjectMockComponents
+    private PDFViewerRightsListener listener;
+
+    @MockComponent
+    private DelegatedTokenRightsCache rightsCache;
+
+    @Test
+    void onRightsObjectEvents()
+    {
+        this.listener.onEvent(new XObjectAddedEvent(getObjectReference("XWikiRights")), null, null);
+        this.listener.onEvent(new XObjectUpdatedEvent(getObjectReference("XWikiGlobalRights")), null, null);
+        this.listener.onEvent(new XObjectDeletedEvent(getObjectReference("XWikiGroups")), null, null);
+        this.listener.onEvent(new XObjectDeletedEvent(getObjectReference("XWikiUsers")), null, null);
+
+        verify(this.rightsCache, times(4)).invalidate();
+    }
+
+    @Test
+    void onOtherObjectEvents()
+    {
+        this.listener.onEvent(new XObjectAddedEvent(getObjectReference("XWikiComments")), null, null);
+
+        verify(this.rightsCache, never()).invalidate();
+    }
+
+    private BaseObjectReference getObjectReference(String className)
+    {
+        return new BaseObjectReference(new DocumentReference("wiki", "XWiki", className), 0, DOCUMENT);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.content;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.test.junit5.mockito.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link AttachmentMetadataCache}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class AttachmentMetadataCacheTest
+{
+    private static final DocumentReference DOCUMENT = new DocumentReference("wiki", "Space", "Page");
+
+    private static final DocumentReference MISSING_DOCUMENT = new DocumentReference("wiki", "Space", "Missing");
+
+    private static final AttachmentReference FILE = new AttachmentReference("file.pdf", DOCUMENT);
+
+    @InjectMockComponents
+    private AttachmentMetadataCache metadataCache;
+
+    @MockComponent
+    private CacheManager cacheManager;
+
+    @MockComponent
+    private Provider<XWikiContext> contextProvider;
+
+    @MockComponent
+    private EntityReferenceSerializer<String> serializer;
+
+    @Mock
+    private XWikiContext context;
+
+    @Mock
+    private XWiki wiki;
+
+    @Mock
+    private XWikiDocument document;
+
+    @Mock
+    private XWikiDocument missingDocument;
+
+    @Mock
+    private XWikiAttachment attachment;
+
+    private final Map<String, Object> cachedMetadata = new ConcurrentHashMap<>();
+
+    private final Map<String, Object> cachedMissingDocuments = new ConcurrentHashMap<>();
+
+    @BeforeComponent
+    void configure() throws Exception
+    {
+        when(this.cacheManager.createNewCache(any())).thenReturn(mockCache(this.cachedMetadata),
+            mockCache(this.cachedMissingDocuments));
+        when(this.serializer.serialize(any()))
+            .then(invocation -> invocation.<EntityReference>getArgument(0).toString());
+    }
+
+    @BeforeEach
+    void setup() throws Exception
+    {
+        when(this.contextProvider.get()).thenReturn(this.context);
+        when(this.context.getWiki()).thenReturn(this.wiki);
+        when(this.wiki.getDocument(DOCUMENT, this.context)).thenReturn(this.document);
+        when(this.wiki.getDocument(MISSING_DOCUMENT, this.context)).thenReturn(this.missingDocument);
+        when(this.missingDocument.isNew()).thenReturn(true);
+        when(this.document.getAttachmentList()).thenReturn(List.of(this.attachment));
+        when(this.attachment.getFilename()).thenReturn(FILE.getName());
+    }
+
+    @Test
+    void loadDocumentOnce() throws Exception
+    {
+        assertTrue(this.metadataCache.exists(DOCUMENT));
+        assertTrue(this.metadataCache.exists(FILE));
+        assertFalse(this.metadataCache.exists(new AttachmentReference("other.pdf", DOCUMENT)));
+        verify(this.wiki, times(1)).getDocument(DOCUMENT, this.context);
+
+        assertFalse(this.metadataCache.exists(MISSING_DOCUMENT));
+        assertNull(this.metadataCache.getAttachment(new AttachmentReference("file.pdf", MISSING_DOCUMENT)));
+        verify(this.wiki, times(1)).getDocument(MISSING_DOCUMENT, this.context);
+    }
+
+    @Test
+    void rememberMissingDocumentsSeparately() throws Exception
+    {
+        assertFalse(this.metadataCache.exists(MISSING_DOCUMENT));
+        assertFalse(this.metadataCache.exists(MISSING_DOCUMENT));
+        assertTrue(this.cachedMissingDocuments.containsKey(MISSING_DOCUMENT.toString()));
+        assertFalse(this.cachedMetadata.containsKey(MISSING_DOCUMENT.toString()));
+        verify(this.wiki, times(1)).getDocument(MISSING_DOCUMENT, this.context);
+
+        // The document is created.
+        when(this.missingDocument.isNew()).thenReturn(false);
+        this.metadataCache.invalidate(MISSING_DOCUMENT);
+        assertTrue(this.metadataCache.exists(MISSING_DOCUMENT));
+        assertFalse(this.cachedMissingDocuments.containsKey(MISSING_DOCUMENT.toString()));
+    }
+
+    @Test
+    void invalidate() throws Exception
+    {
+        assertTrue(this.metadataCache.exists(FILE));
+
+        when(this.document.getAttachmentList()).thenReturn(List.of());
+        assertTrue(this.metadataCache.exists(FILE));
+
+        this.metadataCache.invalidate(DOCUMENT);
+        assertFalse(this.metadataCache.exists(FILE));
+
+        when(this.document.isNew()).thenReturn(true);
+        this.metadataCache.invalidateAll();
+        assertFalse(this.metadataCache.exists(DOCUMENT));
+        verify(this.wiki, times(3)).getDocument(DOCUMENT, this.context);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Cache<Object> mockCache(Map<String, Object> entries)
+    {
+        Cache<Object> cache = mock(Cache.class);
+        when(cache.get(anyString())).then(invocation -> entries.get(invocation.<String>getArgument(0)));
+        doAnswer(invocation -> entries.put(invocation.getArgument(0), invocation.getArgument(1))).when(cache)
+            .set(anyString(), any());
+        doAnswer(invocation -> entries.remove(invocation.<String>getArgument(0))).when(cache).remove(anyString());
+        doAnswer(invocation -> {
+            entries.clear();
+            return null;
+        }).when(cache).removeAll();
+        return cache;
+    }
+}
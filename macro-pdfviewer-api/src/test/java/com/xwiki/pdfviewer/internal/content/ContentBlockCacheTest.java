@@ -0,0 +1,144 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.content;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.junit5.mockito.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xwiki.pdfviewer.internal.configuration.PDFViewerConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link ContentBlockCache}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class ContentBlockCacheTest
+{
+    private static final int BLOCK_SIZE = ContentBlockCache.BLOCK_SIZE;
+
+    private static final AttachmentReference FILE =
+        new AttachmentReference("file.pdf", new DocumentReference("wiki", "Space", "Page"));
+
+    @InjectMockComponents
+    private ContentBlockCache cache;
+
+    @MockComponent
+    private PDFViewerConfiguration configuration;
+
+    @Mock
+    private XWikiAttachment attachment;
+
+    @Mock
+    private XWikiContext context;
+
+    private final byte[] content = new byte[BLOCK_SIZE * 3 + 10];
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.configuration.getContentCacheSize()).thenReturn(2L * BLOCK_SIZE);
+    }
+
+    @BeforeEach
+    void setUp() throws XWikiException
+    {
+        new Random(42).nextBytes(this.content);
+        when(this.attachment.getReference()).thenReturn(FILE);
+        when(this.attachment.getVersion()).thenReturn("1.1");
+        when(this.attachment.getDate()).thenReturn(new Date(1000));
+        when(this.attachment.getLongSize()).thenReturn((long) this.content.length);
+        when(this.attachment.getContentInputStream(this.context))
+            .then(invocation -> new ByteArrayInputStream(this.content));
+    }
+
+    @Test
+    void serveCachedBlocks() throws Exception
+    {
+        assertTrue(this.cache.isEnabled());
+        assertArrayEquals(this.content, read(0, this.content.length));
+        verify(this.attachment, times(1)).getContentInputStream(this.context);
+        assertEquals(2L * BLOCK_SIZE, this.cache.getStatistics().get("residentBytes"));
+        assertEquals(4L, this.cache.getStatistics().get("misses"));
+
+        // The first block, read twice, is cached and doesn't need the attachment store.
+        assertArrayEquals(Arrays.copyOfRange(this.content, 100, 200), read(100, 100));
+        assertArrayEquals(Arrays.copyOfRange(this.content, 10, 110), read(10, 100));
+        verify(this.attachment, times(1)).getContentInputStream(this.context);
+        assertEquals(2L, this.cache.getStatistics().get("hits"));
+    }
+
+    @Test
+    void keepFrequentlyUsedBlocks() throws Exception
+    {
+        read(0, 1);
+        read(0, 1);
+        read(BLOCK_SIZE, 1);
+        read(BLOCK_SIZE, 1);
+        // The blocks read once don't evict the blocks read more often.
+        read(2L * BLOCK_SIZE, 1);
+        read(3L * BLOCK_SIZE, 1);
+        assertEquals(0L, this.cache.getStatistics().get("evictions"));
+
+        read(3L * BLOCK_SIZE, 1);
+        read(3L * BLOCK_SIZE, 1);
+        assertEquals(1L, this.cache.getStatistics().get("evictions"));
+        assertEquals(2L, this.cache.getStatistics().get("blocks"));
+
+        // A new attachment version doesn't use the blocks of the previous one.
+        when(this.attachment.getVersion()).thenReturn("1.2");
+        long hits = this.cache.getStatistics().get("hits");
+        read(3L * BLOCK_SIZE, 1);
+        assertEquals(hits, this.cache.getStatistics().get("hits"));
+    }
+
+    private byte[] read(long start, int length) throws IOException
+    {
+        try (InputStream input = this.cache.getContentInputStream(this.attachment, this.context)) {
+            assertEquals(start, input.skip(start));
+            return IOUtils.readFully(input, length);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.content;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.io.input.AutoCloseInputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Unit test for {@link ContentWriter}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class ContentWriterTest
+{
+    private static final String CONTENT = "This is the attachment content";
+
+    @InjectMockComponents
+    private ContentWriter writer;
+
+    @TempDir
+    private Path tmpDir;
+
+    @Test
+    void copyFileStoreContent() throws Exception
+    {
+        Path file = this.tmpDir.resolve("file.pdf");
+        Files.write(file, CONTENT.getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        // The file system attachment store wraps the file stream.
+        try (InputStream content =
+            new AutoCloseInputStream(new BufferedInputStream(new FileInputStream(file.toFile()))))
+        {
+            assertEquals(8, content.skip(8));
+            this.writer.write(content, 3, output);
+            assertEquals(1, content.skip(1));
+            // The next write continues after the copied and skipped bytes.
+            this.writer.write(content, 10, output);
+        }
+
+        assertEquals("theattachme", output.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void transferFileContent() throws Exception
+    {
+        Path file = this.tmpDir.resolve("file.pdf");
+        Files.write(file, CONTENT.getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        try (FileChannel content = FileChannel.open(file, StandardOpenOption.READ)) {
+            this.writer.transfer(content, 8, 3, output);
+            // The ranges are given by position, so they don't have to follow each other.
+            this.writer.transfer(content, 0, 4, output);
+            assertEquals(0, content.position());
+            assertEquals("theThis", output.toString(StandardCharsets.UTF_8));
+
+            assertThrows(EOFException.class, () -> this.writer.transfer(content, 20, CONTENT.length(), output));
+        }
+    }
+
+    @Test
+    void copyStreamContent() throws Exception
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        InputStream content = new ByteArrayInputStream(CONTENT.getBytes(StandardCharsets.UTF_8));
+
+        this.writer.write(content, 4, output);
+        assertEquals("This", output.toString(StandardCharsets.UTF_8));
+
+        assertThrows(EOFException.class, () -> this.writer.write(content, CONTENT.length(), output));
+    }
+}
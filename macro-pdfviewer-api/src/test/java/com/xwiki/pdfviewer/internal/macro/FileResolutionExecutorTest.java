@@ -0,0 +1,205 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.macro;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.test.junit5.mockito.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xwiki.pdfviewer.internal.configuration.PDFViewerConfiguration;
+import com.xwiki.pdfviewer.macro.PDFFile;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link FileResolutionExecutor}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class FileResolutionExecutorTest
+{
+    private static final List<String> FILES = List.of("first.pdf", "second.pdf", "third.pdf");
+
+    @InjectMockComponents
+    private FileResolutionExecutor resolutionExecutor;
+
+    @MockComponent
+    private Execution execution;
+
+    @MockComponent
+    private ExecutionContextManager executionContextManager;
+
+    @MockComponent
+    private Provider<XWikiContext> wikiContextProvider;
+
+    @MockComponent
+    private PDFViewerConfiguration configuration;
+
+    @Mock
+    private XWikiContext wikiContext;
+
+    @Mock
+    private XWikiContext clonedWikiContext;
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.configuration.getResolutionThreads()).thenReturn(FILES.size());
+    }
+
+    @BeforeEach
+    void setup() throws Exception
+    {
+        when(this.execution.getContext()).thenReturn(new ExecutionContext());
+        when(this.executionContextManager.clone(any())).then(invocation -> new ExecutionContext());
+        when(this.wikiContextProvider.get()).thenReturn(this.wikiContext);
+        when(this.wikiContext.clone()).thenReturn(this.clonedWikiContext);
+    }
+
+    @AfterEach
+    void tearDown()
+    {
+        this.resolutionExecutor.dispose();
+    }
+
+    @Test
+    void resolveConcurrentlyInOrder() throws Exception
+    {
+        // Each file waits for the others, so they can only be resolved concurrently.
+        CountDownLatch resolving = new CountDownLatch(FILES.size());
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        List<PDFFile> pdfFiles = this.resolutionExecutor.resolve(FILES, file -> {
+            threads.add(Thread.currentThread());
+            awaitOthers(resolving);
+            PDFFile pdfFile = new PDFFile();
+            pdfFile.setUrl(file);
+            return pdfFile;
+        });
+
+        assertEquals(FILES, pdfFiles.stream().map(PDFFile::getURL).collect(Collectors.toList()));
+        // The rendering thread resolves a file too, so only the helpers get a copy of the contexts.
+        assertTrue(threads.contains(Thread.currentThread()));
+        assertEquals(FILES.size(), threads.size());
+        verify(this.clonedWikiContext, times(FILES.size() - 1)).declareInExecutionContext(any());
+        verify(this.execution, times(FILES.size() - 1)).setContext(any());
+        verify(this.execution, times(FILES.size() - 1)).removeContext();
+    }
+
+    @Test
+    void resolveOnCallerThreadWhenThreadsAreBusy() throws Exception
+    {
+        // Another request keeps all the threads of the pool busy.
+        CountDownLatch resolving = new CountDownLatch(FILES.size());
+        // Released once the files of the other request and this test are all done.
+        CountDownLatch release = new CountDownLatch(FILES.size() + 1);
+        CompletableFuture<List<PDFFile>> otherRequest = CompletableFuture.supplyAsync(() -> {
+            try {
+                return this.resolutionExecutor.resolve(FILES, file -> {
+                    resolving.countDown();
+                    awaitOthers(release);
+                    return new PDFFile();
+                });
+            } catch (XWikiException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        try {
+            assertTrue(resolving.await(10, TimeUnit.SECONDS));
+
+            // The files are resolved on the rendering thread instead of waiting for the busy threads.
+            Thread caller = Thread.currentThread();
+            List<PDFFile> pdfFiles = this.resolutionExecutor.resolve(FILES, file -> {
+                assertSame(caller, Thread.currentThread());
+                return new PDFFile();
+            });
+            assertEquals(FILES.size(), pdfFiles.size());
+            assertFalse(otherRequest.isDone());
+        } finally {
+            release.countDown();
+        }
+        assertEquals(FILES.size(), otherRequest.get(10, TimeUnit.SECONDS).size());
+    }
+
+    @Test
+    void resolveOnCallerThreadWithoutExecutionContext() throws Exception
+    {
+        when(this.execution.getContext()).thenReturn(null);
+        Thread caller = Thread.currentThread();
+
+        List<PDFFile> pdfFiles = this.resolutionExecutor.resolve(FILES, file -> {
+            assertSame(caller, Thread.currentThread());
+            return new PDFFile();
+        });
+        assertEquals(FILES.size(), pdfFiles.size());
+    }
+
+    @Test
+    void propagateResolutionErrors()
+    {
+        XWikiException exception = new XWikiException("test exception", new RuntimeException());
+
+        assertSame(exception, assertThrows(XWikiException.class, () -> this.resolutionExecutor.resolve(FILES, file -> {
+            if (file.equals("second.pdf")) {
+                throw exception;
+            }
+            return new PDFFile();
+        })));
+    }
+
+    private static void awaitOthers(CountDownLatch resolving) throws XWikiException
+    {
+        resolving.countDown();
+        try {
+            assertTrue(resolving.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XWikiException("Interrupted while waiting for the other files.", e);
+        }
+    }
+}
@@ -19,7 +19,7 @@
  */
 package com.xwiki.pdfviewer.internal.macro;
 
-import java.util.Base64;
+import java.util.List;
 
 import javax.inject.Named;
 import javax.inject.Provider;
@@ -27,6 +27,8 @@ import javax.inject.Provider;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mock;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContextManager;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.document.DocumentAuthors;
 import org.xwiki.model.reference.AttachmentReference;
@@ -34,6 +36,7 @@ import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.EntityReferenceResolver;
 import org.xwiki.security.authorization.AuthorizationManager;
 import org.xwiki.security.authorization.Right;
+import org.xwiki.test.annotation.ComponentList;
 import org.xwiki.test.junit5.mockito.ComponentTest;
 import org.xwiki.test.junit5.mockito.InjectMockComponents;
 import org.xwiki.test.junit5.mockito.MockComponent;
@@ -48,12 +51,18 @@ import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.web.XWikiRequest;
 import com.xwiki.pdfviewer.internal.macro.authorization.PDFFileAuthorization;
 import com.xwiki.pdfviewer.internal.macro.authorization.PDFViewerAuthorizationManager;
+import com.xwiki.pdfviewer.internal.configuration.PDFViewerConfiguration;
+import com.xwiki.pdfviewer.internal.content.AttachmentMetadataCache;
 import com.xwiki.pdfviewer.internal.token.DelegatedTokenManager;
+import com.xwiki.pdfviewer.internal.token.DelegatedTokenReferences;
 import com.xwiki.pdfviewer.macro.PDFFile;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -62,6 +71,7 @@ import static org.mockito.Mockito.when;
  * @version $Id$
  */
 @ComponentTest
+@ComponentList({ ResolutionContext.class, FileResolutionExecutor.class, DelegatedURLBuilder.class })
 class PDFFileBuilderTest
 {
     private static final String PDF_CONTENT_FORMAT = "%s/rest/pdfmacro/contents?access_token=%s";
@@ -78,8 +88,7 @@ class PDFFileBuilderTest
 
     private static final String OWNER_DOC_REF = "owner doc ref";
 
-    private static final String EXPECTED_PATH =
-        String.format(PDF_CONTENT_FORMAT, CONTEXT_PATH, Base64.getUrlEncoder().encodeToString(TOKEN_ID.getBytes()));
+    private static final String EXPECTED_PATH = String.format(PDF_CONTENT_FORMAT, CONTEXT_PATH, TOKEN_ID);
 
     private final DocumentReference docRef = new DocumentReference("wiki", "space", "page");
 
@@ -105,6 +114,21 @@ class PDFFileBuilderTest
     @MockComponent
     private DelegatedTokenManager tokenManager;
 
+    @MockComponent
+    private DelegatedTokenReferences tokenReferences;
+
+    @MockComponent
+    private AttachmentMetadataCache attachmentMetadataCache;
+
+    @MockComponent
+    private Execution execution;
+
+    @MockComponent
+    private ExecutionContextManager executionContextManager;
+
+    @MockComponent
+    private PDFViewerConfiguration configuration;
+
     @MockComponent
     private PDFViewerAuthorizationManager pdfViewerAuthManager;
 
@@ -172,7 +196,8 @@ class PDFFileBuilderTest
         when(entityReferenceResolver.resolve(PDF_INTERNAL, EntityType.ATTACHMENT, docRef)).thenReturn(attachmentRef);
         when(urlEntityReferenceResolver.resolve(PDF_URL_EXTERNAL, EntityType.ATTACHMENT)).thenReturn(attachmentRef);
         when(entityReferenceResolver.resolve(PDF_INTERNAL, EntityType.ATTACHMENT)).thenReturn(attachmentRef);
-        when(tokenManager.getToken(userSdocRef, attachmentRef, docRef)).thenReturn(TOKEN_ID);
+        when(tokenManager.getTokens(userSdocRef, List.of(attachmentRef), docRef)).thenReturn(List.of(TOKEN_ID));
+        when(attachmentMetadataCache.exists(attachmentRef)).thenReturn(true);
     }
 
     @Test
@@ -235,7 +260,7 @@ class PDFFileBuilderTest
         assertFalse(pdfFile.hasViewRights());
         assertEquals(attachmentRef, pdfFile.getAttachmentReference().get());
 
-        when(wikiDocument.getAttachment(PDF_INTERNAL)).thenReturn(null);
+        when(attachmentMetadataCache.exists(attachmentRef)).thenReturn(false);
 
         pdfFile = pdfFileBuilder.handleExternalURL(PDF_URL_EXTERNAL, false);
         assertEquals("", pdfFile.getURL());
@@ -302,8 +327,7 @@ class PDFFileBuilderTest
         when(entityReferenceResolver.resolve(pdfFileReference, EntityType.ATTACHMENT)).thenReturn(attachmentRef2);
         when(wikiDocument.getAttachment(pdfFileReference)).thenReturn(null);
 
-        when(xwiki.getDocument(docRef2, wikiContext)).thenReturn(wikiDocument2);
-        when(wikiDocument2.getAttachment(PDF_INTERNAL)).thenReturn(wikiAttachment);
+        when(attachmentMetadataCache.exists(attachmentRef2)).thenReturn(true);
         PDFFileAuthorization fileAuthorization = new PDFFileAuthorization();
         fileAuthorization.setDelegatedViewRights(true);
         when(pdfViewerAuthManager.hasViewRights(attachmentRef, true)).thenReturn(fileAuthorization);
@@ -313,7 +337,7 @@ class PDFFileBuilderTest
         fileAuthorization2.setDelegatedViewRights(true);
         when(pdfViewerAuthManager.hasViewRights(attachmentRef2, true)).thenReturn(fileAuthorization2);
 
-        when(tokenManager.getToken(userSdocRef, attachmentRef2, docRef)).thenReturn(TOKEN_ID);
+        when(tokenManager.getTokens(userSdocRef, List.of(attachmentRef2), docRef)).thenReturn(List.of(TOKEN_ID));
 
         PDFFile pdfFile = pdfFileBuilder.handleInternalAttachment(pdfFileReference, true, OWNER_DOC_REF);
 
@@ -322,4 +346,39 @@ class PDFFileBuilderTest
         assertTrue(pdfFile.hasViewRights());
         assertEquals(attachmentRef2, pdfFile.getAttachmentReference().get());
     }
+
+    @Test
+    void buildIssuesTokensAtOnce() throws XWikiException
+    {
+        PDFFileAuthorization fileAuthorization = new PDFFileAuthorization();
+        fileAuthorization.setHasViewRights(true);
+        fileAuthorization.setDelegatedViewRights(true);
+        when(pdfViewerAuthManager.hasViewRights(attachmentRef, true)).thenReturn(fileAuthorization);
+        when(tokenManager.getTokens(userSdocRef, List.of(attachmentRef, attachmentRef), docRef))
+            .thenReturn(List.of("grant~0", "grant~1"));
+
+        List<PDFFile> pdfFiles = pdfFileBuilder.build(List.of(PDF_URL_EXTERNAL, PDF_INTERNAL), true, OWNER_DOC_REF);
+
+        assertEquals(2, pdfFiles.size());
+        assertEquals(String.format(PDF_CONTENT_FORMAT, CONTEXT_PATH, "grant~0"), pdfFiles.get(0).getURL());
+        assertEquals(String.format(PDF_CONTENT_FORMAT, CONTEXT_PATH, "grant~1"), pdfFiles.get(1).getURL());
+        verify(tokenManager).getTokens(any(), any(), any());
+        verify(tokenManager, never()).getToken(any(), any(), any());
+    }
+
+    @Test
+    void buildReferencesTokensWhenLazy() throws XWikiException
+    {
+        PDFFileAuthorization fileAuthorization = new PDFFileAuthorization();
+        fileAuthorization.setHasViewRights(true);
+        fileAuthorization.setDelegatedViewRights(true);
+        when(pdfViewerAuthManager.hasViewRights(attachmentRef, true)).thenReturn(fileAuthorization);
+        when(configuration.isLazyTokenIssuance()).thenReturn(true);
+        when(tokenReferences.create(userSdocRef, attachmentRef, docRef)).thenReturn("reference");
+
+        List<PDFFile> pdfFiles = pdfFileBuilder.build(List.of(PDF_URL_EXTERNAL), true, OWNER_DOC_REF);
+
+        assertEquals(CONTEXT_PATH + "/rest/pdfmacro/token?reference=reference", pdfFiles.get(0).getURL());
+        verify(tokenManager, never()).getTokens(any(), any(), any());
+    }
 }
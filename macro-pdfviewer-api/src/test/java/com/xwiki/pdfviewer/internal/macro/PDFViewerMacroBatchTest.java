@@ -0,0 +1,132 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.macro;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.properties.BeanManager;
+import org.xwiki.rendering.block.MacroBlock;
+import org.xwiki.rendering.block.MetaDataBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.listener.MetaData;
+import org.xwiki.rendering.transformation.MacroTransformationContext;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xwiki.pdfviewer.macro.PDFFile;
+import com.xwiki.pdfviewer.macro.PDFViewerMacroParameters;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link PDFViewerMacroBatch}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class PDFViewerMacroBatchTest
+{
+    private static final String MACRO_ID = "pdfviewer";
+
+    private static final String FILE = "file";
+
+    @InjectMockComponents
+    private PDFViewerMacroBatch macroBatch;
+
+    @MockComponent
+    private Execution execution;
+
+    @MockComponent
+    private BeanManager beanManager;
+
+    @MockComponent
+    private PDFFileBuilder fileBuilder;
+
+    private final PDFFile firstFile = new PDFFile();
+
+    private final PDFFile secondFile = new PDFFile();
+
+    private final MacroBlock firstMacro = new MacroBlock(MACRO_ID, Map.of(FILE, "first.pdf"), false);
+
+    private final MacroBlock secondMacro = new MacroBlock(MACRO_ID, Map.of(FILE, "second.pdf"), false);
+
+    private final MacroBlock includedMacro = new MacroBlock(MACRO_ID, Map.of(FILE, "included.pdf"), false);
+
+    private final XDOM xdom = new XDOM(List.of(this.firstMacro, this.secondMacro,
+        new MetaDataBlock(List.of(this.includedMacro), MetaData.SOURCE, "wiki:Space.Included")));
+
+    @BeforeEach
+    void setup() throws Exception
+    {
+        when(this.execution.getContext()).thenReturn(new ExecutionContext());
+        doAnswer(invocation -> {
+            invocation.<PDFViewerMacroParameters>getArgument(0)
+                .setFile(invocation.<Map<String, String>>getArgument(1).get(FILE));
+            return null;
+        }).when(this.beanManager).populate(any(), any());
+        when(this.fileBuilder.resolve(List.of("first.pdf"), false, null)).thenReturn(List.of(this.firstFile));
+        when(this.fileBuilder.resolve(List.of("second.pdf"), false, null)).thenReturn(List.of(this.secondFile));
+    }
+
+    @Test
+    void resolveMacrosOfTheSameSourceTogether()
+    {
+        assertSame(this.firstFile, this.macroBatch.getFiles(getContext(this.firstMacro)).get(0));
+        verify(this.fileBuilder).setTokenURLs(List.of(this.firstFile, this.secondFile));
+
+        assertSame(this.secondFile, this.macroBatch.getFiles(getContext(this.secondMacro)).get(0));
+        verify(this.fileBuilder, times(2)).resolve(any(), anyBoolean(), any());
+
+        // The macros of the included document are resolved separately.
+        assertNull(this.macroBatch.getFiles(getContext(this.includedMacro)));
+        verify(this.fileBuilder, never()).resolve(List.of("included.pdf"), false, null);
+    }
+
+    @Test
+    void resolveMacrosOnTheirOwnWithoutExecutionContext()
+    {
+        when(this.execution.getContext()).thenReturn(null);
+
+        assertNull(this.macroBatch.getFiles(getContext(this.firstMacro)));
+        verify(this.fileBuilder, never()).setTokenURLs(any());
+    }
+
+    private MacroTransformationContext getContext(MacroBlock currentMacro)
+    {
+        MacroTransformationContext context = new MacroTransformationContext();
+        context.setXDOM(this.xdom);
+        context.setCurrentMacroBlock(currentMacro);
+        return context;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.macro;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Provider;
+import javax.script.SimpleScriptContext;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.xwiki.properties.BeanDescriptor;
+import org.xwiki.properties.BeanManager;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.GroupBlock;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.syntax.Syntax;
+import org.xwiki.rendering.transformation.MacroTransformationContext;
+import org.xwiki.script.ScriptContextManager;
+import org.xwiki.template.Template;
+import org.xwiki.template.TemplateManager;
+import org.xwiki.test.junit5.mockito.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.web.XWikiServletRequestStub;
+import com.xwiki.pdfviewer.macro.PDFFile;
+import com.xwiki.pdfviewer.macro.PDFViewerMacroParameters;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link PDFViewerMacro}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class PDFViewerMacroTest
+{
+    @InjectMockComponents
+    private PDFViewerMacro macro;
+
+    @MockComponent
+    private BeanManager beanManager;
+
+    @MockComponent
+    private TemplateManager templateManager;
+
+    @MockComponent
+    private ScriptContextManager scriptContextManager;
+
+    @MockComponent
+    private Provider<XWikiContext> wikiContextProvider;
+
+    @MockComponent
+    private PDFFileBuilder fileBuilder;
+
+    @MockComponent
+    private PDFViewerMacroBatch macroBatch;
+
+    @Mock
+    private XWikiContext wikiContext;
+
+    @Mock
+    private Template template;
+
+    private final XDOM viewer = new XDOM(List.of(new WordBlock("viewer")));
+
+    private final PDFViewerMacroParameters parameters = new PDFViewerMacroParameters();
+
+    private final MacroTransformationContext context = new MacroTransformationContext();
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.beanManager.getBeanDescriptor(any())).thenReturn(mock(BeanDescriptor.class));
+    }
+
+    @BeforeEach
+    void setup() throws Exception
+    {
+        when(this.wikiContextProvider.get()).thenReturn(this.wikiContext);
+        when(this.wikiContext.getWikiId()).thenReturn("wiki");
+        when(this.wikiContext.getAction()).thenReturn("view");
+        when(this.macroBatch.hasLicensure(any())).thenReturn(true);
+        when(this.macroBatch.getTemplate()).thenReturn(this.template);
+        when(this.macroBatch.getFiles(this.context)).thenReturn(List.of(new PDFFile()));
+        when(this.templateManager.execute(this.template)).thenReturn(this.viewer);
+        when(this.scriptContextManager.getScriptContext()).thenReturn(new SimpleScriptContext());
+
+        this.parameters.setFile("first.pdf,second.pdf");
+        this.context.getTransformationContext().setTargetSyntax(Syntax.XHTML_1_0);
+    }
+
+    @Test
+    void renderViewerForAsynchronousRendering() throws Exception
+    {
+        // The asynchronous rendering restores a stub request.
+        when(this.wikiContext.getRequest()).thenReturn(new XWikiServletRequestStub());
+
+        assertEquals(this.viewer.getChildren(), this.macro.execute(this.parameters, null, this.context));
+    }
+
+    @Test
+    void renderPlaceholderForOtherSyntaxes() throws Exception
+    {
+        when(this.wikiContext.getRequest()).thenReturn(new XWikiServletRequestStub());
+        this.context.getTransformationContext().setTargetSyntax(Syntax.PLAIN_1_0);
+
+        assertPlaceholder(this.macro.execute(this.parameters, null, this.context));
+    }
+
+    @Test
+    void renderPlaceholderForExport() throws Exception
+    {
+        when(this.wikiContext.getRequest()).thenReturn(new XWikiServletRequestStub());
+        when(this.wikiContext.getAction()).thenReturn("export");
+
+        assertPlaceholder(this.macro.execute(this.parameters, null, this.context));
+    }
+
+    @Test
+    void renderPlaceholderWithoutRequest() throws Exception
+    {
+        assertPlaceholder(this.macro.execute(this.parameters, null, this.context));
+    }
+
+    private void assertPlaceholder(List<Block> result) throws Exception
+    {
+        // The viewer is replaced by the names of its files.
+        List<Block> paragraphs = List.of(new ParagraphBlock(List.of(new WordBlock("first.pdf"))),
+            new ParagraphBlock(List.of(new WordBlock("second.pdf"))));
+        assertEquals(List.of(new GroupBlock(paragraphs, Map.of("class", "pdfviewer-placeholder"))), result);
+        verify(this.macroBatch, never()).getFiles(any());
+        verify(this.templateManager, never()).execute(any(Template.class));
+    }
+}
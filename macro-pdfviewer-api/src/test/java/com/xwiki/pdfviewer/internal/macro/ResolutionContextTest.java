@@ -0,0 +1,146 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.macro;
+
+import javax.inject.Named;
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.model.document.DocumentAuthors;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.user.UserReference;
+import org.xwiki.user.UserReferenceSerializer;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link ResolutionContext}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class ResolutionContextTest
+{
+    private static final DocumentReference USER = new DocumentReference("wiki", "XWiki", "User");
+
+    private static final DocumentReference AUTHOR = new DocumentReference("wiki", "XWiki", "Author");
+
+    private static final DocumentReference DOCUMENT = new DocumentReference("wiki", "Space", "Page");
+
+    @InjectMockComponents
+    private ResolutionContext resolutionContext;
+
+    @MockComponent
+    private Execution execution;
+
+    @MockComponent
+    private AuthorizationManager authorizationManager;
+
+    @MockComponent
+    private Provider<XWikiContext> wikiContextProvider;
+
+    @MockComponent
+    @Named("document")
+    private UserReferenceSerializer<DocumentReference> documentUserSerializer;
+
+    @Mock
+    private XWikiContext wikiContext;
+
+    @Mock
+    private XWiki wiki;
+
+    @Mock
+    private XWikiDocument document;
+
+    @Mock
+    private XWikiDocument sdoc;
+
+    @Mock
+    private DocumentAuthors authors;
+
+    @Mock
+    private UserReference authorReference;
+
+    @BeforeEach
+    void setup() throws Exception
+    {
+        when(this.execution.getContext()).thenReturn(new ExecutionContext());
+        when(this.wikiContextProvider.get()).thenReturn(this.wikiContext);
+        when(this.wikiContext.getWiki()).thenReturn(this.wiki);
+        when(this.wiki.getDocument(DOCUMENT, this.wikiContext)).thenReturn(this.document);
+        when(this.sdoc.getAuthors()).thenReturn(this.authors);
+        when(this.authors.getContentAuthor()).thenReturn(this.authorReference);
+        when(this.documentUserSerializer.serialize(this.authorReference)).thenReturn(AUTHOR);
+        when(this.authorizationManager.hasAccess(Right.VIEW, AUTHOR, DOCUMENT)).thenReturn(true);
+    }
+
+    @Test
+    void memoizeDuringExecution() throws Exception
+    {
+        for (int i = 0; i < 3; i++) {
+            assertSame(this.document, this.resolutionContext.getDocument(DOCUMENT));
+            assertEquals(AUTHOR, this.resolutionContext.getContentAuthor(this.sdoc));
+            assertTrue(this.resolutionContext.hasViewAccess(AUTHOR, DOCUMENT));
+            assertFalse(this.resolutionContext.hasViewAccess(USER, DOCUMENT));
+            assertFalse(this.resolutionContext.hasViewAccess(null, DOCUMENT));
+        }
+
+        verify(this.wiki, times(1)).getDocument(DOCUMENT, this.wikiContext);
+        verify(this.documentUserSerializer, times(1)).serialize(this.authorReference);
+        verify(this.authorizationManager, times(1)).hasAccess(Right.VIEW, AUTHOR, DOCUMENT);
+        verify(this.authorizationManager, times(1)).hasAccess(Right.VIEW, USER, DOCUMENT);
+        verify(this.authorizationManager, times(1)).hasAccess(Right.VIEW, null, DOCUMENT);
+    }
+
+    @Test
+    void memoizePerExecution()
+    {
+        assertTrue(this.resolutionContext.hasViewAccess(AUTHOR, DOCUMENT));
+
+        // A new request.
+        when(this.execution.getContext()).thenReturn(new ExecutionContext());
+        when(this.authorizationManager.hasAccess(Right.VIEW, AUTHOR, DOCUMENT)).thenReturn(false);
+        assertFalse(this.resolutionContext.hasViewAccess(AUTHOR, DOCUMENT));
+
+        // No execution context.
+        when(this.execution.getContext()).thenReturn(null);
+        assertFalse(this.resolutionContext.hasViewAccess(AUTHOR, DOCUMENT));
+        verify(this.authorizationManager, times(3)).hasAccess(Right.VIEW, AUTHOR, DOCUMENT);
+    }
+}
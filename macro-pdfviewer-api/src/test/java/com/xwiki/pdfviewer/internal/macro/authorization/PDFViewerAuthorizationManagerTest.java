@@ -25,21 +25,24 @@ import javax.inject.Provider;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mock;
+import org.xwiki.context.Execution;
 import org.xwiki.model.document.DocumentAuthors;
 import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.security.authorization.AuthorizationManager;
 import org.xwiki.security.authorization.Right;
+import org.xwiki.test.annotation.ComponentList;
 import org.xwiki.test.junit5.mockito.ComponentTest;
 import org.xwiki.test.junit5.mockito.InjectMockComponents;
 import org.xwiki.test.junit5.mockito.MockComponent;
 import org.xwiki.user.UserReference;
 import org.xwiki.user.UserReferenceSerializer;
 
-import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.pdfviewer.internal.content.AttachmentMetadataCache;
+import com.xwiki.pdfviewer.internal.macro.ResolutionContext;
 
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -51,6 +54,7 @@ import static org.mockito.Mockito.when;
  * @version $Id$
  */
 @ComponentTest
+@ComponentList(ResolutionContext.class)
 class PDFViewerAuthorizationManagerTest
 {
     @InjectMockComponents
@@ -66,11 +70,14 @@ class PDFViewerAuthorizationManagerTest
     @Named("document")
     private UserReferenceSerializer<DocumentReference> documentUserSerializer;
 
-    @Mock
-    private XWikiContext wikiContext;
+    @MockComponent
+    private AttachmentMetadataCache attachmentMetadataCache;
+
+    @MockComponent
+    private Execution execution;
 
     @Mock
-    private XWiki wiki;
+    private XWikiContext wikiContext;
 
     @Mock
     private AttachmentReference attachmentReference;
@@ -97,9 +104,8 @@ class PDFViewerAuthorizationManagerTest
     void setup() throws XWikiException
     {
         when(contextProvider.get()).thenReturn(wikiContext);
-        when(wikiContext.getWiki()).thenReturn(wiki);
         when(wikiContext.getUserReference()).thenReturn(userRef);
-        when(wiki.exists(documentReference, wikiContext)).thenReturn(true);
+        when(attachmentMetadataCache.exists(documentReference)).thenReturn(true);
         when(wikiContext.get(XWikiDocument.CKEY_SDOC)).thenReturn(sdoc);
         when(sdoc.getAuthors()).thenReturn(documentAuthors);
         when(documentAuthors.getContentAuthor()).thenReturn(sdocUserRef);
@@ -0,0 +1,109 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.rest;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit test for {@link ByteRange}.
+ *
+ * @version $Id$
+ */
+class ByteRangeTest
+{
+    private static final long LENGTH = 1000;
+
+    @Test
+    void parseSingleRanges()
+    {
+        assertEquals(List.of("bytes 0-99/1000"), parse("bytes=0-99"));
+        // The end is limited to the content end.
+        assertEquals(List.of("bytes 900-999/1000"), parse("bytes=900-5000"));
+        assertEquals(List.of("bytes 500-999/1000"), parse("bytes=500-"));
+        assertEquals(List.of("bytes 999-999/1000"), parse("bytes= 999-999 "));
+    }
+
+    @Test
+    void parseSuffixRanges()
+    {
+        assertEquals(List.of("bytes 900-999/1000"), parse("bytes=-100"));
+        // The suffix is limited to the content length.
+        assertEquals(List.of("bytes 0-999/1000"), parse("bytes=-5000"));
+        assertTrue(ByteRange.parse("bytes=-0", LENGTH).isEmpty());
+    }
+
+    @Test
+    void mergeRanges()
+    {
+        // The ranges are sorted and the overlapping or adjacent ones are merged.
+        assertEquals(List.of("bytes 0-199/1000", "bytes 500-599/1000"),
+            parse("bytes=500-599,100-199,0-99"));
+        assertEquals(List.of("bytes 0-149/1000"), parse("bytes=0-99,50-149"));
+        assertEquals(List.of("bytes 0-999/1000"), parse("bytes=0-,-10"));
+    }
+
+    @Test
+    void ignoreInvalidHeaders()
+    {
+        assertNull(ByteRange.parse(null, LENGTH));
+        assertNull(ByteRange.parse("items=0-99", LENGTH));
+        assertNull(ByteRange.parse("bytes=", LENGTH));
+        assertNull(ByteRange.parse("bytes=-", LENGTH));
+        assertNull(ByteRange.parse("bytes=99-0", LENGTH));
+        assertNull(ByteRange.parse("bytes=a-b", LENGTH));
+        assertNull(ByteRange.parse("bytes=0-99-199", LENGTH));
+        assertNull(ByteRange.parse("bytes=-1-2", LENGTH));
+        // The bounds don't fit a long.
+        assertNull(ByteRange.parse("bytes=0-99999999999999999999", LENGTH));
+        assertNull(ByteRange.parse("bytes=-99999999999999999999", LENGTH));
+    }
+
+    @Test
+    void ignoreTooManyRanges()
+    {
+        String twentyRanges = "bytes=" + String.join(",", Collections.nCopies(20, "0-9"));
+        assertEquals(List.of("bytes 0-9/1000"), parse(twentyRanges));
+        assertNull(ByteRange.parse(twentyRanges + ",20-29", LENGTH));
+    }
+
+    @Test
+    void unsatisfiableRanges()
+    {
+        assertTrue(ByteRange.parse("bytes=1000-", LENGTH).isEmpty());
+        assertTrue(ByteRange.parse("bytes=1000-1999,5000-", LENGTH).isEmpty());
+        assertTrue(ByteRange.parse("bytes=0-", 0).isEmpty());
+        // A satisfiable range is enough.
+        assertEquals(List.of("bytes 0-9/1000"), parse("bytes=2000-,0-9"));
+    }
+
+    private static List<String> parse(String header)
+    {
+        return ByteRange.parse(header, LENGTH).stream().map(range -> range.toContentRange(LENGTH))
+            .collect(Collectors.toList());
+    }
+}
@@ -20,24 +20,29 @@
 package com.xwiki.pdfviewer.internal.rest;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.Base64;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
 
 import javax.inject.Provider;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
 import org.xwiki.csrf.CSRFToken;
 import org.xwiki.model.reference.AttachmentReference;
-import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.rest.XWikiRestException;
 import org.xwiki.test.LogLevel;
+import org.xwiki.test.annotation.ComponentList;
 import org.xwiki.test.junit5.LogCaptureExtension;
 import org.xwiki.test.junit5.mockito.ComponentTest;
 import org.xwiki.test.junit5.mockito.InjectMockComponents;
@@ -47,11 +52,22 @@ import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiAttachment;
-import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.web.XWikiRequest;
+import com.xwiki.pdfviewer.internal.content.AttachmentContentFiles;
+import com.xwiki.pdfviewer.internal.content.AttachmentMetadataCache;
+import com.xwiki.pdfviewer.internal.content.ContentBlockCache;
+import com.xwiki.pdfviewer.internal.content.ContentWriter;
 import com.xwiki.pdfviewer.internal.token.DelegatedTokenManager;
+import com.xwiki.pdfviewer.internal.token.DelegatedTokenReferences;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -60,6 +76,7 @@ import static org.mockito.Mockito.when;
  * @version $Id$
  */
 @ComponentTest
+@ComponentList({ ContentRangeWriter.class, ContentWriter.class })
 class DefaultPDFMacroResourceTest
 {
     private static final String TOKEN = "this_is_a_test_token";
@@ -77,6 +94,21 @@ class DefaultPDFMacroResourceTest
     @MockComponent
     private DelegatedTokenManager tokenManager;
 
+    @MockComponent
+    private DelegatedTokenReferences tokenReferences;
+
+    @MockComponent
+    private AttachmentMetadataCache metadataCache;
+
+    @MockComponent
+    private ContentBlockCache contentCache;
+
+    @MockComponent
+    private AttachmentContentFiles contentFiles;
+
+    @TempDir
+    private Path tmpDir;
+
     @MockComponent
     private Provider<XWikiContext> contextProvider;
 
@@ -95,12 +127,6 @@ class DefaultPDFMacroResourceTest
     @Mock
     private AttachmentReference attachmentReference;
 
-    @Mock
-    private DocumentReference docRef;
-
-    @Mock
-    private XWikiDocument document;
-
     @Mock
     private XWikiAttachment attachment;
 
@@ -109,47 +135,165 @@ class DefaultPDFMacroResourceTest
     {
         when(contextProvider.get()).thenReturn(wikiContext);
         when(wikiContext.getWiki()).thenReturn(wiki);
-        when(tokenManager.isInvalid(TOKEN)).thenReturn(false);
-        when(tokenManager.hasAccess(TOKEN)).thenReturn(true);
+        when(tokenManager.getTokenAttachmentReference(TOKEN)).thenReturn(attachmentReference);
         when(csrf.isTokenValid(FORM_TOKEN)).thenReturn(true);
     }
 
     @Test
     void getContents() throws XWikiException, XWikiRestException, IOException
     {
-
-        when(tokenManager.getTokenAttachmentReference(TOKEN)).thenReturn(attachmentReference);
-        when(attachmentReference.getDocumentReference()).thenReturn(docRef);
-        when(wiki.getDocument(docRef, wikiContext)).thenReturn(document);
-        when(document.getAttachment(null)).thenReturn(attachment);
+        when(metadataCache.getAttachment(attachmentReference)).thenReturn(attachment);
+        when(attachment.getLongSize()).thenReturn((long) ATTACHMENT_CONTENT.length());
         when(attachment.getContentInputStream(wikiContext)).thenReturn(
             new ByteArrayInputStream(ATTACHMENT_CONTENT.getBytes()));
 
+        Response response = defaultPDFMacroResource.getContents(TOKEN, FORM_TOKEN, null, null, null, null);
+        assertEquals(200, response.getStatus());
+        assertEquals(ATTACHMENT_CONTENT, write(response));
+    }
+
+    @Test
+    void getFileStoreContents() throws XWikiException, XWikiRestException, IOException
+    {
+        Path file = this.tmpDir.resolve("file.pdf");
+        Files.write(file, ATTACHMENT_CONTENT.getBytes(StandardCharsets.UTF_8));
+        when(metadataCache.getAttachment(attachmentReference)).thenReturn(attachment);
+        when(attachment.getLongSize()).thenReturn((long) ATTACHMENT_CONTENT.length());
+        when(contentFiles.getContentFile(attachment, wikiContext)).thenReturn(file.toFile());
+        when(contentCache.isEnabled()).thenReturn(true);
+
+        // The file is transferred directly, without going through the store or the cache.
         Response response =
-            defaultPDFMacroResource.getContents(new String(Base64.getEncoder().encode(TOKEN.getBytes())), FORM_TOKEN);
+            defaultPDFMacroResource.getContents(TOKEN, FORM_TOKEN, "bytes=-7,8-10", null, null, null);
+        assertEquals(206, response.getStatus());
+        String boundary = StringUtils.substringAfter(response.getHeaderString("Content-Type"), "boundary=");
+        assertEquals(String.format("\r\n--%1$s\r\nContent-Type: application/pdf\r\nContent-Range: bytes 8-10/30\r\n"
+            + "\r\nthe\r\n--%1$s\r\nContent-Type: application/pdf\r\nContent-Range: bytes 23-29/30\r\n\r\ncontent"
+            + "\r\n--%1$s--\r\n", boundary), write(response));
+        verify(attachment, never()).getContentInputStream(wikiContext);
+        verify(contentCache, never()).getContentInputStream(attachment, wikiContext);
+    }
+
+    @Test
+    void getContentsThroughCache() throws XWikiException, XWikiRestException, IOException
+    {
+        when(metadataCache.getAttachment(attachmentReference)).thenReturn(attachment);
+        when(attachment.getLongSize()).thenReturn((long) ATTACHMENT_CONTENT.length());
+        when(contentCache.isEnabled()).thenReturn(true);
+        when(contentCache.getContentInputStream(attachment, wikiContext)).thenReturn(
+            new ByteArrayInputStream(ATTACHMENT_CONTENT.getBytes()));
+
+        Response response = defaultPDFMacroResource.getContents(TOKEN, FORM_TOKEN, "bytes=8-10", null, null, null);
+        assertEquals(206, response.getStatus());
+        assertEquals("the", write(response));
+        verify(attachment, never()).getContentInputStream(wikiContext);
+    }
+
+    @Test
+    void getContentsRange() throws XWikiException, XWikiRestException, IOException
+    {
+        when(metadataCache.getAttachment(attachmentReference)).thenReturn(attachment);
+        when(attachment.getLongSize()).thenReturn((long) ATTACHMENT_CONTENT.length());
+        when(attachment.getContentInputStream(wikiContext)).thenReturn(
+            new ByteArrayInputStream(ATTACHMENT_CONTENT.getBytes()));
+
+        Response response = defaultPDFMacroResource.getContents(TOKEN, FORM_TOKEN, "bytes=8-10", null, null, null);
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 8-10/30", response.getHeaderString("Content-Range"));
+        assertEquals("3", response.getHeaderString("Content-Length"));
+        assertEquals("bytes", response.getHeaderString("Accept-Ranges"));
+        assertEquals("the", write(response));
+
+        response = defaultPDFMacroResource.getContentsHeaders(TOKEN, FORM_TOKEN, "bytes=30-", null, null, null);
+        assertEquals(416, response.getStatus());
+        assertEquals("bytes */30", response.getHeaderString("Content-Range"));
+
+        response = defaultPDFMacroResource.getContentsHeaders(TOKEN, FORM_TOKEN, null, null, null, null);
         assertEquals(200, response.getStatus());
-        assertEquals(ATTACHMENT_CONTENT,
-            IOUtils.toString((ByteArrayInputStream) response.getEntity(), StandardCharsets.UTF_8));
+        assertEquals("30", response.getHeaderString("Content-Length"));
+        assertNull(response.getEntity());
+        verify(attachment).getContentInputStream(wikiContext);
     }
 
     @Test
-    void getContentsInvalidToken() throws XWikiRestException
+    void getContentsMultipleRanges() throws XWikiException, XWikiRestException, IOException
     {
-        when(tokenManager.isInvalid(TOKEN)).thenReturn(true);
+        when(metadataCache.getAttachment(attachmentReference)).thenReturn(attachment);
+        when(attachment.getLongSize()).thenReturn((long) ATTACHMENT_CONTENT.length());
+        when(attachment.getContentInputStream(wikiContext)).thenReturn(
+            new ByteArrayInputStream(ATTACHMENT_CONTENT.getBytes()));
 
         Response response =
-            defaultPDFMacroResource.getContents(new String(Base64.getEncoder().encode(TOKEN.getBytes())), FORM_TOKEN);
-        assertEquals(401, response.getStatus());
-        assertEquals(UNAUTHORIZED_ERROR_MESSAGE, logCapture.getMessage(0));
+            defaultPDFMacroResource.getContents(TOKEN, FORM_TOKEN, "bytes=-7,8-10,0-3", null, null, null);
+        assertEquals(206, response.getStatus());
+        String contentType = response.getHeaderString("Content-Type");
+        assertTrue(contentType.startsWith("multipart/byteranges; boundary="));
+        String boundary = StringUtils.substringAfter(contentType, "boundary=");
+        assertEquals(String.format("\r\n--%1$s\r\nContent-Type: application/pdf\r\nContent-Range: bytes 0-3/30\r\n"
+            + "\r\nThis\r\n--%1$s\r\nContent-Type: application/pdf\r\nContent-Range: bytes 8-10/30\r\n\r\nthe"
+            + "\r\n--%1$s\r\nContent-Type: application/pdf\r\nContent-Range: bytes 23-29/30\r\n\r\ncontent"
+            + "\r\n--%1$s--\r\n", boundary), write(response));
     }
 
     @Test
-    void getContentsNoAccess() throws XWikiRestException
+    void getContentsHeaders() throws XWikiException, XWikiRestException
     {
-        when(tokenManager.hasAccess(TOKEN)).thenReturn(false);
+        when(metadataCache.getAttachment(attachmentReference)).thenReturn(attachment);
+        when(attachment.getLongSize()).thenReturn((long) ATTACHMENT_CONTENT.length());
 
-        Response response =
-            defaultPDFMacroResource.getContents(new String(Base64.getEncoder().encode(TOKEN.getBytes())), FORM_TOKEN);
+        Response response = defaultPDFMacroResource.getContentsHeaders(TOKEN, FORM_TOKEN, "bytes=8-10", null, null,
+            null);
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 8-10/30", response.getHeaderString("Content-Range"));
+        assertEquals("3", response.getHeaderString("Content-Length"));
+        assertNull(response.getEntity());
+
+        response = defaultPDFMacroResource.getContentsHeaders(TOKEN, FORM_TOKEN, "bytes=0-3,8-10", null, null, null);
+        assertEquals(206, response.getStatus());
+        assertNull(response.getEntity());
+
+        response = defaultPDFMacroResource.getContentsHeaders(TOKEN, FORM_TOKEN, null, null, null, null);
+        assertEquals(200, response.getStatus());
+        assertEquals("bytes", response.getHeaderString("Accept-Ranges"));
+        assertNull(response.getEntity());
+
+        // The content is never opened.
+        verify(attachment, never()).getContentInputStream(wikiContext);
+    }
+
+    @Test
+    void getContentsNotModified() throws XWikiException, XWikiRestException
+    {
+        when(metadataCache.getAttachment(attachmentReference)).thenReturn(attachment);
+        when(attachment.getVersion()).thenReturn("1.2");
+        when(attachment.getDate()).thenReturn(new Date(1700000000000L));
+
+        Response response = defaultPDFMacroResource.getContents(TOKEN, FORM_TOKEN, null, null, null, null);
+        assertEquals(200, response.getStatus());
+        String eTag = response.getHeaderString("ETag");
+        String lastModified = response.getHeaderString("Last-Modified");
+        assertEquals("Tue, 14 Nov 2023 22:13:20 GMT", lastModified);
+        assertEquals("private, no-cache", response.getHeaderString("Cache-Control"));
+
+        response = defaultPDFMacroResource.getContents(TOKEN, FORM_TOKEN, null, eTag, null, null);
+        assertEquals(304, response.getStatus());
+        assertNull(response.getEntity());
+
+        response = defaultPDFMacroResource.getContents(TOKEN, FORM_TOKEN, null, null, lastModified, null);
+        assertEquals(304, response.getStatus());
+
+        when(attachment.getVersion()).thenReturn("1.3");
+        response = defaultPDFMacroResource.getContents(TOKEN, FORM_TOKEN, null, eTag, lastModified, null);
+        assertEquals(200, response.getStatus());
+        verify(attachment, times(2)).getContentInputStream(wikiContext);
+    }
+
+    @Test
+    void getContentsInvalidToken() throws XWikiRestException
+    {
+        when(tokenManager.getTokenAttachmentReference(TOKEN)).thenReturn(null);
+
+        Response response = defaultPDFMacroResource.getContents(TOKEN, FORM_TOKEN, null, null, null, null);
         assertEquals(401, response.getStatus());
         assertEquals(UNAUTHORIZED_ERROR_MESSAGE, logCapture.getMessage(0));
     }
@@ -159,24 +303,50 @@ class DefaultPDFMacroResourceTest
     {
         when(csrf.isTokenValid(FORM_TOKEN)).thenReturn(false);
 
-        Response response =
-            defaultPDFMacroResource.getContents(new String(Base64.getEncoder().encode(TOKEN.getBytes())), FORM_TOKEN);
+        Response response = defaultPDFMacroResource.getContents(TOKEN, FORM_TOKEN, null, null, null, null);
         assertEquals(401, response.getStatus());
         assertEquals(UNAUTHORIZED_ERROR_MESSAGE, logCapture.getMessage(0));
+        verify(tokenManager, never()).getTokenAttachmentReference(TOKEN);
     }
 
     @Test
     void getContentsAttachmentError() throws XWikiException
     {
-
-        when(tokenManager.getTokenAttachmentReference(TOKEN)).thenReturn(attachmentReference);
-        when(attachmentReference.getDocumentReference()).thenReturn(docRef);
-        when(wiki.getDocument(docRef, wikiContext)).thenThrow(
+        when(metadataCache.getAttachment(attachmentReference)).thenThrow(
             new XWikiException("test exception", new RuntimeException()));
         WebApplicationException exception = assertThrows(WebApplicationException.class,
-            () -> defaultPDFMacroResource.getContents(new String(Base64.getEncoder().encode(TOKEN.getBytes())),
-                FORM_TOKEN));
+            () -> defaultPDFMacroResource.getContents(TOKEN, FORM_TOKEN, null, null, null, null));
         assertEquals(500, exception.getResponse().getStatus());
         assertEquals("An error occurred while attempting to retrieve file content.", logCapture.getMessage(0));
     }
+
+    @Test
+    void getTokenRedirectsToContents() throws XWikiRestException
+    {
+        XWikiRequest request = mock(XWikiRequest.class);
+        when(wikiContext.getRequest()).thenReturn(request);
+        when(request.getContextPath()).thenReturn("/xwiki");
+        when(tokenReferences.redeem("reference")).thenReturn(TOKEN);
+
+        Response response = defaultPDFMacroResource.getToken("reference", FORM_TOKEN);
+        assertEquals(303, response.getStatus());
+        assertEquals("/xwiki/rest/pdfmacro/contents?access_token=" + TOKEN + "&form_token=" + FORM_TOKEN,
+            response.getLocation().toString());
+    }
+
+    @Test
+    void getTokenInvalidReference() throws XWikiRestException
+    {
+        Response response = defaultPDFMacroResource.getToken("reference", FORM_TOKEN);
+        assertEquals(401, response.getStatus());
+        assertEquals("Failed to issue the requested file token due to invalid reference or restricted rights.",
+            logCapture.getMessage(0));
+    }
+
+    private static String write(Response response) throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(output);
+        return output.toString(StandardCharsets.UTF_8);
+    }
 }
@@ -0,0 +1,154 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.util.List;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Unit test for {@link ClusterDelegatedTokenStore}. The cluster channel is replaced by a direct delivery of the
+ * serialized events to another store.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class ClusterDelegatedTokenStoreTest
+{
+    private static final DocumentReference USER = new DocumentReference("wiki", "XWiki", "User");
+
+    private static final DocumentReference MACRO_ORIGIN = new DocumentReference("wiki", "Space", "Origin");
+
+    private static final AttachmentReference FILE =
+        new AttachmentReference("file.pdf", new DocumentReference("wiki", "Space", "Page"));
+
+    @InjectMockComponents
+    private ClusterDelegatedTokenStore store;
+
+    @MockComponent
+    private ObservationManager observationManager;
+
+    private ClusterDelegatedTokenStore otherStore;
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        // Send the changes only when the tests flush them.
+        this.store.dispose();
+
+        this.otherStore = new ClusterDelegatedTokenStore();
+        ReflectionUtils.setFieldValue(this.otherStore, "logger", ReflectionUtils.getFieldValue(this.store, "logger"));
+        ReflectionUtils.setFieldValue(this.otherStore, "observationManager", mock(ObservationManager.class));
+        this.otherStore.initialize();
+
+        doAnswer(invocation -> {
+            DelegatedTokenChangeEvent event = invocation.getArgument(0);
+            this.otherStore.apply(SerializationUtils.roundtrip(event));
+            return null;
+        }).when(this.observationManager).notify(any(DelegatedTokenChangeEvent.class), any(), any());
+    }
+
+    @AfterEach
+    void tearDown()
+    {
+        this.otherStore.dispose();
+    }
+
+    @Test
+    void shareTokenChanges()
+    {
+        DelegatedToken token = this.store.compute(FILE, MACRO_ORIGIN,
+            existingToken -> new DelegatedToken(USER, FILE, MACRO_ORIGIN, 3600000, 60000));
+        DelegatedToken otherToken = this.store.compute(FILE, USER,
+            existingToken -> new DelegatedToken(USER, FILE, USER));
+        this.store.flush();
+
+        DelegatedToken sharedToken = this.otherStore.get(token.toString());
+        assertEquals(token, sharedToken);
+        assertEquals(FILE, sharedToken.getFileReference());
+        assertEquals(token.getExpirationTime(), sharedToken.getExpirationTime());
+        assertEquals(2, this.otherStore.size());
+
+        this.store.touch(token, token.getLastAccessTime() + 120000);
+        this.store.remove(otherToken);
+        this.store.flush();
+
+        assertEquals(token.getLastAccessTime(), sharedToken.getLastAccessTime());
+        assertNull(this.otherStore.get(otherToken.toString()));
+
+        this.store.removeWikiTokens("wiki");
+        this.store.flush();
+        assertEquals(0, this.otherStore.size());
+
+        // All the changes of a flush are sent at once.
+        verify(this.observationManager, times(3)).notify(any(DelegatedTokenChangeEvent.class), any(), any());
+    }
+
+    @Test
+    void keepBothTokensOnConcurrentIssuance()
+    {
+        DelegatedToken token = this.store.compute(FILE, MACRO_ORIGIN,
+            existingToken -> new DelegatedToken(USER, FILE, MACRO_ORIGIN));
+        DelegatedToken otherToken = this.otherStore.compute(FILE, MACRO_ORIGIN,
+            existingToken -> new DelegatedToken(USER, FILE, MACRO_ORIGIN));
+        DelegatedToken winner = token.toString().compareTo(otherToken.toString()) > 0 ? token : otherToken;
+        DelegatedToken loser = winner == token ? otherToken : token;
+
+        // Exchange the changes in both directions.
+        this.store.apply(new DelegatedTokenChangeEvent(List.of(DelegatedTokenChange.added(otherToken))));
+        this.store.flush();
+
+        // Both tokens might have been handed out already, so both remain valid on both nodes.
+        for (ClusterDelegatedTokenStore nodeStore : List.of(this.store, this.otherStore)) {
+            assertEquals(Set.of(token, otherToken), Set.copyOf(nodeStore.getTokens()));
+            assertEquals(Set.of(token, otherToken), Set.copyOf(nodeStore.getAttachmentTokens(FILE)));
+            assertEquals(winner, nodeStore.compute(FILE, MACRO_ORIGIN, UnaryOperator.identity()));
+        }
+
+        // Removing the token that is not current keeps the current one.
+        this.store.remove(this.store.get(loser.toString()));
+        this.store.flush();
+        for (ClusterDelegatedTokenStore nodeStore : List.of(this.store, this.otherStore)) {
+            assertNull(nodeStore.get(loser.toString()));
+            assertEquals(List.of(winner), List.copyOf(nodeStore.getTokens()));
+            assertEquals(winner, nodeStore.compute(FILE, MACRO_ORIGIN, UnaryOperator.identity()));
+        }
+    }
+}
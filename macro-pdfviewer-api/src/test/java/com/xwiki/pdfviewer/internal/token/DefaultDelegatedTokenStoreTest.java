@@ -0,0 +1,153 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit test for {@link DefaultDelegatedTokenStore}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class DefaultDelegatedTokenStoreTest
+{
+    @InjectMockComponents
+    private DefaultDelegatedTokenStore store;
+
+    @Test
+    void shareEqualReferences()
+    {
+        DelegatedToken token1 = this.store.compute(getFile(), getDocument("Origin1"),
+            existingToken -> new DelegatedToken(getDocument("User"), getFile(), getDocument("Origin1")));
+        DelegatedToken token2 = this.store.compute(getFile(), getDocument("Origin2"),
+            existingToken -> new DelegatedToken(getDocument("User"), getFile(), getDocument("Origin2")));
+
+        assertSame(token1.getUser(), token2.getUser());
+        assertSame(token1.getFileReference(), token2.getFileReference());
+        assertSame(token1, this.store.get(token1.toString()));
+        assertEquals(2, this.store.getAttachmentTokens(getFile()).size());
+    }
+
+    @Test
+    void estimateMemoryFootprint()
+    {
+        DelegatedToken token = this.store.compute(getFile(), getDocument("Origin"),
+            existingToken -> new DelegatedToken(getDocument("User"), getFile(), getDocument("Origin")));
+        long footprint = this.store.getMemoryFootprint();
+        assertTrue(footprint > 0);
+
+        // Tokens sharing their references cost less than the first one.
+        this.store.compute(getFile(), getDocument("User"),
+            existingToken -> new DelegatedToken(getDocument("User"), getFile(), getDocument("User")));
+        assertTrue(this.store.getMemoryFootprint() - footprint < footprint);
+
+        this.store.remove(token);
+        assertEquals(1, this.store.size());
+    }
+
+    @Test
+    void getWithInvalidIdentifier()
+    {
+        DelegatedToken token = this.store.compute(getFile(), getDocument("Origin"),
+            existingToken -> new DelegatedToken(getDocument("User"), getFile(), getDocument("Origin")));
+
+        assertNull(this.store.get(token + "A"));
+        assertNull(this.store.get(token.toString().substring(1)));
+        assertNull(this.store.get("!" + token.toString().substring(1)));
+        assertNull(this.store.get(null));
+    }
+
+    @Test
+    void removeRelatedTokens()
+    {
+        DelegatedToken originToken = this.store.compute(getFile(), getDocument("Origin"),
+            existingToken -> new DelegatedToken(getDocument("User"), getFile(), getDocument("Origin")));
+        DelegatedToken userToken = this.store.compute(getFile(), getDocument("Other"),
+            existingToken -> new DelegatedToken(getDocument("Other"), getFile(), getDocument("Other")));
+
+        assertEquals(List.of(), this.store.removeOriginTokens(getDocument("User")));
+        assertEquals(List.of(originToken), this.store.removeOriginTokens(getDocument("Origin")));
+        assertEquals(List.of(userToken), this.store.removeDocumentTokens(getDocument("Other")));
+        assertEquals(0, this.store.size());
+
+        DelegatedToken pageToken = this.store.compute(getFile(), getDocument("Origin"),
+            existingToken -> new DelegatedToken(getDocument("User"), getFile(), getDocument("Origin")));
+        assertEquals(List.of(), this.store.removeWikiTokens("otherwiki"));
+        assertEquals(List.of(pageToken), this.store.removeDocumentTokens(getDocument("Page")));
+
+        this.store.compute(getFile(), getDocument("Origin"),
+            existingToken -> new DelegatedToken(getDocument("User"), getFile(), getDocument("Origin")));
+        assertEquals(1, this.store.removeWikiTokens("wiki").size());
+        assertEquals(0, this.store.size());
+        assertTrue(this.store.getAttachmentTokens(getFile()).isEmpty());
+    }
+
+    @Test
+    void partitionTokensByWiki()
+    {
+        AttachmentReference otherFile =
+            new AttachmentReference("file.pdf", new DocumentReference("otherwiki", "Space", "Page"));
+        DelegatedToken token = this.store.compute(getFile(), getDocument("Origin"),
+            existingToken -> new DelegatedToken(getDocument("User"), getFile(), getDocument("Origin")));
+        DelegatedToken otherToken = this.store.compute(otherFile, getDocument("Origin"),
+            existingToken -> new DelegatedToken(getDocument("User"), otherFile, getDocument("Origin")));
+        DelegatedToken unrelatedToken = this.store.compute(otherFile, otherFile.getDocumentReference(),
+            existingToken -> new DelegatedToken(otherFile.getDocumentReference(), otherFile,
+                otherFile.getDocumentReference()));
+
+        assertEquals(Set.of("wiki", "otherwiki"), Set.copyOf(this.store.getWikis()));
+        assertEquals(List.of(token), List.copyOf(this.store.getWikiTokens("wiki")));
+        assertEquals(Set.of(otherToken, unrelatedToken), Set.copyOf(this.store.getWikiTokens("otherwiki")));
+        assertSame(otherToken, this.store.get(otherToken.toString()));
+        assertTrue(this.store.getMemoryFootprint("otherwiki") > 0);
+
+        // The tokens of the other wiki whose author or macro origin belong to the deleted wiki are removed as well.
+        assertEquals(Set.of(token, otherToken), Set.copyOf(this.store.removeWikiTokens("wiki")));
+        assertEquals(List.of("otherwiki"), List.copyOf(this.store.getWikis()));
+        assertNull(this.store.get(token.toString()));
+        assertNull(this.store.get(otherToken.toString()));
+        assertSame(unrelatedToken, this.store.get(unrelatedToken.toString()));
+        assertEquals(1, this.store.size());
+    }
+
+    private DocumentReference getDocument(String name)
+    {
+        // Create new instances each time, like the callers do.
+        return new DocumentReference("wiki", "Space", name);
+    }
+
+    private AttachmentReference getFile()
+    {
+        return new AttachmentReference("file.pdf", getDocument("Page"));
+    }
+}
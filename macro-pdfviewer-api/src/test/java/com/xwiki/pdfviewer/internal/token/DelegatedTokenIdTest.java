@@ -0,0 +1,79 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.util.Base64;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Unit test for {@link DelegatedTokenId}.
+ *
+ * @version $Id$
+ */
+class DelegatedTokenIdTest
+{
+    @Test
+    void parseGeneratedIdentifier()
+    {
+        DelegatedTokenId id = DelegatedTokenId.generate("wiki");
+        String value = id.toString();
+        assertEquals(22, value.length());
+        assertEquals(id, DelegatedTokenId.parse(value));
+        assertEquals(DelegatedTokenId.getSlot("wiki"), DelegatedTokenId.parse(value).getSlot());
+        assertNotEquals(id, DelegatedTokenId.generate("wiki"));
+    }
+
+    @Test
+    void rejectInvalidLength()
+    {
+        String value = DelegatedTokenId.generate("wiki").toString();
+        assertNull(DelegatedTokenId.parse(null));
+        assertNull(DelegatedTokenId.parse(""));
+        assertNull(DelegatedTokenId.parse(value.substring(1)));
+        assertNull(DelegatedTokenId.parse(value + "A"));
+        // The padded encoding of the same bits.
+        assertNull(DelegatedTokenId.parse(value + "=="));
+    }
+
+    @Test
+    void rejectInvalidCharacters()
+    {
+        String value = DelegatedTokenId.generate("wiki").toString();
+        assertNull(DelegatedTokenId.parse("+" + value.substring(1)));
+        assertNull(DelegatedTokenId.parse("/" + value.substring(1)));
+        assertNull(DelegatedTokenId.parse("." + value.substring(1)));
+    }
+
+    @Test
+    void rejectNonCanonicalEncoding()
+    {
+        // The last character encodes 2 bits of the identifier and 4 unused bits, which must be zero.
+        String value = Base64.getUrlEncoder().withoutPadding().encodeToString(new byte[16]);
+        String alternativeValue = value.substring(0, 21) + "B";
+        assertEquals(16, Base64.getUrlDecoder().decode(alternativeValue).length);
+        assertEquals(value, DelegatedTokenId.parse(value).toString());
+        assertNull(DelegatedTokenId.parse(alternativeValue));
+    }
+}
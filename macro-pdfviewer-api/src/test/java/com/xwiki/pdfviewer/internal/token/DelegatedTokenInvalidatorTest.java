@@ -0,0 +1,171 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.LogLevel;
+import org.xwiki.test.junit5.LogCaptureExtension;
+import org.xwiki.test.junit5.mockito.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xwiki.pdfviewer.internal.configuration.PDFViewerConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link DelegatedTokenInvalidator}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class DelegatedTokenInvalidatorTest
+{
+    private static final DocumentReference USER = new DocumentReference("wiki", "XWiki", "User");
+
+    private static final DocumentReference MACRO_ORIGIN = new DocumentReference("wiki", "Space", "Origin");
+
+    private static final DocumentReference PAGE = new DocumentReference("wiki", "Space", "Page");
+
+    private static final AttachmentReference FILE = new AttachmentReference("file.pdf", PAGE);
+
+    @InjectMockComponents
+    private DelegatedTokenInvalidator invalidator;
+
+    @MockComponent
+    private Provider<DelegatedTokenManager> tokenManagerProvider;
+
+    @MockComponent
+    private DelegatedTokenManager tokenManager;
+
+    @MockComponent
+    private PDFViewerConfiguration configuration;
+
+    @RegisterExtension
+    private LogCaptureExtension logCapture = new LogCaptureExtension(LogLevel.WARN);
+
+    private final CountDownLatch workerBlocked = new CountDownLatch(1);
+
+    private final CountDownLatch workerReleased = new CountDownLatch(1);
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.configuration.getInvalidationQueueSize()).thenReturn(2);
+    }
+
+    @BeforeEach
+    void blockWorker() throws Exception
+    {
+        when(this.tokenManagerProvider.get()).thenReturn(this.tokenManager);
+        doAnswer(invocation -> {
+            this.workerBlocked.countDown();
+            return this.workerReleased.await(10, TimeUnit.SECONDS);
+        }).when(this.tokenManager).clearWikiTokens("blocker");
+
+        this.invalidator.invalidateWiki("blocker");
+        assertTrue(this.workerBlocked.await(10, TimeUnit.SECONDS));
+    }
+
+    @AfterEach
+    void tearDown()
+    {
+        this.workerReleased.countDown();
+        this.invalidator.dispose();
+    }
+
+    @Test
+    void coalesceInvalidations()
+    {
+        DelegatedToken token = new DelegatedToken(USER, FILE, MACRO_ORIGIN);
+        assertFalse(this.invalidator.isInvalidated(token));
+
+        this.invalidator.invalidateAttachment(FILE);
+        this.invalidator.invalidateAttachment(FILE);
+        this.invalidator.invalidateDocument(PAGE);
+        assertTrue(this.invalidator.isInvalidated(token));
+
+        this.workerReleased.countDown();
+        verify(this.tokenManager, timeout(10000)).clearDocumentTokens(PAGE);
+        this.invalidator.dispose();
+
+        // The attachment invalidation is covered by the invalidation of its document.
+        verify(this.tokenManager, never()).clearAttachmentTokens(any(), any());
+        assertFalse(this.invalidator.isInvalidated(token));
+        assertEquals(4L, this.invalidator.getStatistics().get("requested"));
+        assertEquals(2L, this.invalidator.getStatistics().get("coalesced"));
+        assertEquals(2L, this.invalidator.getStatistics().get("applied"));
+        assertEquals(0L, this.invalidator.getStatistics().get("queued"));
+    }
+
+    @Test
+    void applyOnCallerThreadWhenQueueIsFull()
+    {
+        this.invalidator.invalidateAttachment(FILE);
+        this.invalidator.invalidateWiki("other");
+        this.invalidator.invalidateOrigin(MACRO_ORIGIN);
+
+        verify(this.tokenManager).clearOriginTokens(MACRO_ORIGIN);
+        assertEquals(1L, this.invalidator.getStatistics().get("overflowed"));
+        assertTrue(this.invalidator.isInvalidated(new DelegatedToken(USER, FILE, USER)));
+
+        this.workerReleased.countDown();
+        verify(this.tokenManager, timeout(10000)).clearWikiTokens("other");
+        verify(this.tokenManager, timeout(10000)).clearAttachmentTokens("file.pdf", PAGE);
+    }
+
+    @Test
+    void keepApplyingAfterFailures()
+    {
+        when(this.tokenManagerProvider.get()).thenThrow(new RuntimeException("lookup failure"))
+            .thenReturn(this.tokenManager);
+        DelegatedToken token = new DelegatedToken(USER, FILE, USER);
+
+        this.invalidator.invalidateAttachment(FILE);
+        this.workerReleased.countDown();
+        this.invalidator.invalidateOrigin(MACRO_ORIGIN);
+
+        verify(this.tokenManager, timeout(10000)).clearOriginTokens(MACRO_ORIGIN);
+        verify(this.tokenManager, never()).clearAttachmentTokens(any(), any());
+        // The failed invalidation doesn't reject the tokens forever.
+        assertFalse(this.invalidator.isInvalidated(token));
+        assertEquals(1L, this.invalidator.getStatistics().get("failed"));
+        assertTrue(this.logCapture.getMessage(0).endsWith("Root cause is: [RuntimeException: lookup failure]"));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link DelegatedTokenLogCodec}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class DelegatedTokenLogCodecTest
+{
+    private static final DocumentReference USER = new DocumentReference("wiki", "XWiki", "User");
+
+    private static final DocumentReference MACRO_ORIGIN = new DocumentReference("wiki", "Space", "Origin");
+
+    private static final AttachmentReference FILE =
+        new AttachmentReference("file name.pdf", new DocumentReference("wiki", "Space", "Page"));
+
+    private static final AttachmentReference OTHER_FILE =
+        new AttachmentReference("other.pdf", new DocumentReference("wiki", "Space", "Other"));
+
+    @InjectMockComponents
+    private DelegatedTokenLogCodec codec;
+
+    @MockComponent
+    private EntityReferenceSerializer<String> serializer;
+
+    @MockComponent
+    private EntityReferenceResolver<String> resolver;
+
+    @BeforeEach
+    void configure()
+    {
+        List<EntityReference> references = List.of(USER, MACRO_ORIGIN, FILE, OTHER_FILE);
+        when(this.serializer.serialize(any())).then(invocation -> invocation.getArgument(0).toString());
+        when(this.resolver.resolve(anyString(), any(EntityType.class))).then(invocation -> references.stream()
+            .filter(reference -> reference.toString().equals(invocation.getArgument(0))).findFirst().orElse(null));
+    }
+
+    @Test
+    void roundtripToken()
+    {
+        DelegatedToken token = new DelegatedToken(USER, FILE, MACRO_ORIGIN, 3600000, 60000);
+
+        String record = this.codec.encode(DelegatedTokenChange.added(token));
+        assertEquals(-1, record.indexOf('\n'));
+        DelegatedTokenChange change = this.codec.decode(record);
+
+        assertEquals(DelegatedTokenChange.Type.ADDED, change.getType());
+        DelegatedToken decodedToken = change.getToken();
+        assertEquals(token, decodedToken);
+        assertEquals(USER, decodedToken.getUser());
+        assertEquals(FILE, decodedToken.getFileReference());
+        assertEquals(MACRO_ORIGIN, decodedToken.getMacroOrigin());
+        assertEquals(token.getExpirationTime(), decodedToken.getExpirationTime());
+        assertEquals(token.getIdleTimeout(), decodedToken.getIdleTimeout());
+        assertEquals(token.getLastAccessTime(), decodedToken.getLastAccessTime());
+    }
+
+    @Test
+    void roundtripGrant()
+    {
+        DelegatedToken grant = new DelegatedToken(USER, List.of(FILE, OTHER_FILE), MACRO_ORIGIN, 0, 0);
+
+        DelegatedToken decodedGrant =
+            this.codec.decode(this.codec.encode(DelegatedTokenChange.added(grant))).getToken();
+
+        assertEquals(grant, decodedGrant);
+        assertEquals(List.of(FILE, OTHER_FILE), decodedGrant.getFileReferences());
+    }
+
+    @Test
+    void roundtripGrantWithRevokedFile()
+    {
+        DelegatedToken grant = new DelegatedToken(USER, List.of(FILE, OTHER_FILE), MACRO_ORIGIN, 0, 0).withoutFile(0);
+
+        DelegatedToken decodedGrant =
+            this.codec.decode(this.codec.encode(DelegatedTokenChange.added(grant))).getToken();
+
+        // The revoked file keeps its index, so that the other one keeps its access token.
+        assertEquals(grant, decodedGrant);
+        assertNull(decodedGrant.getFileReference(0));
+        assertEquals(OTHER_FILE, decodedGrant.getFileReference(1));
+        assertEquals(List.of(OTHER_FILE), decodedGrant.getFileReferences());
+    }
+
+    @Test
+    void roundtripOtherChanges()
+    {
+        DelegatedToken token = new DelegatedToken(USER, FILE, MACRO_ORIGIN);
+
+        DelegatedTokenChange removed = this.codec.decode(this.codec.encode(DelegatedTokenChange.removed(token)));
+        assertEquals(DelegatedTokenChange.Type.REMOVED, removed.getType());
+        assertEquals(token.toString(), removed.getId());
+
+        DelegatedTokenChange touched =
+            this.codec.decode(this.codec.encode(DelegatedTokenChange.touched(token, 42)));
+        assertEquals(DelegatedTokenChange.Type.TOUCHED, touched.getType());
+        assertEquals(token.toString(), touched.getId());
+        assertEquals(42, touched.getLastAccessTime());
+
+        DelegatedTokenChange wikiRemoved = this.codec.decode(this.codec.encode(DelegatedTokenChange.wikiRemoved("w")));
+        assertEquals(DelegatedTokenChange.Type.WIKI_REMOVED, wikiRemoved.getType());
+        assertEquals("w", wikiRemoved.getId());
+    }
+
+    @Test
+    void decodeInvalidRecords()
+    {
+        assertThrows(IllegalArgumentException.class, () -> this.codec.decode(""));
+        assertThrows(IllegalArgumentException.class, () -> this.codec.decode("?\tid"));
+        assertThrows(IllegalArgumentException.class, () -> this.codec.decode("~\tid\tnot-a-number"));
+        String record = this.codec.encode(DelegatedTokenChange.added(new DelegatedToken(USER, FILE, MACRO_ORIGIN)));
+        assertThrows(IllegalArgumentException.class, () -> this.codec.decode(record.replaceFirst("\t[^\t]+", "\tx")));
+    }
+}
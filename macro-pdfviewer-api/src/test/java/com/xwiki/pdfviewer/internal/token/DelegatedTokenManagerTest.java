@@ -19,25 +19,54 @@
  */
 package com.xwiki.pdfviewer.internal.token;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.inject.Provider;
+
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
 import org.mockito.Mock;
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.component.util.ReflectionUtils;
 import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
 import org.xwiki.security.authorization.AuthorizationManager;
 import org.xwiki.security.authorization.ContextualAuthorizationManager;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.test.LogLevel;
+import org.xwiki.test.annotation.ComponentList;
 import org.xwiki.test.junit5.LogCaptureExtension;
+import org.xwiki.test.junit5.mockito.BeforeComponent;
 import org.xwiki.test.junit5.mockito.ComponentTest;
 import org.xwiki.test.junit5.mockito.InjectMockComponents;
 import org.xwiki.test.junit5.mockito.MockComponent;
 
+import com.xpn.xwiki.XWikiContext;
+import com.xwiki.pdfviewer.internal.configuration.PDFViewerConfiguration;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -46,6 +75,7 @@ import static org.mockito.Mockito.when;
  * @version $Id$
  */
 @ComponentTest
+@ComponentList({ DefaultDelegatedTokenStore.class, DelegatedTokenRightsCache.class, DelegatedTokenSweeper.class })
 class DelegatedTokenManagerTest
 {
     private static final String ATTACH_NAME = "attach name";
@@ -59,6 +89,24 @@ class DelegatedTokenManagerTest
     @MockComponent
     private AuthorizationManager authorizationManager;
 
+    @MockComponent
+    private PDFViewerConfiguration configuration;
+
+    @MockComponent
+    private DelegatedTokenInvalidator invalidator;
+
+    @MockComponent
+    private CacheManager cacheManager;
+
+    @MockComponent
+    private DocumentAccessBridge documentAccessBridge;
+
+    @MockComponent
+    private EntityReferenceSerializer<String> serializer;
+
+    @MockComponent
+    private Provider<XWikiContext> contextProvider;
+
     @RegisterExtension
     private LogCaptureExtension logCapture = new LogCaptureExtension(LogLevel.DEBUG);
 
@@ -86,11 +134,37 @@ class DelegatedTokenManagerTest
     @Mock
     private DocumentReference macroOrigin2;
 
+    @Mock
+    private XWikiContext context;
+
+    @BeforeComponent
+    void configure() throws Exception
+    {
+        // Don't cache the rights, since the tests change them.
+        when(cacheManager.createNewCache(any())).thenReturn(mock(Cache.class));
+        when(serializer.serialize(any())).thenReturn("reference");
+        when(contextProvider.get()).thenReturn(context);
+        when(context.getWikiId()).thenReturn("wiki");
+    }
+
+    @BeforeComponent("sweepLeastRecentlyUsedTokens")
+    void configureMaxTokens()
+    {
+        // The global limit is read once, from xwiki.properties.
+        when(configuration.getMaxTokens()).thenReturn(2);
+    }
+
     @BeforeEach
     void setup()
     {
         when(attachmentReference.getDocumentReference()).thenReturn(documentReference);
         when(attachmentReference2.getDocumentReference()).thenReturn(documentReference2);
+        // The store indexes the tokens by wiki.
+        WikiReference wiki = new WikiReference("wiki");
+        for (DocumentReference reference : List.of(userRef, userRef2, documentReference, documentReference2,
+            macroOrigin, macroOrigin2)) {
+            when(reference.getWikiReference()).thenReturn(wiki);
+        }
         when(authorizationManager.hasAccess(Right.VIEW, userRef, documentReference2)).thenReturn(true);
         when(authorizationManager.hasAccess(Right.VIEW, userRef2, documentReference2)).thenReturn(true);
     }
@@ -188,6 +262,58 @@ class DelegatedTokenManagerTest
         assertFalse(tokenManager.isInvalid(token3));
     }
 
+    @Test
+    void clearAttachmentTokensAfterClearToken()
+    {
+        DocumentReference docRef = new DocumentReference("wiki", "space", "page");
+        AttachmentReference attachRef = new AttachmentReference(ATTACH_NAME, docRef);
+
+        when(authorizationManager.hasAccess(any(), any(), any(DocumentReference.class))).thenReturn(true);
+        String token1 = createToken(userRef, attachRef, macroOrigin, true);
+        String token2 = createToken(userRef, attachRef, macroOrigin2, true);
+
+        tokenManager.clearToken(attachRef, macroOrigin);
+        assertTrue(tokenManager.isInvalid(token1));
+
+        // Only the token that is still indexed for the attachment should be removed.
+        tokenManager.clearAttachmentTokens(ATTACH_NAME, docRef);
+        assertEquals(4, logCapture.size());
+        assertEquals("New token created for file [Attachment wiki:space.page@attach name] on origin [macroOrigin] "
+            + "and user [userRef].", logCapture.getMessage(0));
+        assertEquals("New token created for file [Attachment wiki:space.page@attach name] on origin [macroOrigin2] "
+            + "and user [userRef].", logCapture.getMessage(1));
+        assertEquals("Deleted delegated token for file [Attachment wiki:space.page@attach name] from macro origin "
+            + "document [macroOrigin].", logCapture.getMessage(2));
+        assertTrue(logCapture.getMessage(3).contains(token2));
+        assertTrue(tokenManager.isInvalid(token2));
+    }
+
+    @Test
+    void getTokenAfterClearAttachmentTokens()
+    {
+        DocumentReference docRef = new DocumentReference("wiki", "space", "page");
+        AttachmentReference attachRef = new AttachmentReference(ATTACH_NAME, docRef);
+
+        when(authorizationManager.hasAccess(any(), any(), any(DocumentReference.class))).thenReturn(true);
+        String token = tokenManager.getToken(userRef, attachRef, macroOrigin);
+        assertEquals(token, tokenManager.getToken(userRef, attachRef, macroOrigin));
+
+        tokenManager.clearAttachmentTokens(ATTACH_NAME, docRef);
+        assertTrue(tokenManager.isInvalid(token));
+
+        // The origin index must not keep returning the removed token.
+        String newToken = tokenManager.getToken(userRef, attachRef, macroOrigin);
+        assertNotEquals(token, newToken);
+        assertFalse(tokenManager.isInvalid(newToken));
+
+        assertEquals(3, logCapture.size());
+        assertEquals("New token created for file [Attachment wiki:space.page@attach name] on origin [macroOrigin] "
+            + "and user [userRef].", logCapture.getMessage(0));
+        assertTrue(logCapture.getMessage(1).contains(token));
+        assertEquals("New token created for file [Attachment wiki:space.page@attach name] on origin [macroOrigin] "
+            + "and user [userRef].", logCapture.getMessage(2));
+    }
+
     @Test
     void getTokenAttachmentReferenceTest()
     {
@@ -207,6 +333,7 @@ class DelegatedTokenManagerTest
             logCapture.getMessage(3));
 
         assertEquals(attachmentReference2, tokenManager.getTokenAttachmentReference(token));
+        assertEquals(token, tokenManager.validate(token).toString());
     }
 
     @Test
@@ -229,13 +356,307 @@ class DelegatedTokenManagerTest
         assertFalse(tokenManager.hasAccess(token));
     }
 
+    @Test
+    void validateWithPendingInvalidation()
+    {
+        when(contextualAuthorizationManager.hasAccess(Right.VIEW, macroOrigin)).thenReturn(true);
+        String token = createToken(userRef2, attachmentReference2, macroOrigin, true);
+        assertEquals("New token created for file [attachmentReference2] on origin [macroOrigin] and user [userRef2].",
+            logCapture.getMessage(0));
+
+        when(invalidator.isInvalidated(any())).thenReturn(true);
+        assertNull(tokenManager.validate(token));
+    }
+
+    @Test
+    void getTokensSharesGrant()
+    {
+        when(authorizationManager.hasAccess(any(), any(), any(DocumentReference.class))).thenReturn(true);
+        when(contextualAuthorizationManager.hasAccess(any(), any(DocumentReference.class))).thenReturn(true);
+        DocumentReference origin = new DocumentReference("wiki", "space", "origin");
+        DocumentReference page = new DocumentReference("wiki", "space", "page");
+        AttachmentReference file1 = new AttachmentReference("file1.pdf", page);
+        AttachmentReference file2 = new AttachmentReference("file2.pdf", page);
+        AttachmentReference otherWikiFile =
+            new AttachmentReference("file.pdf", new DocumentReference("otherwiki", "Space", "Page"));
+
+        List<String> tokens = tokenManager.getTokens(userRef, List.of(file1, otherWikiFile, file2), origin);
+        String grant = tokens.get(0).substring(0, 22);
+        assertEquals(grant + "~0", tokens.get(0));
+        assertEquals(grant + "~1", tokens.get(2));
+        // The rights are evaluated once for all the attachments of a document.
+        verify(authorizationManager, times(1)).hasAccess(Right.VIEW, userRef, page);
+        // The attachments of the other wikis get their own token.
+        assertTrue(tokens.get(1).matches("[A-Za-z0-9_-]{22}"));
+
+        assertEquals(file2, tokenManager.getTokenAttachmentReference(tokens.get(2)));
+        assertEquals(otherWikiFile, tokenManager.getTokenAttachmentReference(tokens.get(1)));
+        assertNull(tokenManager.getTokenAttachmentReference(grant + "~2"));
+        assertNull(tokenManager.getTokenAttachmentReference(grant));
+
+        // Another macro of the same document extends the grant, keeping the access tokens already handed out.
+        AttachmentReference file3 = new AttachmentReference("file3.pdf", page);
+        assertEquals(List.of(grant + "~1", grant + "~2"),
+            tokenManager.getTokens(userRef, List.of(file2, file3), origin));
+        assertEquals(file1, tokenManager.getTokenAttachmentReference(tokens.get(0)));
+        assertEquals(file3, tokenManager.getTokenAttachmentReference(grant + "~2"));
+
+        // Removing one of the granted attachments only revokes its access token.
+        tokenManager.clearAttachmentTokens("file1.pdf", page);
+        assertTrue(tokenManager.isInvalid(tokens.get(0)));
+        assertNull(tokenManager.getTokenAttachmentReference(tokens.get(0)));
+        assertFalse(tokenManager.isInvalid(tokens.get(2)));
+        assertFalse(tokenManager.isInvalid(grant + "~2"));
+        assertEquals(file2, tokenManager.getTokenAttachmentReference(tokens.get(2)));
+        assertEquals(file3, tokenManager.getTokenAttachmentReference(grant + "~2"));
+        assertFalse(tokenManager.isInvalid(tokens.get(1)));
+
+        // The grant is removed once it doesn't cover any attachment anymore.
+        tokenManager.clearDocumentTokens(page);
+        assertTrue(tokenManager.isInvalid(tokens.get(2)));
+        assertTrue(tokenManager.isInvalid(grant + "~2"));
+
+        assertEquals(5, logCapture.size());
+        assertEquals("New grant created for files [[Attachment wiki:space.page@file1.pdf, "
+            + "Attachment wiki:space.page@file2.pdf]] on origin [" + origin + "] and user [userRef].",
+            logCapture.getMessage(0));
+        assertEquals("New token created for file [Attachment otherwiki:Space.Page@file.pdf] on origin [" + origin
+            + "] and user [userRef].", logCapture.getMessage(1));
+        assertEquals("Extended the grant on origin [" + origin + "] with files "
+            + "[[Attachment wiki:space.page@file3.pdf]].", logCapture.getMessage(2));
+        assertEquals("Deleted delegated token [" + grant + "] for file [file1.pdf] from document [" + page + "].",
+            logCapture.getMessage(3));
+        assertEquals("Deleted [1] delegated tokens related to document [" + page + "].", logCapture.getMessage(4));
+    }
+
+    @Test
+    void revokeSingleGrantedFile()
+    {
+        when(contextualAuthorizationManager.hasAccess(any(), any(DocumentReference.class))).thenReturn(true);
+        DocumentReference origin = new DocumentReference("wiki", "space", "origin");
+        DocumentReference page = new DocumentReference("wiki", "space", "page");
+        DocumentReference otherPage = new DocumentReference("wiki", "space", "other");
+        AttachmentReference file1 = new AttachmentReference("file1.pdf", page);
+        AttachmentReference file2 = new AttachmentReference("file2.pdf", otherPage);
+        when(authorizationManager.hasAccess(Right.VIEW, userRef, page)).thenReturn(true);
+        when(authorizationManager.hasAccess(Right.VIEW, userRef, otherPage)).thenReturn(true);
+        List<String> tokens = tokenManager.getTokens(userRef, List.of(file1, file2), origin);
+
+        // The author loses the rights on one of the granted attachments only.
+        when(authorizationManager.hasAccess(Right.VIEW, userRef, otherPage)).thenReturn(false);
+        assertNull(tokenManager.getTokenAttachmentReference(tokens.get(1)));
+        assertTrue(tokenManager.isInvalid(tokens.get(1)));
+        assertEquals(file1, tokenManager.getTokenAttachmentReference(tokens.get(0)));
+
+        // The grant keeps its identifier, and the revoked attachment gets a new index once the rights are restored.
+        when(authorizationManager.hasAccess(Right.VIEW, userRef, otherPage)).thenReturn(true);
+        String grant = tokens.get(0).substring(0, 22);
+        assertEquals(List.of(grant + "~0", grant + "~2"),
+            tokenManager.getTokens(userRef, List.of(file1, file2), origin));
+
+        assertEquals(3, logCapture.size());
+        assertEquals("New grant created for files [[Attachment wiki:space.page@file1.pdf, "
+            + "Attachment wiki:space.other@file2.pdf]] on origin [" + origin + "] and user [userRef].",
+            logCapture.getMessage(0));
+        assertEquals("Deleted delegated token for file [Attachment wiki:space.other@file2.pdf] from macro origin "
+            + "document [" + origin + "].", logCapture.getMessage(1));
+        assertEquals("Extended the grant on origin [" + origin + "] with files "
+            + "[[Attachment wiki:space.other@file2.pdf]].", logCapture.getMessage(2));
+    }
+
+    @Test
+    void tokenExpiration()
+    {
+        long now = System.currentTimeMillis();
+        DelegatedToken token = new DelegatedToken(userRef, attachmentReference, macroOrigin, 10000, 1000);
+        assertFalse(token.isExpired(now));
+        assertTrue(token.isExpired(now + 1000));
+
+        // Accessing the token postpones the idle expiration, but not the absolute one.
+        token.touch(now + 900);
+        assertFalse(token.isExpired(now + 1000));
+        assertTrue(token.isExpired(now + 10000));
+
+        assertFalse(new DelegatedToken(userRef, attachmentReference, macroOrigin).isExpired(Long.MAX_VALUE - 1));
+    }
+
+    @Test
+    void sweepLeastRecentlyUsedTokens()
+    {
+        when(contextualAuthorizationManager.hasAccess(any(), any(DocumentReference.class))).thenReturn(true);
+        when(authorizationManager.hasAccess(any(), any(), any(DocumentReference.class))).thenReturn(true);
+        DelegatedTokenSweeper sweeper = disableBackgroundSweep();
+        String token1 = tokenManager.getToken(userRef, attachmentReference, macroOrigin);
+        String token2 = tokenManager.getToken(userRef, attachmentReference, macroOrigin2);
+        String token3 = tokenManager.getToken(userRef, attachmentReference2, macroOrigin);
+        DelegatedTokenStore store = ReflectionUtils.getFieldValue(tokenManager, "store");
+        store.get(token1).touch(1000);
+        store.get(token2).touch(2000);
+        store.get(token3).touch(3000);
+        // Using the first token makes the second one the least recently used.
+        assertTrue(tokenManager.hasAccess(token1));
+
+        sweeper.sweep();
+        assertFalse(tokenManager.isInvalid(token1));
+        assertTrue(tokenManager.isInvalid(token2));
+        assertFalse(tokenManager.isInvalid(token3));
+
+        assertEquals(6, logCapture.size());
+        assertEquals("New token created for file [attachmentReference] on origin [macroOrigin] and user [userRef].",
+            logCapture.getMessage(0));
+        assertEquals("New token created for file [attachmentReference] on origin [macroOrigin2] and user [userRef].",
+            logCapture.getMessage(1));
+        assertEquals("New token created for file [attachmentReference2] on origin [macroOrigin] and user [userRef].",
+            logCapture.getMessage(2));
+        assertEquals("Removed [0] expired and [1] least recently used delegated tokens.", logCapture.getMessage(3));
+        assertTrue(logCapture.getMessage(4).startsWith("Keeping [2] delegated tokens in about ["));
+        assertTrue(logCapture.getMessage(5).startsWith("Keeping [2] delegated tokens for wiki [wiki] in about ["));
+    }
+
+    @Test
+    void sweepLeastRecentlyUsedTokensPerWiki()
+    {
+        when(configuration.getMaxTokensPerWiki("wiki")).thenReturn(1);
+        // The other wiki allows more tokens, without changing the limit of the first wiki.
+        when(configuration.getMaxTokensPerWiki("otherwiki")).thenReturn(2);
+        when(authorizationManager.hasAccess(any(), any(), any(DocumentReference.class))).thenReturn(true);
+        DocumentReference otherWikiPage = new DocumentReference("otherwiki", "Space", "Page");
+        DocumentReference otherWikiOrigin = new DocumentReference("otherwiki", "Space", "Origin");
+        AttachmentReference otherWikiFile = new AttachmentReference("file.pdf", otherWikiPage);
+        AttachmentReference otherWikiFile2 = new AttachmentReference("file2.pdf", otherWikiPage);
+        DelegatedTokenSweeper sweeper = disableBackgroundSweep();
+        String token1 = tokenManager.getToken(userRef, attachmentReference, macroOrigin);
+        String token2 = tokenManager.getToken(userRef, attachmentReference2, macroOrigin);
+        // The limit of the wiki holding the attachments applies, whatever the current wiki.
+        String token3 = tokenManager.getToken(userRef, otherWikiFile, otherWikiOrigin);
+        String token4 = tokenManager.getToken(userRef, otherWikiFile2, otherWikiOrigin);
+        DelegatedTokenStore store = ReflectionUtils.getFieldValue(tokenManager, "store");
+        store.get(token1).touch(1000);
+        store.get(token2).touch(2000);
+
+        sweeper.sweep();
+        assertTrue(tokenManager.isInvalid(token1));
+        assertFalse(tokenManager.isInvalid(token2));
+        assertFalse(tokenManager.isInvalid(token3));
+        assertFalse(tokenManager.isInvalid(token4));
+
+        assertEquals(9, logCapture.size());
+        assertEquals("New token created for file [attachmentReference] on origin [macroOrigin] and user [userRef].",
+            logCapture.getMessage(0));
+        assertEquals("New token created for file [attachmentReference2] on origin [macroOrigin] and user [userRef].",
+            logCapture.getMessage(1));
+        assertEquals("New token created for file [Attachment otherwiki:Space.Page@file.pdf] on origin ["
+            + otherWikiOrigin + "] and user [userRef].", logCapture.getMessage(2));
+        assertEquals("New token created for file [Attachment otherwiki:Space.Page@file2.pdf] on origin ["
+            + otherWikiOrigin + "] and user [userRef].", logCapture.getMessage(3));
+        assertEquals("Removed [1] least recently used delegated tokens of wiki [wiki].", logCapture.getMessage(4));
+        assertEquals("Removed [0] expired and [1] least recently used delegated tokens.", logCapture.getMessage(5));
+        assertTrue(logCapture.getMessage(6).startsWith("Keeping [3] delegated tokens in about ["));
+        // The wikis are not reported in a specific order.
+        List<String> wikiLogs = List.of(logCapture.getMessage(7), logCapture.getMessage(8));
+        assertTrue(wikiLogs.stream()
+            .anyMatch(log -> log.startsWith("Keeping [1] delegated tokens for wiki [wiki] in about [")));
+        assertTrue(wikiLogs.stream()
+            .anyMatch(log -> log.startsWith("Keeping [2] delegated tokens for wiki [otherwiki] in about [")));
+    }
+
+    @Test
+    void concurrentIssuanceValidationAndInvalidation() throws Exception
+    {
+        when(authorizationManager.hasAccess(any(), any(), any(DocumentReference.class))).thenReturn(true);
+        when(contextualAuthorizationManager.hasAccess(any(), any(DocumentReference.class))).thenReturn(true);
+
+        DocumentReference docRef = new DocumentReference("wiki", "space", "page");
+        List<AttachmentReference> attachments = new ArrayList<>();
+        List<DocumentReference> origins = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            attachments.add(new AttachmentReference("file" + i + ".pdf", docRef));
+            origins.add(new DocumentReference("wiki", "space", "origin" + i));
+        }
+        List<DocumentReference> users = List.of(userRef, userRef2);
+
+        int threads = 16;
+        Set<String> issuedTokens = ConcurrentHashMap.newKeySet();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Random random = new Random(t);
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < 2000; i++) {
+                        AttachmentReference attachment = attachments.get(random.nextInt(attachments.size()));
+                        DocumentReference origin = origins.get(random.nextInt(origins.size()));
+                        int operation = random.nextInt(10);
+                        if (operation < 5) {
+                            DocumentReference user = users.get(random.nextInt(users.size()));
+                            issuedTokens.add(tokenManager.getToken(user, attachment, origin));
+                        } else if (operation < 9) {
+                            String token = tokenManager.getToken(userRef, attachment, origin);
+                            issuedTokens.add(token);
+                            // The token might be replaced or invalidated concurrently, but never partially.
+                            AttachmentReference tokenAttachment = tokenManager.getTokenAttachmentReference(token);
+                            assertTrue(tokenAttachment == null || tokenAttachment.equals(attachment));
+                        } else {
+                            tokenManager.clearAttachmentTokens(attachment.getName(), docRef);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Each (attachment, origin) pair must resolve to a single valid token.
+        for (AttachmentReference attachment : attachments) {
+            for (DocumentReference origin : origins) {
+                String token = tokenManager.getToken(userRef, attachment, origin);
+                issuedTokens.add(token);
+                assertEquals(token, tokenManager.getToken(userRef, attachment, origin));
+                assertTrue(tokenManager.hasAccess(token));
+            }
+        }
+
+        // Once all the attachments are invalidated, no token should survive in any of the indexes.
+        for (AttachmentReference attachment : attachments) {
+            tokenManager.clearAttachmentTokens(attachment.getName(), docRef);
+        }
+        for (String token : issuedTokens) {
+            assertTrue(tokenManager.isInvalid(token));
+            assertFalse(tokenManager.hasAccess(token));
+        }
+
+        // The number of logs depends on the thread interleaving, so we only mark them as asserted.
+        for (int i = 0; i < logCapture.size(); i++) {
+            logCapture.getMessage(i);
+        }
+    }
+
+    /**
+     * Stops the background sweeps, including the ones triggered when a limit is exceeded, so that the test sweeps
+     * explicitly and gets predictable logs.
+     */
+    private DelegatedTokenSweeper disableBackgroundSweep()
+    {
+        DelegatedTokenSweeper sweeper = ReflectionUtils.getFieldValue(tokenManager, "sweeper");
+        sweeper.dispose();
+        ReflectionUtils.setFieldValue(sweeper, "executor", mock(ScheduledExecutorService.class));
+        return sweeper;
+    }
+
     private String createToken(DocumentReference userRef, AttachmentReference attachmentReference,
         DocumentReference macroOrigin, boolean hasView)
     {
         when(authorizationManager.hasAccess(Right.VIEW, userRef, documentReference)).thenReturn(hasView);
         String token = tokenManager.getToken(userRef, attachmentReference, macroOrigin);
         if (hasView) {
-            assertTrue(token.contains(String.format("wopi_%s_%s_%s_", userRef, attachmentReference, macroOrigin)));
+            assertTrue(token.matches("[A-Za-z0-9_-]{22}"));
         } else {
             assertEquals("", token);
         }
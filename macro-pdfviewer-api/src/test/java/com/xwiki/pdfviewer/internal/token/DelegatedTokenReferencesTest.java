@@ -0,0 +1,168 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xwiki.pdfviewer.internal.configuration.PDFViewerConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link DelegatedTokenReferences}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+@ComponentList(DelegatedTokenSigner.class)
+class DelegatedTokenReferencesTest
+{
+    private static final DocumentReference USER = new DocumentReference("wiki", "XWiki", "User");
+
+    private static final DocumentReference MACRO_ORIGIN = new DocumentReference("wiki", "Space", "Origin");
+
+    private static final AttachmentReference FILE =
+        new AttachmentReference("file.pdf", new DocumentReference("wiki", "Space", "Page"));
+
+    private static final String TOKEN = "token~0";
+
+    private static final String CLAIM_TYPE = "reference";
+
+    @InjectMockComponents
+    private DelegatedTokenReferences references;
+
+    @MockComponent
+    private DelegatedTokenManager tokenManager;
+
+    @MockComponent
+    private Environment environment;
+
+    @MockComponent
+    private PDFViewerConfiguration configuration;
+
+    @MockComponent
+    private EntityReferenceSerializer<String> serializer;
+
+    @MockComponent
+    private EntityReferenceResolver<String> resolver;
+
+    private final Map<String, EntityReference> entityReferences = new ConcurrentHashMap<>();
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.configuration.getTokenSigningKey()).thenReturn("secret");
+        when(this.configuration.getTokenIdleTimeout()).thenReturn(3600L);
+        when(this.serializer.serialize(any())).then(invocation -> {
+            EntityReference reference = invocation.getArgument(0);
+            this.entityReferences.put(reference.toString(), reference);
+            return reference.toString();
+        });
+        when(this.resolver.resolve(anyString(), any(EntityType.class)))
+            .then(invocation -> this.entityReferences.get(invocation.<String>getArgument(0)));
+        when(this.tokenManager.getTokens(USER, List.of(FILE), MACRO_ORIGIN)).thenReturn(List.of(TOKEN));
+    }
+
+    @Test
+    void redeem()
+    {
+        assertEquals(TOKEN, this.references.redeem(this.references.create(USER, FILE, MACRO_ORIGIN)));
+    }
+
+    @Test
+    void redeemWithoutRights()
+    {
+        when(this.tokenManager.getTokens(USER, List.of(FILE), MACRO_ORIGIN)).thenReturn(List.of(""));
+
+        assertNull(this.references.redeem(this.references.create(USER, FILE, MACRO_ORIGIN)));
+    }
+
+    @Test
+    void rejectTamperedReferences()
+    {
+        String reference = this.references.create(USER, FILE, MACRO_ORIGIN);
+        String tamperedReference = (reference.charAt(0) == 'A' ? 'B' : 'A') + reference.substring(1);
+
+        assertNull(this.references.redeem(tamperedReference));
+        assertNull(this.references.redeem(reference.substring(0, reference.length() - 1)));
+        assertNull(this.references.redeem(null));
+        assertNull(this.references.redeem(""));
+        assertNull(this.references.redeem("not.signed!"));
+        verify(this.tokenManager, never()).getTokens(any(), any(), any());
+    }
+
+    @Test
+    void rejectExpiredReferences()
+    {
+        String claim = getSigner().verify(CLAIM_TYPE, this.references.create(USER, FILE, MACRO_ORIGIN));
+        String expiredClaim = (System.currentTimeMillis() - 1) + claim.substring(claim.indexOf('/'));
+
+        assertNull(this.references.redeem(getSigner().sign(CLAIM_TYPE, expiredClaim)));
+        verify(this.tokenManager, never()).getTokens(any(), any(), any());
+    }
+
+    @Test
+    void rejectOtherSignedValues()
+    {
+        // The signed tokens share the signing key, but they can't be used as references.
+        String claim = getSigner().verify(CLAIM_TYPE, this.references.create(USER, FILE, MACRO_ORIGIN));
+
+        assertNull(this.references.redeem(getSigner().sign("token", claim)));
+        verify(this.tokenManager, never()).getTokens(any(), any(), any());
+    }
+
+    @Test
+    void rejectMalformedReferences()
+    {
+        String expirationTime = String.valueOf(System.currentTimeMillis() + 60000);
+
+        assertNull(this.references.redeem(getSigner().sign(CLAIM_TYPE, "never")));
+        assertNull(this.references.redeem(getSigner().sign(CLAIM_TYPE, expirationTime)));
+        verify(this.tokenManager, never()).getTokens(any(), any(), any());
+    }
+
+    private DelegatedTokenSigner getSigner()
+    {
+        return ReflectionUtils.getFieldValue(this.references, "signer");
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.test.junit5.mockito.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link DelegatedTokenRightsCache}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class DelegatedTokenRightsCacheTest
+{
+    private static final DocumentReference AUTHOR = new DocumentReference("wiki", "XWiki", "Author");
+
+    private static final DocumentReference VIEWER = new DocumentReference("wiki", "XWiki", "Viewer");
+
+    private static final DocumentReference DOCUMENT = new DocumentReference("wiki", "Space", "Page");
+
+    @InjectMockComponents
+    private DelegatedTokenRightsCache rightsCache;
+
+    @MockComponent
+    private CacheManager cacheManager;
+
+    @MockComponent
+    private AuthorizationManager authorizationManager;
+
+    @MockComponent
+    private ContextualAuthorizationManager contextualAuthorizationManager;
+
+    @MockComponent
+    private DocumentAccessBridge documentAccessBridge;
+
+    @MockComponent
+    private EntityReferenceSerializer<String> serializer;
+
+    private final Map<String, Boolean> cachedRights = new ConcurrentHashMap<>();
+
+    @BeforeComponent
+    @SuppressWarnings("unchecked")
+    void configure() throws Exception
+    {
+        Cache<Boolean> cache = mock(Cache.class);
+        when(cache.get(anyString())).then(invocation -> this.cachedRights.get(invocation.<String>getArgument(0)));
+        doAnswer(invocation -> this.cachedRights.put(invocation.getArgument(0), invocation.getArgument(1)))
+            .when(cache).set(anyString(), any());
+        doAnswer(invocation -> {
+            this.cachedRights.clear();
+            return null;
+        }).when(cache).removeAll();
+        when(this.cacheManager.<Boolean>createNewCache(any())).thenReturn(cache);
+        when(this.serializer.serialize(any()))
+            .then(invocation -> invocation.<EntityReference>getArgument(0).toString());
+    }
+
+    @Test
+    void memoizeAuthorAccess()
+    {
+        when(this.authorizationManager.hasAccess(Right.VIEW, AUTHOR, DOCUMENT)).thenReturn(true);
+
+        assertTrue(this.rightsCache.hasAuthorAccess(AUTHOR, DOCUMENT));
+        assertTrue(this.rightsCache.hasAuthorAccess(AUTHOR, DOCUMENT));
+        assertFalse(this.rightsCache.hasAuthorAccess(VIEWER, DOCUMENT));
+        verify(this.authorizationManager, times(1)).hasAccess(Right.VIEW, AUTHOR, DOCUMENT);
+    }
+
+    @Test
+    void memoizeViewerAccessPerUser()
+    {
+        when(this.contextualAuthorizationManager.hasAccess(Right.VIEW, DOCUMENT)).thenReturn(true, false);
+
+        when(this.documentAccessBridge.getCurrentUserReference()).thenReturn(VIEWER);
+        assertTrue(this.rightsCache.hasViewerAccess(DOCUMENT));
+        assertTrue(this.rightsCache.hasViewerAccess(DOCUMENT));
+
+        // The guest user.
+        when(this.documentAccessBridge.getCurrentUserReference()).thenReturn(null);
+        assertFalse(this.rightsCache.hasViewerAccess(DOCUMENT));
+        assertFalse(this.rightsCache.hasViewerAccess(DOCUMENT));
+
+        verify(this.contextualAuthorizationManager, times(2)).hasAccess(Right.VIEW, DOCUMENT);
+    }
+
+    @Test
+    void invalidate()
+    {
+        when(this.authorizationManager.hasAccess(Right.VIEW, AUTHOR, DOCUMENT)).thenReturn(true, false);
+
+        assertTrue(this.rightsCache.hasAuthorAccess(AUTHOR, DOCUMENT));
+        this.rightsCache.invalidate();
+        assertFalse(this.rightsCache.hasAuthorAccess(AUTHOR, DOCUMENT));
+    }
+}
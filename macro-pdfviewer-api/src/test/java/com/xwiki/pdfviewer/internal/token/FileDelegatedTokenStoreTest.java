@@ -0,0 +1,249 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xwiki.pdfviewer.internal.configuration.PDFViewerConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link FileDelegatedTokenStore}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+@ComponentList(DelegatedTokenLogCodec.class)
+class FileDelegatedTokenStoreTest
+{
+    private static final DocumentReference USER = new DocumentReference("wiki", "XWiki", "User");
+
+    private static final DocumentReference MACRO_ORIGIN = new DocumentReference("wiki", "Space", "Origin");
+
+    private static final AttachmentReference FILE =
+        new AttachmentReference("file.pdf", new DocumentReference("wiki", "Space", "Page"));
+
+    @InjectMockComponents
+    private FileDelegatedTokenStore store;
+
+    @MockComponent
+    private Environment environment;
+
+    @MockComponent
+    private PDFViewerConfiguration configuration;
+
+    @MockComponent
+    private EntityReferenceSerializer<String> serializer;
+
+    @MockComponent
+    private EntityReferenceResolver<String> resolver;
+
+    private final Map<String, EntityReference> references = new ConcurrentHashMap<>();
+
+    private FileDelegatedTokenStore otherStore;
+
+    @BeforeComponent
+    void configure() throws Exception
+    {
+        when(this.configuration.getTokenStoreDirectory())
+            .thenReturn(Files.createTempDirectory("pdfviewer").toString());
+        when(this.serializer.serialize(any())).then(invocation -> {
+            EntityReference reference = invocation.getArgument(0);
+            this.references.put(reference.toString(), reference);
+            return reference.toString();
+        });
+        when(this.resolver.resolve(anyString(), any(EntityType.class)))
+            .then(invocation -> this.references.get(invocation.<String>getArgument(0)));
+    }
+
+    @AfterEach
+    void tearDown()
+    {
+        this.store.dispose();
+        if (this.otherStore != null) {
+            this.otherStore.dispose();
+        }
+    }
+
+    @Test
+    void tokensSurviveRestart() throws Exception
+    {
+        DelegatedToken token = this.store.compute(FILE, MACRO_ORIGIN,
+            existingToken -> new DelegatedToken(USER, FILE, MACRO_ORIGIN, 3600000, 60000));
+        DelegatedToken removedToken = this.store.compute(FILE, USER,
+            existingToken -> new DelegatedToken(USER, FILE, USER));
+        this.store.remove(removedToken);
+
+        this.store.dispose();
+        this.store.clear();
+        this.store.initialize();
+
+        DelegatedToken restoredToken = this.store.get(token.toString());
+        assertEquals(token, restoredToken);
+        assertEquals(token.getExpirationTime(), restoredToken.getExpirationTime());
+        assertEquals(token.getIdleTimeout(), restoredToken.getIdleTimeout());
+        assertEquals(token.getLastAccessTime(), restoredToken.getLastAccessTime());
+        assertNull(this.store.get(removedToken.toString()));
+        assertEquals(List.of(restoredToken), List.copyOf(this.store.getAttachmentTokens(FILE)));
+    }
+
+    @Test
+    void tokensAreSharedBetweenInstances() throws Exception
+    {
+        this.otherStore = createOtherStore();
+
+        DelegatedToken token = this.store.compute(FILE, MACRO_ORIGIN,
+            existingToken -> new DelegatedToken(USER, FILE, MACRO_ORIGIN));
+        assertEquals(token, this.otherStore.get(token.toString()));
+        assertEquals(token, this.otherStore.compute(FILE, MACRO_ORIGIN, existingToken -> existingToken));
+
+        this.otherStore.remove(token);
+        assertEquals(List.of(), List.copyOf(this.store.getAttachmentTokens(FILE)));
+        assertNull(this.store.get(token.toString()));
+    }
+
+    @Test
+    void keepBothTokensOnConcurrentIssuance() throws Exception
+    {
+        this.otherStore = createOtherStore();
+
+        DelegatedToken[] token = new DelegatedToken[1];
+        DelegatedToken otherToken = this.otherStore.compute(FILE, MACRO_ORIGIN, existingToken -> {
+            // The first instance issues a token for the same attachment and macro origin at the same time.
+            token[0] = this.store.compute(FILE, MACRO_ORIGIN,
+                currentToken -> new DelegatedToken(USER, FILE, MACRO_ORIGIN));
+            return new DelegatedToken(USER, FILE, MACRO_ORIGIN);
+        });
+
+        // Both tokens might have been handed out already, so both remain valid on both instances, which reuse the
+        // token recorded last.
+        for (FileDelegatedTokenStore instanceStore : List.of(this.store, this.otherStore)) {
+            assertEquals(Set.of(token[0], otherToken), Set.copyOf(instanceStore.getAttachmentTokens(FILE)));
+            assertEquals(token[0], instanceStore.get(token[0].toString()));
+            assertEquals(otherToken, instanceStore.compute(FILE, MACRO_ORIGIN, UnaryOperator.identity()));
+        }
+    }
+
+    @Test
+    void unknownTokenDoesNotWaitForRefresh() throws Exception
+    {
+        DelegatedToken token = this.store.compute(FILE, MACRO_ORIGIN,
+            existingToken -> new DelegatedToken(USER, FILE, MACRO_ORIGIN));
+        assertEquals(token, this.store.get(token.toString()));
+
+        // Hold the refresh lock from another thread, as a concurrent refresh would.
+        ReentrantLock readLock = ReflectionUtils.getFieldValue(this.store, "readLock");
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch released = new CountDownLatch(1);
+        Thread refresher = new Thread(() -> {
+            readLock.lock();
+            try {
+                locked.countDown();
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                readLock.unlock();
+            }
+        });
+        refresher.start();
+        locked.await();
+        try {
+            assertNull(this.store.get(new DelegatedToken(USER, FILE, MACRO_ORIGIN).toString()));
+            assertEquals(token, this.store.get(token.toString()));
+        } finally {
+            released.countDown();
+            refresher.join();
+        }
+    }
+
+    @Test
+    void wikiRemovalIsShared() throws Exception
+    {
+        this.otherStore = createOtherStore();
+
+        DelegatedToken token = this.store.compute(FILE, MACRO_ORIGIN,
+            existingToken -> new DelegatedToken(USER, FILE, MACRO_ORIGIN));
+        assertEquals(token, this.otherStore.get(token.toString()));
+
+        assertEquals(List.of(token), List.copyOf(this.store.removeWikiTokens("wiki")));
+        assertNull(this.otherStore.get(token.toString()));
+        assertEquals(0, this.otherStore.size());
+    }
+
+    @Test
+    void grantsAreShared() throws Exception
+    {
+        this.otherStore = createOtherStore();
+        AttachmentReference otherFile =
+            new AttachmentReference("other.pdf", new DocumentReference("wiki", "Space", "Other"));
+
+        DelegatedToken grant = this.store.computeGrant(MACRO_ORIGIN,
+            existingGrant -> new DelegatedToken(USER, List.of(FILE), MACRO_ORIGIN, 0, 0));
+        assertEquals(List.of(FILE), this.otherStore.get(grant.toString()).getFileReferences());
+
+        // Extending the grant keeps its identifier.
+        this.store.computeGrant(MACRO_ORIGIN, existingGrant -> existingGrant.withFiles(List.of(FILE, otherFile)));
+        DelegatedToken sharedGrant = this.otherStore.get(grant.toString());
+        assertTrue(sharedGrant.isGrant());
+        assertEquals(List.of(FILE, otherFile), sharedGrant.getFileReferences());
+        assertEquals(List.of(sharedGrant), List.copyOf(this.otherStore.getAttachmentTokens(otherFile)));
+        assertEquals(sharedGrant, this.otherStore.computeGrant(MACRO_ORIGIN, existingGrant -> existingGrant));
+    }
+
+    private FileDelegatedTokenStore createOtherStore() throws Exception
+    {
+        FileDelegatedTokenStore other = new FileDelegatedTokenStore();
+        for (String field : List.of("logger", "environment", "configuration", "codec")) {
+            ReflectionUtils.setFieldValue(other, field, ReflectionUtils.getFieldValue(this.store, field));
+        }
+        other.initialize();
+        return other;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pdfviewer.internal.token;
+
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xwiki.pdfviewer.internal.configuration.PDFViewerConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link SignedDelegatedTokenStore}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+@ComponentList({DelegatedTokenSigner.class, DelegatedTokenRevocations.class})
+class SignedDelegatedTokenStoreTest
+{
+    private static final DocumentReference USER = new DocumentReference("wiki", "XWiki", "User");
+
+    private static final DocumentReference MACRO_ORIGIN = new DocumentReference("wiki", "Space", "Origin");
+
+    private static final AttachmentReference FILE =
+        new AttachmentReference("file.pdf", new DocumentReference("wiki", "Space", "Page"));
+
+    @InjectMockComponents
+    private SignedDelegatedTokenStore store;
+
+    @MockComponent
+    private Environment environment;
+
+    @MockComponent
+    private PDFViewerConfiguration configuration;
+
+    @MockComponent
+    private EntityReferenceSerializer<String> serializer;
+
+    @MockComponent
+    private EntityReferenceResolver<String> resolver;
+
+    private final Map<String, EntityReference> references = new ConcurrentHashMap<>();
+
+    @BeforeComponent
+    void configure() throws Exception
+    {
+        when(this.configuration.getTokenSigningKey()).thenReturn("secret");
+        when(this.configuration.getTokenStoreDirectory())
+            .thenReturn(Files.createTempDirectory("pdfviewer").toString());
+        when(this.serializer.serialize(any())).then(invocation -> {
+            EntityReference reference = invocation.getArgument(0);
+            this.references.put(reference.toString(), reference);
+            return reference.toString();
+        });
+        when(this.resolver.resolve(anyString(), any(EntityType.class)))
+            .then(invocation -> this.references.get(invocation.<String>getArgument(0)));
+    }
+
+    @Test
+    void validateWithoutStoringTokens()
+    {
+        DelegatedToken token = this.store.compute(FILE, MACRO_ORIGIN,
+            existingToken -> new DelegatedToken(USER, FILE, MACRO_ORIGIN, 3600000, 0));
+
+        DelegatedToken validatedToken = this.store.get(token.toString());
+        assertEquals(token, validatedToken);
+        assertEquals(USER, validatedToken.getUser());
+        assertEquals(FILE, validatedToken.getFileReference());
+        assertEquals(MACRO_ORIGIN, validatedToken.getMacroOrigin());
+        assertEquals(token.getLastAccessTime() + 3600000, validatedToken.getExpirationTime());
+        assertEquals(0, this.store.size());
+    }
+
+    @Test
+    void capTokenLifetime()
+    {
+        DelegatedToken token = this.store.compute(FILE, MACRO_ORIGIN,
+            existingToken -> new DelegatedToken(USER, FILE, MACRO_ORIGIN));
+
+        assertEquals(token.getLastAccessTime() + TimeUnit.DAYS.toMillis(1), token.getExpirationTime());
+    }
+
+    @Test
+    void rejectTamperedTokens()
+    {
+        String token = this.store.compute(FILE, MACRO_ORIGIN,
+            existingToken -> new DelegatedToken(USER, FILE, MACRO_ORIGIN)).toString();
+        String tamperedToken = (token.charAt(0) == 'A' ? 'B' : 'A') + token.substring(1);
+
+        assertNull(this.store.get(tamperedToken));
+        assertNull(this.store.get(token.substring(0, token.length() - 1)));
+        assertNull(this.store.get("wopi_token"));
+        assertNull(this.store.get("not.signed!"));
+    }
+
+    @Test
+    void revokeAttachmentTokens()
+    {
+        DelegatedToken token = this.store.compute(FILE, MACRO_ORIGIN,
+            existingToken -> new DelegatedToken(USER, FILE, MACRO_ORIGIN));
+
+        assertEquals(0, this.store.removeAttachmentTokens(FILE).size());
+        assertNull(this.store.get(token.toString()));
+
+        DelegatedToken newToken = this.store.compute(FILE, MACRO_ORIGIN,
+            existingToken -> new DelegatedToken(USER, FILE, MACRO_ORIGIN));
+        assertEquals(newToken, this.store.get(newToken.toString()));
+    }
+
+    @Test
+    void revokeOriginTokens()
+    {
+        DocumentReference otherOrigin = new DocumentReference("wiki", "Space", "OtherOrigin");
+        DelegatedToken token = this.store.compute(FILE, MACRO_ORIGIN,
+            existingToken -> new DelegatedToken(USER, FILE, MACRO_ORIGIN));
+        DelegatedToken otherToken = this.store.compute(FILE, otherOrigin,
+            existingToken -> new DelegatedToken(USER, FILE, otherOrigin));
+
+        // Removing the macros of a document only revokes the tokens issued for them.
+        assertEquals(0, this.store.removeOriginTokens(MACRO_ORIGIN).size());
+        assertNull(this.store.get(token.toString()));
+        assertEquals(otherToken, this.store.get(otherToken.toString()));
+
+        // So does deleting the macro origin document.
+        assertEquals(0, this.store.removeDocumentTokens(otherOrigin).size());
+        assertNull(this.store.get(otherToken.toString()));
+
+        DelegatedToken newToken = this.store.compute(FILE, MACRO_ORIGIN,
+            existingToken -> new DelegatedToken(USER, FILE, MACRO_ORIGIN));
+        assertEquals(newToken, this.store.get(newToken.toString()));
+    }
+
+    @Test
+    void removeTokenKeepsOtherTokens()
+    {
+        DocumentReference otherUser = new DocumentReference("wiki", "XWiki", "OtherUser");
+        DelegatedToken token = this.store.compute(FILE, MACRO_ORIGIN,
+            existingToken -> new DelegatedToken(USER, FILE, MACRO_ORIGIN));
+        DelegatedToken otherToken = this.store.compute(FILE, MACRO_ORIGIN,
+            existingToken -> new DelegatedToken(otherUser, FILE, MACRO_ORIGIN));
+
+        // The author rights are checked on each use instead, so the tokens of the other authors remain valid.
+        assertFalse(this.store.remove(token));
+        assertEquals(otherToken, this.store.get(otherToken.toString()));
+    }
+
+    @Test
+    void revocationsAreShared() throws Exception
+    {
+        DelegatedToken token = this.store.compute(FILE, MACRO_ORIGIN,
+            existingToken -> new DelegatedToken(USER, FILE, MACRO_ORIGIN));
+        DelegatedTokenRevocations otherRevocations = createOtherRevocations();
+        try {
+            assertEquals(0, otherRevocations.getGeneration(FILE));
+
+            this.store.removeAttachmentTokens(FILE);
+            assertEquals(1, otherRevocations.getGeneration(FILE));
+            assertNull(this.store.get(token.toString()));
+
+            // The revocations of the other instance apply as well.
+            DelegatedToken newToken = this.store.compute(FILE, MACRO_ORIGIN,
+                existingToken -> new DelegatedToken(USER, FILE, MACRO_ORIGIN));
+            otherRevocations.revoke(FILE);
+            assertNull(this.store.get(newToken.toString()));
+
+            DelegatedToken originToken = this.store.compute(FILE, MACRO_ORIGIN,
+                existingToken -> new DelegatedToken(USER, FILE, MACRO_ORIGIN));
+            otherRevocations.revokeOrigin(MACRO_ORIGIN);
+            assertNull(this.store.get(originToken.toString()));
+        } finally {
+            otherRevocations.dispose();
+        }
+
+        // The revocations survive restarts.
+        DelegatedTokenRevocations restartedRevocations = createOtherRevocations();
+        try {
+            assertEquals(2, restartedRevocations.getGeneration(FILE));
+            assertEquals(1, restartedRevocations.getOriginGeneration(MACRO_ORIGIN));
+        } finally {
+            restartedRevocations.dispose();
+        }
+    }
+
+    private DelegatedTokenRevocations createOtherRevocations() throws Exception
+    {
+        DelegatedTokenRevocations revocations = ReflectionUtils.getFieldValue(this.store, "revocations");
+        DelegatedTokenRevocations other = new DelegatedTokenRevocations();
+        for (String field : List.of("logger", "environment", "configuration", "serializer", "resolver")) {
+            ReflectionUtils.setFieldValue(other, field, ReflectionUtils.getFieldValue(revocations, field));
+        }
+        other.initialize();
+        return other;
+    }
+}